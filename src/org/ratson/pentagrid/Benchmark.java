@@ -2,8 +2,17 @@ package org.ratson.pentagrid;
 
 import java.util.Arrays;
 
+import org.ratson.pentagrid.fields.ActivityField;
 import org.ratson.pentagrid.fields.ArrayField;
+import org.ratson.pentagrid.fields.ExternalField;
+import org.ratson.pentagrid.fields.HashLifeField;
+import org.ratson.pentagrid.fields.HybridField;
+import org.ratson.pentagrid.fields.NeighborCacheField;
+import org.ratson.pentagrid.fields.OffHeapField;
+import org.ratson.pentagrid.fields.PackedMapField;
+import org.ratson.pentagrid.fields.RegistryField;
 import org.ratson.pentagrid.fields.SimpleMapField;
+import org.ratson.pentagrid.fields.TrieField;
 
 public class Benchmark {
 
@@ -45,5 +54,29 @@ public class Benchmark {
 		
 		doBenchmark( "Afld", makeTest( new ArrayField(), r, tries, steps), nBench );			
 		doBenchmark( "SimpleMap", makeTest( new SimpleMapField(), r, tries, steps), nBench );			
+		doBenchmark( "PackedMap", makeTest( new PackedMapField(), r, tries, steps), nBench );
+		doBenchmark( "NeighCache", makeTest( new NeighborCacheField(), r, tries, steps), nBench );
+		doBenchmark( "Activity", makeTest( new ActivityField(), r, tries, steps), nBench );
+		doBenchmark( "HashLife", makeTest( new HashLifeField(), r, tries, steps), nBench );
+		doBenchmark( "Trie", makeTest( new TrieField(), r, tries, steps), nBench );
+		doBenchmark( "Registry", makeTest( new RegistryField(), r, tries, steps), nBench );
+		doBenchmark( "Hybrid", makeTest( new HybridField(), r, tries, steps), nBench );
+		
+		//Big populations: sequential and multi-core evaluation
+		TotalisticRule rExplosive = Rule.parseRule("B2S23");
+		SimpleMapField parallelField = new SimpleMapField();
+		parallelField.setParallel( true );
+		doBenchmark( "SimpleMap explosive", makeTest( new SimpleMapField(), rExplosive, 1, 8), nBench );
+		doBenchmark( "SimpleMapParallel explosive", makeTest( parallelField, rExplosive, 1, 8), nBench );
+		doBenchmark( "Hybrid explosive", makeTest( new HybridField(), rExplosive, 1, 8), nBench );
+		OffHeapField offHeapField = new OffHeapField();
+		ExternalField externalField = new ExternalField();
+		try{
+			doBenchmark( "OffHeap explosive", makeTest( offHeapField, rExplosive, 1, 8), nBench );
+			doBenchmark( "External explosive", makeTest( externalField, rExplosive, 1, 8), nBench );
+		}finally{
+			offHeapField.close(); //free the buffers
+			externalField.close(); //delete the cells file
+		}
 	}
 }
@@ -0,0 +1,69 @@
+package org.ratson.pentagrid;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**Detects repetition of states in the sequence of generations.
+ * Fingerprints of the last generations are kept in the map, so checking a new generation costs O(1);
+ * states are compared fully only when fingerprints match.
+ * Only the last maxPeriod states are remembered, so only periods up to maxPeriod are detected.
+ * States must not be modified after they are added.*/
+public abstract class CycleDetector<S> {
+	public static final int NO_PERIOD = -1;
+	private final int maxPeriod;
+	/**Last generation with the given fingerprint, for the remembered generations*/
+	private final HashMap<Long, Integer> generations = new HashMap<Long, Integer>();
+	/**Ring buffers of the fingerprints and states of the last generations*/
+	private final long[] fingerprints;
+	private final Object[] states;
+	private int generation = 0;
+
+	public CycleDetector( int maxPeriod ){
+		if ( maxPeriod < 1 ) throw new RuntimeException( "Maximal period must be positive" );
+		this.maxPeriod = maxPeriod;
+		fingerprints = new long[ maxPeriod ];
+		states = new Object[ maxPeriod ];
+	}
+
+	/**Full comparison of the states with the equal fingerprints*/
+	protected abstract boolean sameState( S a, S b );
+
+	/**Add the next generation. Returns its period, if it repeats one of the remembered generations, or NO_PERIOD*/
+	@SuppressWarnings("unchecked")
+	public int add( long fingerprint, S state ){
+		int period = NO_PERIOD;
+		Integer g = generations.get( fingerprint );
+		if ( g != null && sameState( state, (S)states[ g % maxPeriod ] ) ) period = generation - g;
+		int slot = generation % maxPeriod;
+		if ( generation >= maxPeriod ){
+			//forget the generation, whose slot is reused
+			Integer last = generations.get( fingerprints[slot] );
+			if ( last != null && last == generation - maxPeriod ) generations.remove( fingerprints[slot] );
+		}
+		fingerprints[ slot ] = fingerprint;
+		states[ slot ] = state;
+		generations.put( fingerprint, generation );
+		generation ++;
+		return period;
+	}
+
+	/**State of one of the remembered generations: the last maxPeriod added ones*/
+	@SuppressWarnings("unchecked")
+	public S getState( int g ){
+		if ( g < 0 || g >= generation || g < generation - maxPeriod )
+			throw new RuntimeException( "Generation "+g+" is not remembered" );
+		return (S)states[ g % maxPeriod ];
+	}
+
+	/**Number of the added generations*/
+	public int getGeneration(){
+		return generation;
+	}
+
+	/**Forget all generations*/
+	public void clear(){
+		generations.clear();
+		Arrays.fill( states, null );
+		generation = 0;
+	}
+}
@@ -0,0 +1,103 @@
+package org.ratson.pentagrid;
+
+/**Limits for one evaluation of the field: population of the next generation, time and memory.
+ * Fields, that support budgets (see {@link Field#evaluate(TotalisticRule, EvaluationBudget)}), check it while evaluating
+ * and abort the generation as soon as a limit is exceeded, leaving the field unchanged.
+ * Budget also receives the progress of the evaluation, and can be cancelled from another thread.
+ * One budget can be reused for many generations: the time limit is counted from the start of every evaluation.*/
+public final class EvaluationBudget {
+	/**Evaluation was completed*/
+	public static final int COMPLETED = 0;
+	/**Next generation would have more cells, than allowed*/
+	public static final int ABORT_POPULATION = 1;
+	/**Evaluation took longer, than allowed*/
+	public static final int ABORT_TIME = 2;
+	/**Evaluation needed more memory, than allowed*/
+	public static final int ABORT_MEMORY = 3;
+	/**Evaluation was cancelled*/
+	public static final int ABORT_CANCELLED = 4;
+
+	private int maxPopulation = Integer.MAX_VALUE;
+	private long timeLimitNs = Long.MAX_VALUE;
+	private long maxBytes = Long.MAX_VALUE;
+	private long deadline = Long.MAX_VALUE;
+	private volatile boolean cancelled = false;
+	private volatile double progress = 0;
+	private volatile int lastResult = COMPLETED;
+
+	public EvaluationBudget setMaxPopulation( int maxPopulation ){
+		if ( maxPopulation < 0 ) throw new RuntimeException( "Population limit must be >= 0" );
+		this.maxPopulation = maxPopulation;
+		return this;
+	}
+	public int getMaxPopulation(){ return maxPopulation; }
+
+	/**Longest time of one evaluation*/
+	public EvaluationBudget setTimeLimitMs( long ms ){
+		if ( ms <= 0 ) throw new RuntimeException( "Time limit must be > 0" );
+		this.timeLimitNs = ms * 1000000L;
+		return this;
+	}
+
+	/**Most memory, that evaluation may allocate, in bytes (estimated by the field)*/
+	public EvaluationBudget setMaxBytes( long maxBytes ){
+		if ( maxBytes <= 0 ) throw new RuntimeException( "Memory limit must be > 0" );
+		this.maxBytes = maxBytes;
+		return this;
+	}
+	public long getMaxBytes(){ return maxBytes; }
+
+	/**Called by the field, when evaluation starts*/
+	public void begin(){
+		long now = System.nanoTime();
+		deadline = ( timeLimitNs == Long.MAX_VALUE ) ? Long.MAX_VALUE : now + timeLimitNs;
+		progress = 0;
+	}
+
+	/**Called by the field, when evaluation ends. Returns the result*/
+	public int end( int result ){
+		lastResult = result;
+		if ( result == COMPLETED ) progress = 1;
+		return result;
+	}
+
+	/**Check time, memory and cancellation. Returns COMPLETED, if evaluation can continue, otherwise the abort reason*/
+	public int check( long bytes ){
+		if ( cancelled ) return ABORT_CANCELLED;
+		if ( bytes > maxBytes ) return ABORT_MEMORY;
+		if ( deadline != Long.MAX_VALUE && System.nanoTime() > deadline ) return ABORT_TIME;
+		return COMPLETED;
+	}
+
+	/**Check all limits, including the population (or its lower bound) of the next generation*/
+	public int check( int population, long bytes ){
+		if ( population > maxPopulation ) return ABORT_POPULATION;
+		return check( bytes );
+	}
+
+	/**Cancel current and all following evaluations with this budget. Can be called from any thread*/
+	public void cancel(){
+		cancelled = true;
+	}
+	public boolean isCancelled(){ return cancelled; }
+
+	/**Fraction of the current evaluation, that is done: from 0 to 1*/
+	public double getProgress(){ return progress; }
+	/**Called by the field*/
+	public void setProgress( double progress ){ this.progress = progress; }
+
+	/**Result of the last evaluation*/
+	public int getLastResult(){ return lastResult; }
+
+	/**Human-readable description of the evaluation result*/
+	public static String describe( int result ){
+		switch( result ){
+		case COMPLETED: return "completed";
+		case ABORT_POPULATION: return "population limit exceeded";
+		case ABORT_TIME: return "time limit exceeded";
+		case ABORT_MEMORY: return "memory limit exceeded";
+		case ABORT_CANCELLED: return "cancelled";
+		default: return "unknown result "+result;
+		}
+	}
+}
@@ -27,6 +27,30 @@ public abstract class Field implements Serializable{
 	public abstract Iterable<Path> getAliveCells();
 	/**Evaluate world, using this rule*/
 	public abstract void evaluate( TotalisticRule r );	
+	/**Evaluate world within the budget. Returns {@link EvaluationBudget#COMPLETED}, or the reason of the abort; aborted evaluation leaves the field unchanged.
+	 * Default implementation only checks the budget before the evaluation; fields can override it to check the budget while evaluating.*/
+	public synchronized int evaluate( TotalisticRule r, EvaluationBudget budget ){
+		budget.begin();
+		int result = budget.check( population(), 0 );
+		if ( result != EvaluationBudget.COMPLETED ) return budget.end( result );
+		evaluate( r );
+		return budget.end( EvaluationBudget.COMPLETED );
+	}
+	/**Evaluate world and return the changes of the cells.
+	 * Default implementation compares copies of the field before and after, which costs O(population); fields can override it to record changes while evaluating.*/
+	public synchronized FieldDelta evaluateDelta( TotalisticRule r ){
+		Field before = copy();
+		before.setFieldState( getFieldState() );
+		evaluate( r );
+		return FieldDelta.between( before, this );
+	}
+	/**Evaluate world within the budget and return the changes of the cells, or null, if evaluation was aborted and the field is unchanged*/
+	public synchronized FieldDelta evaluateDelta( TotalisticRule r, EvaluationBudget budget ){
+		Field before = copy();
+		before.setFieldState( getFieldState() );
+		if ( evaluate( r, budget ) != EvaluationBudget.COMPLETED ) return null;
+		return FieldDelta.between( before, this );
+	}
 	/**how many cells there are. For some fields, can be very slow.*/
 	public abstract int population();
 	/**returns cell state*/
@@ -35,5 +59,48 @@ public abstract class Field implements Serializable{
 	public abstract void setCell(Path cell, int newState);
 	/**Create copy of the field*/
 	public abstract Field copy();
+	/**Apply the changes of the delta and set the field state after it. Reset delta replaces all cells; it must carry them.
+	 * Default implementation sets the changed cells one by one; fields, where it is slow, can override it*/
+	public synchronized void applyDelta( FieldDelta d ){
+		if ( d.isReset() ){
+			Field f = d.getResetField();
+			if ( f == null ) throw new RuntimeException( "Delta does not carry the cells of the field" );
+			setCells( f.getAliveCells() );
+			for( Path p : f.getAliveCells() ){
+				int state = f.getCell( p );
+				if ( state != 1 ) setCell( p, state );
+			}
+		}
+		for( int i = 0; i < d.size(); ++i ) setCell( d.getCell( i ), d.getNewState( i ) );
+		setFieldState( d.getFieldStateAfter() );
+	}
+	/**Approximate heap, needed per alive cell while the next generation is evaluated, in bytes: the cell, its dead neighbores and the temporary data.
+	 * Used to predict memory of the next generation (see {@link MemoryGuard})*/
+	public int heapBytesPerCell(){
+		return 1000;
+	}
+	/**Part of the {@link #heapBytesPerCell()}, that keeps the alive cell between the generations. It is already used, when the next generation is evaluated.
+	 * Copy of the field needs about that much per cell*/
+	public int storedBytesPerCell(){
+		return 400;
+	}
+	/**Extra heap per alive cell, needed by {@link #evaluateDelta} over the {@link #evaluate}. Default implementation copies the field and records the changes*/
+	public int deltaBytesPerCell(){
+		return storedBytesPerCell() + 50;
+	}
+	/**Fingerprint of the field cells: XOR of the {@link #cellHash} of all alive cells. Global field state is not included.
+	 * Equal fields have equal fingerprints, different fields have different ones with very high probability.
+	 * Default implementation enumerates all cells; fields can override it to maintain the fingerprint incrementally.*/
+	public synchronized long fingerprint(){
+		long rval = 0;
+		for( Path p : getAliveCells() ) rval ^= cellHash( p, getCell( p ) );
+		return rval;
+	}
+	/**Hash of the cell in the given nonzero state. Field fingerprint changes by XOR with it, when cell is born or dies*/
+	public static long cellHash( Path p, int state ){
+		long h = p.longHashCode();
+		if ( state != 1 ) h ^= state * 0xC2B2AE3D27D4EB4FL;
+		return h;
+	}
 }
 
@@ -0,0 +1,182 @@
+package org.ratson.pentagrid;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**Changes of the field cells over one or several generations: births, deaths and state changes.
+ * Consumers, that follow the field by deltas, do work proportional to the number of changes instead of the population.
+ * Special "reset" delta means, that the field was replaced, or changed too much to record the changes: it carries the copy of the whole new field,
+ * that consumers must re-read, or no cells at all (see {@link #unknown}), followed by the changes, made after it. Delta can also report the current states of the cells without changing them (see {@link #report}).*/
+public final class FieldDelta {
+	private Path[] cells = new Path[ 16 ];
+	private int[] oldStates = new int[ 16 ];
+	private int[] newStates = new int[ 16 ];
+	private int size = 0;
+	private final int fieldStateBefore;
+	private int fieldStateAfter;
+	private int generations = 1;
+	private final boolean reset;
+	/**Copy of the field for the reset delta, or null*/
+	private final Field resetField;
+	/**Positions of the cells in the arrays. Only deltas, created by {@link #merge}, have it: the next merge changes them in place*/
+	private HashMap<Path, Integer> index = null;
+
+	/**Empty delta of one generation, starting from the given global field state*/
+	public FieldDelta( int fieldStateBefore ){
+		this( false, null, fieldStateBefore, 1 );
+	}
+
+	private FieldDelta( boolean reset, Field resetField, int fieldStateBefore, int generations ){
+		this.reset = reset;
+		this.fieldStateBefore = fieldStateBefore;
+		this.fieldStateAfter = fieldStateBefore;
+		this.resetField = resetField;
+		this.generations = generations;
+	}
+
+	/**Delta, that replaces the whole field. Given field must not be modified after it*/
+	public static FieldDelta reset( Field newField ){
+		return new FieldDelta( true, newField, newField.getFieldState(), 0 );
+	}
+
+	/**Reset delta without the cells: field has changed over the given generations, but the changes were not recorded.
+	 * Consumers must re-read the cells, they need, from the source of the deltas*/
+	public static FieldDelta unknown( int fieldStateBefore, int fieldStateAfter, int generations ){
+		FieldDelta rval = new FieldDelta( true, null, fieldStateBefore, generations );
+		rval.fieldStateAfter = fieldStateAfter;
+		return rval;
+	}
+
+	/**Delta between two states of the field. Enumerates all alive cells of both*/
+	public static FieldDelta between( Field before, Field after ){
+		FieldDelta rval = new FieldDelta( before.getFieldState() );
+		for( Path p : before.getAliveCells() ){
+			int oldState = before.getCell( p ), newState = after.getCell( p );
+			if ( oldState != newState ) rval.record( p, oldState, newState );
+		}
+		for( Path p : after.getAliveCells() ){
+			if ( before.getCell( p ) == 0 ) rval.record( p, 0, after.getCell( p ) );
+		}
+		rval.finish( after.getFieldState() );
+		return rval;
+	}
+
+	/**Delta, that reports the current states of the given cells: their old and new states are equal. It joins no generations*/
+	public static FieldDelta report( Field f, Path[] cells ){
+		FieldDelta rval = new FieldDelta( false, null, f.getFieldState(), 0 );
+		for( Path p : cells ){
+			int state = f.getCell( p );
+			rval.record( p, state, state );
+		}
+		return rval;
+	}
+
+	/**Delta of the edit of one cell. It joins no generations*/
+	public static FieldDelta edit( Path cell, int oldState, int newState, int fieldState ){
+		FieldDelta rval = new FieldDelta( false, null, fieldState, 0 );
+		rval.record( cell, oldState, newState );
+		return rval;
+	}
+
+	/**Add change of one cell. Every cell must be recorded only once*/
+	public void record( Path cell, int oldState, int newState ){
+		if ( reset ) throw new RuntimeException( "Reset delta can not record changes" );
+		append( cell, oldState, newState );
+	}
+
+	private void append( Path cell, int oldState, int newState ){
+		if ( index != null ) index.put( cell, size );
+		if ( size == cells.length ){
+			cells = Arrays.copyOf( cells, size * 2 );
+			oldStates = Arrays.copyOf( oldStates, size * 2 );
+			newStates = Arrays.copyOf( newStates, size * 2 );
+		}
+		cells[ size ] = cell;
+		oldStates[ size ] = oldState;
+		newStates[ size ] = newState;
+		size ++;
+	}
+
+	/**Set the global field state after the change*/
+	public void finish( int fieldStateAfter ){
+		this.fieldStateAfter = fieldStateAfter;
+	}
+
+	/**Delta, equivalent to this one, followed by the later one. Changes of the same cell are joined; cells, that returned to the old state, are kept.
+	 * Deltas, passed to the merge, are not changed, except the result of the previous merge: it accumulates the later changes in place,
+	 * so the chain of merges costs O(changes) in total. Therefore, result of the merge must not be shared by several consumers.
+	 * Reset followed by changes remains the reset delta: its field is not copied, the changes are kept after it*/
+	public FieldDelta merge( FieldDelta later ){
+		FieldDelta rval;
+		if ( later.reset ){
+			rval = new FieldDelta( true, later.resetField, later.fieldStateBefore, 0 );
+			rval.index = new HashMap<Path, Integer>();
+		}else if ( index != null ){
+			rval = this;
+		}else{
+			rval = new FieldDelta( reset, resetField, fieldStateBefore, 0 );
+			rval.index = new HashMap<Path, Integer>();
+			rval.add( this );
+		}
+		rval.add( later );
+		rval.fieldStateAfter = later.fieldStateAfter;
+		rval.generations = generations + later.generations;
+		return rval;
+	}
+
+	/**Join changes of the later delta. Called on the accumulating delta*/
+	private void add( FieldDelta later ){
+		for( int i = 0; i < later.size; ++i ){
+			Integer pos = index.get( later.cells[i] );
+			if ( pos != null ){
+				newStates[ pos ] = later.newStates[i];
+			}else{
+				append( later.cells[i], later.oldStates[i], later.newStates[i] );
+			}
+		}
+	}
+
+	/**True, if this delta replaces the whole field*/
+	public boolean isReset(){ return reset; }
+	/**Copy of the new field for the reset delta, null otherwise, or if the cells are unknown. Changes of the delta must be applied after it*/
+	public Field getResetField(){ return resetField; }
+	/**Number of the changed cells. Merged and report deltas also count the cells, whose old and new states are equal*/
+	public int size(){ return size; }
+	public Path getCell( int i ){ return cells[ i ]; }
+	public int getOldState( int i ){ return oldStates[ i ]; }
+	public int getNewState( int i ){ return newStates[ i ]; }
+	public int getFieldStateBefore(){ return fieldStateBefore; }
+	public int getFieldStateAfter(){ return fieldStateAfter; }
+	/**Number of generations, joined in this delta. 0 for the reset delta, that was not merged*/
+	public int getGenerations(){ return generations; }
+
+	/**True, if the delta leaves all cells and the global field state as they were*/
+	public boolean isEmpty(){
+		if ( isReset() || fieldStateBefore != fieldStateAfter ) return false;
+		for( int i = 0; i < size; ++i ) if ( oldStates[i] != newStates[i] ) return false;
+		return true;
+	}
+
+	/**Number of the cells, that were dead and became alive*/
+	public int births(){
+		int rval = 0;
+		for( int i = 0; i < size; ++i ) if ( oldStates[i] == 0 && newStates[i] != 0 ) rval ++;
+		return rval;
+	}
+	/**Number of the cells, that were alive and died*/
+	public int deaths(){
+		int rval = 0;
+		for( int i = 0; i < size; ++i ) if ( oldStates[i] != 0 && newStates[i] == 0 ) rval ++;
+		return rval;
+	}
+	/**Change of the population*/
+	public int populationChange(){
+		return births() - deaths();
+	}
+
+	@Override
+	public String toString(){
+		if ( isReset() ) return "FieldDelta[reset, "+( ( resetField == null ) ? "unknown cells" : "population "+resetField.population() )+", "+size+" changes after it]";
+		return "FieldDelta["+generations+" gen, +"+births()+" -"+deaths()+", "+size+" changes]";
+	}
+}
@@ -0,0 +1,119 @@
+package org.ratson.pentagrid;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
+import java.lang.ref.WeakReference;
+
+/**Predicts the heap, needed for the next generation of the field, and compares it with the free heap.
+ * Next population is the current one times the recent growth rate; every cell needs {@link Field#heapBytesPerCell()} bytes,
+ * but the stored cells of the current generation are already in the used heap, so only the increment over them is predicted.
+ * Recording the changes adds {@link Field#deltaBytesPerCell()} per cell.
+ * Free heap is the maximal heap minus the used heap, as the MemoryMXBean reports it. Used heap includes the garbage,
+ * so it is also estimated from the heap, that was used just after the last collection, and the stored cells, added since it.
+ * When the prediction is critical by both, heap is collected and measured again, but not more often than once per {@link #GC_INTERVAL_NS}.*/
+public final class MemoryGuard {
+	/**Next generation fits comfortably*/
+	public static final int LEVEL_OK = 0;
+	/**Next generation needs more than the half of the free heap*/
+	public static final int LEVEL_WARNING = 1;
+	/**Next generation most probably will not fit*/
+	public static final int LEVEL_CRITICAL = 2;
+	private static final double WARNING_FRACTION = 0.5;
+	private static final double CRITICAL_FRACTION = 0.9;
+	/**Weight of the last generation in the average growth rate*/
+	private static final double GROWTH_WEIGHT = 0.5;
+	/**Minimal interval between the forced collections*/
+	private static final long GC_INTERVAL_NS = 10000000000L;
+
+	private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+	private int lastPopulation = -1;
+	/**Averaged ratio of the populations of the consequent generations*/
+	private double growth = 1;
+	private long predictedPopulation = 0;
+	private long predictedBytes = 0;
+	private long freeBytes = 0;
+	/**Time of the last forced collection, and the field, its population and the used heap just after it. Field is null before the first collection*/
+	private long gcTime = 0;
+	private WeakReference<Field> gcField = null;
+	private int gcPopulation = 0;
+	private long gcUsedBytes = 0;
+
+	/**Forget the history, e.g. after the field was edited*/
+	public void reset(){
+		lastPopulation = -1;
+		growth = 1;
+	}
+
+	/**Record population of the new generation*/
+	public void update( int population ){
+		if ( lastPopulation > 0 ){
+			double g = (double)population / lastPopulation;
+			growth = GROWTH_WEIGHT * g + ( 1 - GROWTH_WEIGHT ) * growth;
+		}
+		lastPopulation = population;
+	}
+
+	/**Free heap in bytes*/
+	public long freeBytes(){
+		MemoryUsage heap = memory.getHeapMemoryUsage();
+		return maxBytes( heap ) - heap.getUsed();
+	}
+
+	private static long maxBytes( MemoryUsage heap ){
+		return ( heap.getMax() < 0 ) ? heap.getCommitted() : heap.getMax();
+	}
+
+	/**Free heap, that is not less than the estimate from the last collection*/
+	private long estimateFreeBytes( Field f, int population ){
+		MemoryUsage heap = memory.getHeapMemoryUsage();
+		long free = maxBytes( heap ) - heap.getUsed();
+		if ( gcField != null && gcField.get() == f ){
+			long used = gcUsedBytes + (long)( population - gcPopulation ) * f.storedBytesPerCell();
+			free = Math.max( free, maxBytes( heap ) - used );
+		}
+		return free;
+	}
+
+	/**Predict memory of the next generation of the field and return the level. Field must be locked by the caller.
+	 * Changes of the generation are recorded, if recordChanges is true (see {@link Field#evaluateDelta})*/
+	public int check( Field f, boolean recordChanges ){
+		int population = f.population();
+		//growing patterns tend to keep growing, so the last ratio is not allowed to hide the average one
+		double rate = Math.max( 1, growth );
+		if ( lastPopulation > 0 ) rate = Math.max( rate, (double)population / lastPopulation );
+		predictedPopulation = (long)Math.ceil( population * rate );
+		predictedBytes = Math.max( 0, predictedPopulation * f.heapBytesPerCell() - (long)population * f.storedBytesPerCell() );
+		if ( recordChanges ) predictedBytes += (long)population * f.deltaBytesPerCell();
+		freeBytes = estimateFreeBytes( f, population );
+		long now = System.nanoTime();
+		if ( level( predictedBytes ) == LEVEL_CRITICAL && ( gcField == null || now - gcTime >= GC_INTERVAL_NS ) ){
+			System.gc(); //free heap may be underestimated because of the garbage
+			gcTime = now;
+			gcField = new WeakReference<Field>( f );
+			gcPopulation = population;
+			gcUsedBytes = memory.getHeapMemoryUsage().getUsed();
+			freeBytes = freeBytes();
+		}
+		return level( predictedBytes );
+	}
+
+	/**Level of the given memory need, compared to the last measured free heap*/
+	public int level( long bytes ){
+		if ( bytes > CRITICAL_FRACTION * freeBytes ) return LEVEL_CRITICAL;
+		if ( bytes > WARNING_FRACTION * freeBytes ) return LEVEL_WARNING;
+		return LEVEL_OK;
+	}
+
+	public long getPredictedPopulation(){ return predictedPopulation; }
+	public long getPredictedBytes(){ return predictedBytes; }
+	/**Free heap at the last check*/
+	public long getFreeBytes(){ return freeBytes; }
+	public double getGrowthRate(){ return growth; }
+
+	/**Description of the last prediction*/
+	public String describe(){
+		return String.format( "next generation of about %d cells needs about %d MB, free heap is %d MB",
+				predictedPopulation, predictedBytes >> 20, freeBytes >> 20 );
+	}
+}
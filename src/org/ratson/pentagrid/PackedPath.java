@@ -0,0 +1,310 @@
+package org.ratson.pentagrid;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**Compact form of the {@link Path}: digits are stored in the bit fields of primitive longs instead of the linked list.
+ *
+ * Digits are stored from the root outward. The first digit (1..10) occupies 4 lower bits of the head word,
+ * each next digit (1..5) occupies 3 bits. Digits are never 0, so zero field marks the end of the path,
+ * the root is 0L, and paths of up to {@link #HEAD_DIGITS} digits are completely described by the head word.
+ * Deeper paths store remaining digits in the overflow array, {@link #WORD_DIGITS} per word.
+ *
+ * Static head* methods work with the head word alone and can be used for the primitive storage of short paths.
+ */
+@SuppressWarnings("serial")
+public final class PackedPath implements Comparable<PackedPath>, Serializable {
+	/**Number of digits, stored in the head word*/
+	public static final int HEAD_DIGITS = 21;
+	/**Number of digits, stored in every overflow word*/
+	public static final int WORD_DIGITS = 21;
+	private static final int ROOT_INDEX = -1;
+	private static final long FIRST_DIGIT_MASK = 0xF;
+	private static final long DIGIT_MASK = 0x7;
+	private static final PackedPath root = new PackedPath( 0L, null, 0 );
+
+	private final long head;
+	/**Digits after HEAD_DIGITS, or null for the short paths*/
+	private final long[] overflow;
+	private final int length;
+
+	private PackedPath( long head, long[] overflow, int length ){
+		this.head = head;
+		this.overflow = overflow;
+		this.length = length;
+	}
+
+	public static PackedPath getRoot(){ return root; }
+
+	/**Packed path for the head word, produced by {@link #getHead()} of a short path*/
+	public static PackedPath fromHead( long head ){
+		if ( head == 0 ) return root;
+		return new PackedPath( head, null, headLength( head ) );
+	}
+
+	/**Pack the linked path*/
+	public static PackedPath fromPath( Path p ){
+		if ( p.isRoot() ) return root;
+		int len = p.length();
+		long h = 0;
+		long[] ovf = (len > HEAD_DIGITS) ? new long[ numOverflowWords(len) ] : null;
+		for( int i = len-1; i >= 0; --i, p = p.getTail() ){
+			if ( i < HEAD_DIGITS )
+				h |= ((long)p.getIndex()) << headShift( i );
+			else
+				ovf[ (i - HEAD_DIGITS) / WORD_DIGITS ] |= ((long)p.getIndex()) << wordShift( i );
+		}
+		return new PackedPath( h, ovf, len );
+	}
+
+	/**Unpack to the linked path*/
+	public Path toPath(){
+		Path rval = Path.getRoot();
+		for( int i = 0; i < length; ++i ){
+			rval = rval.child( getDigit(i) );
+		}
+		return rval;
+	}
+
+	///////////// Primitive operations on the head word /////////////////
+
+	/**True, if the path of given length can be stored in one long*/
+	public static boolean fitsHead( int length ){ return length <= HEAD_DIGITS; }
+
+	/**Pack the path into one long. Path must not be longer than HEAD_DIGITS*/
+	public static long packHead( Path p ){
+		assert fitsHead( p.length() );
+		long h = 0;
+		int len = p.length();
+		for( int i = len-1; i >= 0; --i, p = p.getTail() ){
+			h |= ((long)p.getIndex()) << headShift( i );
+		}
+		return h;
+	}
+
+	/**Number of digits in the head word*/
+	public static int headLength( long head ){
+		if ( head == 0 ) return 0;
+		int bits = 64 - Long.numberOfLeadingZeros( head );
+		if ( bits <= 4 ) return 1;
+		return 1 + (bits - 4 + 2) / 3;
+	}
+
+	/**i'th digit of the head word, counting from the root*/
+	public static int headDigit( long head, int i ){
+		if ( i == 0 ) return (int)(head & FIRST_DIGIT_MASK);
+		return (int)((head >>> headShift(i)) & DIGIT_MASK);
+	}
+
+	/**Head word with the digit appended. Length must be less than HEAD_DIGITS*/
+	public static long headChild( long head, int length, int index ){
+		return head | (((long)index) << headShift( length ));
+	}
+
+	/**Head word with the last digit removed*/
+	public static long headTail( long head, int length ){
+		int i = length - 1;
+		return head & ~(digitMask(i) << headShift(i));
+	}
+
+	/**Last digit of the head word of the non-root path*/
+	public static int headIndex( long head, int length ){
+		return headDigit( head, length-1 );
+	}
+
+	/**Head word with the last digit replaced*/
+	private static long headWithIndex( long head, int length, int index ){
+		int i = length - 1;
+		return (head & ~(digitMask(i) << headShift(i))) | (((long)index) << headShift(i));
+	}
+
+	/**Child indices of the path with this head word go from 1 to this value*/
+	public static int headMaxChildIndex( long head, int length ){
+		if ( length == 0 ) return 10;
+		return ((headIndex( head, length ) & 1) == 1) ? 3 : 5;
+	}
+
+	/**Head word of the {@link #left()} path*/
+	public static long headLeft( long head, int length ){
+		if ( length == 0 ) return head;
+		int index = headIndex( head, length );
+		if ( length == 1 ) return headWithIndex( head, length, org.ratson.util.Util.cycle10( index - 1 ) );
+		if ( index >= 2 ) return headWithIndex( head, length, index - 1 );
+		long tail = headLeft( headTail( head, length ), length-1 );
+		return headChild( tail, length-1, headMaxChildIndex( tail, length-1 ) );
+	}
+
+	/**Head word of the {@link #right()} path*/
+	public static long headRight( long head, int length ){
+		if ( length == 0 ) return head;
+		int index = headIndex( head, length );
+		if ( length == 1 ) return headWithIndex( head, length, org.ratson.util.Util.cycle10( index + 1 ) );
+		long tail = headTail( head, length );
+		if ( index + 1 <= headMaxChildIndex( tail, length-1 ) ) return headWithIndex( head, length, index + 1 );
+		return headChild( headRight( tail, length-1 ), length-1, 1 );
+	}
+
+	private static int headShift( int i ){ return (i == 0) ? 0 : 4 + 3*(i-1); }
+	private static int wordShift( int i ){ return 3 * ((i - HEAD_DIGITS) % WORD_DIGITS); }
+	private static long digitMask( int i ){ return (i == 0) ? FIRST_DIGIT_MASK : DIGIT_MASK; }
+	private static int numOverflowWords( int length ){
+		return (length - HEAD_DIGITS + WORD_DIGITS - 1) / WORD_DIGITS;
+	}
+
+	///////////// Accessors /////////////////
+
+	public boolean isRoot(){ return length == 0; }
+	public int length(){ return length; }
+	/**Head word. For the paths not longer than HEAD_DIGITS it uniquely identifies the path*/
+	public long getHead(){ return head; }
+	/**True, if whole path is stored in the head word*/
+	public boolean isShort(){ return overflow == null; }
+
+	/**i'th digit, counting from the root. Index must be between 0 and length()-1*/
+	public int getDigit( int i ){
+		if ( i < HEAD_DIGITS ) return headDigit( head, i );
+		return (int)((overflow[ (i - HEAD_DIGITS) / WORD_DIGITS ] >>> wordShift(i)) & DIGIT_MASK);
+	}
+	/**Last digit, same as {@link Path#getIndex()}*/
+	public int getIndex(){
+		if ( isRoot() ) return ROOT_INDEX;
+		return getDigit( length-1 );
+	}
+	public boolean odd(){ return (getIndex() & 1) == 1; }
+	public boolean even(){ return ! odd(); }
+
+	/**Child paths can have indices from 1 to this value*/
+	public int maxChildIndex(){
+		if (isRoot()) return 10;
+		return odd() ? 3 : 5;
+	}
+
+	///////////// Path transformations /////////////////
+
+	/**One of this child paths. Index is not checked, but must be between 1 and maxChildIndex()*/
+	public PackedPath child( int index ){
+		if ( length < HEAD_DIGITS )
+			return new PackedPath( headChild( head, length, index ), null, length+1 );
+		int words = numOverflowWords( length + 1 );
+		long[] ovf = new long[ words ];
+		if ( overflow != null ) System.arraycopy( overflow, 0, ovf, 0, overflow.length );
+		ovf[ words - 1 ] |= ((long)index) << wordShift( length );
+		return new PackedPath( head, ovf, length + 1 );
+	}
+
+	/**Parent path. Returns null for the root, as {@link Path#getTail()} does*/
+	public PackedPath getTail(){
+		if ( isRoot() ) return null;
+		if ( length <= HEAD_DIGITS )
+			return new PackedPath( headTail( head, length ), null, length-1 );
+		if ( length == HEAD_DIGITS + 1 )
+			return new PackedPath( head, null, length-1 );
+		int words = numOverflowWords( length - 1 );
+		long[] ovf = Arrays.copyOf( overflow, words );
+		int i = length - 1;
+		int w = (i - HEAD_DIGITS) / WORD_DIGITS;
+		if ( w < words ) ovf[ w ] &= ~(DIGIT_MASK << wordShift(i));
+		return new PackedPath( head, ovf, length-1 );
+	}
+
+	/**Same path, with the last digit replaced*/
+	private PackedPath withIndex( int index ){
+		int i = length - 1;
+		if ( i < HEAD_DIGITS ){
+			long mask = digitMask(i) << headShift(i);
+			return new PackedPath( (head & ~mask) | (((long)index) << headShift(i)), overflow, length );
+		}
+		long[] ovf = overflow.clone();
+		int w = (i - HEAD_DIGITS) / WORD_DIGITS;
+		ovf[ w ] = (ovf[w] & ~(DIGIT_MASK << wordShift(i))) | (((long)index) << wordShift(i));
+		return new PackedPath( head, ovf, length );
+	}
+
+	PackedPath leftmostChild(){ return child( 1 ); }
+	PackedPath rightmostChild(){ return child( maxChildIndex() ); }
+
+	public PackedPath left(){
+		if (isRoot()) return this;
+		int index = getIndex();
+		if ( length == 1 ) return withIndex( org.ratson.util.Util.cycle10( index - 1 ) );
+		if ( index >= 2 ) return withIndex( index - 1 );
+		return getTail().left().rightmostChild();
+	}
+
+	public PackedPath right(){
+		if (isRoot()) return this;
+		int index = getIndex();
+		if ( length == 1 ) return withIndex( org.ratson.util.Util.cycle10( index + 1 ) );
+		PackedPath tail = getTail();
+		if ( index + 1 <= tail.maxChildIndex() ) return withIndex( index + 1 );
+		return tail.right().leftmostChild();
+	}
+
+	///////////// Hashing and comparison /////////////////
+
+	/**64-bit hash of the path, suitable for the fingerprinting of cells*/
+	public long fingerprint(){
+		long h = org.ratson.util.Util.mix64( head + length );
+		if ( overflow != null ){
+			for (int i = 0; i < overflow.length; i++) {
+				h = org.ratson.util.Util.mix64( h ^ overflow[i] );
+			}
+		}
+		return h;
+	}
+
+	@Override
+	public int hashCode() {
+		long h = fingerprint();
+		return (int)(h ^ (h >>> 32));
+	}
+
+	@Override
+	public boolean equals(Object arg) {
+		if ( arg == this ) return true;
+		if ( ! (arg instanceof PackedPath) ) return false;
+		PackedPath p = (PackedPath)arg;
+		return length == p.length && head == p.head && Arrays.equals( overflow, p.overflow );
+	}
+
+	/**Fast comparison in the fixed, but not lexicographic order*/
+	@Override
+	public int compareTo(PackedPath o) {
+		if ( length != o.length ) return (length < o.length) ? -1 : 1;
+		if ( head != o.head ) return (head < o.head) ? -1 : 1;
+		if ( overflow != null ){
+			for (int i = 0; i < overflow.length; i++) {
+				if ( overflow[i] != o.overflow[i] ) return (overflow[i] < o.overflow[i]) ? -1 : 1;
+			}
+		}
+		return 0;
+	}
+
+	/**Same format, as {@link Path#toString()}: digits from the last to the first*/
+	@Override
+	public String toString() {
+		StringBuffer buf = new StringBuffer("[");
+		for( int i = length-1; i >= 0; --i ){
+			if ( i != length-1 ) buf.append(",");
+			buf.append( getDigit(i) );
+		}
+		buf.append("]");
+		return buf.toString();
+	}
+
+	public static void main(String[] args) {
+		System.out.println("Testing packing of the paths...");
+		Path p = Path.getRoot();
+		for( int i = 0; i < 50; ++i ){
+			PackedPath pp = PackedPath.fromPath( p );
+			if ( !pp.toPath().equals( p ) || pp.length() != p.length() || !pp.toString().equals( p.toString() ))
+				System.err.println( "Error packing "+p+" -> "+pp );
+			if ( !pp.left().toPath().equals( p.left() ) || !pp.right().toPath().equals( p.right() ))
+				System.err.println( "Error navigating "+p );
+			if ( !p.isRoot() && !pp.getTail().equals( PackedPath.fromPath( p.getTail() )))
+				System.err.println( "Error getting tail of "+p );
+			p = p.child( (i % p.maxChildIndex()) + 1 );
+		}
+		System.out.println("Test done!");
+	}
+}
@@ -1,19 +1,33 @@
 package org.ratson.pentagrid;
+import java.io.ObjectStreamException;
 import java.io.Serializable;
+import java.lang.ref.WeakReference;
 
-@SuppressWarnings("serial")
+/**Path from the root to the cell.
+ * Paths are canonical: there is only one instance of every path, so they can be compared by reference.
+ * Every node lazily caches weak references to its children; nodes, that are not referenced anymore, are collected by GC.
+ */
 public final class Path implements Comparable<Path>, Serializable{
+	/**Same as was generated for the first version, to read old files*/
+	private static final long serialVersionUID = 825448038447453851L;
 	private static final int ROOT_INDEX = -1;
 	private static final Path root = new Path( null, ROOT_INDEX );
 	private final int index;
 	private final int precalculatedHash;
+	/**Well mixed 64-bit hash. Not serialized: deserialized paths are replaced by the canonical ones*/
+	private final transient long longHash;
+	private final int length;
 	private final Path tail;
+	/**Cached children, indexed by child index - 1. Lazily created, guarded by this for writing*/
+	private transient WeakReference<Path>[] children = null;
 	
 	/**User should not call this constructor, use getChild and createRoot*/
 	private Path( Path tail, int idx ){
 		this.tail = tail;
 		index = idx;
+		length = (tail == null) ? 0 : tail.length + 1;
 		precalculatedHash = calcHashCode();
+		longHash = calcLongHash();
 	}
 	
 	public boolean odd(){ return (index & 1) == 1; }
@@ -39,6 +53,15 @@ public final class Path implements Comparable<Path>, Serializable{
 		else return index + 31 * tail.hashCode();
 	}
 	
+	/**64-bit hash of the tail hash and the index, with the SplitMix64 finalizer*/
+	private long calcLongHash(){
+		long h = isRoot() ? 0 : tail.longHash;
+		h += ( index + 2 ) * 0x9E3779B97F4A7C15L;
+		h = ( h ^ (h >>> 30) ) * 0xBF58476D1CE4E5B9L;
+		h = ( h ^ (h >>> 27) ) * 0x94D049BB133111EBL;
+		return h ^ (h >>> 31);
+	}
+	
 	/**Child paths can have indices from 1 to this value*/
 	public int maxChildIndex(){
 		if (isRoot()){
@@ -52,26 +75,54 @@ public final class Path implements Comparable<Path>, Serializable{
 		}
 	}
 	/**One of this child paths. Index is not checked, but must be between 1 and maxChildIndex()*/
-	public Path child( int index ){ return new Path( this, index ); }
+	public Path child( int index ){
+		//Unsynchronized read can only see the cached child or null, null is re-checked under the lock.
+		WeakReference<Path>[] cache = children;
+		if ( cache != null ){
+			WeakReference<Path> ref = cache[ index-1 ];
+			if ( ref != null ){
+				Path c = ref.get();
+				if ( c != null ) return c;
+			}
+		}
+		return internChild( index );
+	}
+	
+	private synchronized Path internChild( int index ){
+		if ( children == null )
+			children = newChildCache( maxChildIndex() );
+		WeakReference<Path> ref = children[ index-1 ];
+		Path c = (ref == null) ? null : ref.get();
+		if ( c == null ){
+			c = new Path( this, index );
+			children[ index-1 ] = new WeakReference<Path>( c );
+		}
+		return c;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static WeakReference<Path>[] newChildCache( int size ){
+		return (WeakReference<Path>[]) new WeakReference<?>[ size ];
+	}
+	
+	/**Keep paths canonical after deserialization*/
+	private Object readResolve() throws ObjectStreamException{
+		if ( isRoot() ) return root;
+		return tail.child( index );
+	}
 	
+	/**Paths are canonical, so comparing references is enough*/
 	@Override
 	public boolean equals(Object arg) {
-		if ( arg == this ) return true;
-		if ( ! (arg instanceof Path) ) return false;
-		Path p = (Path)arg;
-		
-		if (isRoot())
-			return p.isRoot();
-		else{
-			if ( p.isRoot() ) return false;
-			if ( p.hashCode() != hashCode() ) return false;
-			return (this.index == p.index) && tail.equals(p.tail);
-		}
+		return arg == this;
 	}
 	
 	@Override
 	public int hashCode() { return precalculatedHash; }
 	
+	/**64-bit hash code. Unlike {@link #hashCode}, collisions of different paths are practically impossible*/
+	public long longHashCode() { return longHash; }
+	
 	@Override
 	public String toString() {
 		StringBuffer buf = new StringBuffer("[");
@@ -91,30 +142,41 @@ public final class Path implements Comparable<Path>, Serializable{
 	Path leftmostChild(){ return child( 1 ); }
 	Path rightmostChild(){ return child( maxChildIndex() ); }
 	
+	/**Left neighbore on the same level.
+	 * Iterative: borrows from the upper levels while the digit is 1, then appends rightmost children back*/
 	public Path left(){
 		// []
 		if (isRoot()) return this;
-		// [a]
-		else if (tail.isRoot()){
-			return tail.child( org.ratson.util.Util.cycle10( index - 1 ) );
-		}
-		// (h:rest)
-		else{
-			if ( index >= 2 ) return tail.child( index - 1 );
-			else return tail.left().rightmostChild();
+		Path cur = this;
+		int levels = 0;
+		// (1:rest), borrow from the upper level
+		while( cur.index == 1 && !cur.tail.isRoot() ){
+			cur = cur.tail;
+			levels ++;
 		}
+		if ( cur.tail.isRoot() ) // [a]
+			cur = cur.tail.child( org.ratson.util.Util.cycle10( cur.index - 1 ) );
+		else
+			cur = cur.tail.child( cur.index - 1 );
+		for( ; levels > 0; --levels ) cur = cur.rightmostChild();
+		return cur;
 	}
 	
+	/**Right neighbore on the same level. Iterative, same as left()*/
 	public Path right(){
 		if ( isRoot()) return this;
-		else if ( tail.isRoot() ){
-			return tail.child( org.ratson.util.Util.cycle10(index+1));
-		}else{
-			if (index + 1 <= tail.maxChildIndex())
-				return tail.child( index+1 );
-			else
-				return tail.right().leftmostChild();
+		Path cur = this;
+		int levels = 0;
+		while( !cur.tail.isRoot() && cur.index == cur.tail.maxChildIndex() ){
+			cur = cur.tail;
+			levels ++;
 		}
+		if ( cur.tail.isRoot() )
+			cur = cur.tail.child( org.ratson.util.Util.cycle10( cur.index + 1 ) );
+		else
+			cur = cur.tail.child( cur.index + 1 );
+		for( ; levels > 0; --levels ) cur = cur.leftmostChild();
+		return cur;
 	}
 	
 	public static void main(String[] args) {
@@ -149,8 +211,15 @@ public final class Path implements Comparable<Path>, Serializable{
 	}
 	/**Returns path length. Approximately relates to the distance to center.*/
 	public int length() {
-		if (isRoot()) return 0;
-		return 1 + getTail().length(); 
+		return length;
+	}
+	
+	/**Ancestor of this path (or the path itself), having the given length*/
+	public Path ancestor( int len ){
+		assert len >= 0 && len <= length;
+		Path rval = this;
+		while( rval.length > len ) rval = rval.tail;
+		return rval;
 	}
 
 	/**Slow recursive comparison. */
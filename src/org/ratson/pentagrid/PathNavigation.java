@@ -9,63 +9,204 @@ public class PathNavigation {
 	/**Calculate 10-neighborhood of a point, specified by path*/
 	public static Path[] neigh10( Path p ){
 		Path[] neigh = new Path[10];
-		
+		neigh10( p, neigh );
+		return neigh;
+	}
+	
+	/* Neighborhood automaton.
+	 * Neighbores of a cell depend only on its last digit and the kind of its parent (root, odd or even), 
+	 * except for the cases when left/right moves carry to the upper level.
+	 * For every (parent kind, index) pair, table stores list of operations, producing 10 neighbores.
+	 * Carries are resolved by the iterative Path.left() and Path.right(), all other operations are
+	 * lookups of the cached children, so enumeration does not allocate anything in the steady state.
+	 */
+	private static final int PARENT_ROOT = 0, PARENT_ODD = 1, PARENT_EVEN = 2;
+	//operation codes. Operation is stored as (code<<4) | argument
+	private static final int OP_CHILD = 1; // p.child(arg)
+	private static final int OP_SIBLING = 2; // p.getTail().child(arg), no carry
+	private static final int OP_TAIL = 3; // p.getTail()
+	private static final int OP_LEFT = 4; // left path
+	private static final int OP_RIGHT = 5; // right path
+	private static final int OP_LEFT_RIGHTMOST = 6; // rightmostChild $ left path
+	private static final int OP_RIGHT_LEFTMOST = 7; // leftmostChild $ right path
+	private static final int OP_TAIL_LEFT = 8; // left $ rest
+	private static final int OP_TAIL_RIGHT = 9; // right $ rest
+	private static final int OP_CARRY = 10; // left or right move, carrying to the upper level
+	
+	/**Neighbore operations, indexed by [parent kind][index]*/
+	private static final int[][][] NEIGH_OPS = new int[3][11][];
+	/**Operations, giving left and right paths, indexed by [parent kind][index]*/
+	private static final int[][] LEFT_OPS = new int[3][11], RIGHT_OPS = new int[3][11];
+	
+	private static int op( int code, int arg ){ return (code << 4) | arg; }
+	private static int op( int code ){ return code << 4; }
+	
+	static{
+		for( int kind = PARENT_ROOT; kind <= PARENT_EVEN; ++kind ){
+			int maxIndex = (kind == PARENT_ROOT) ? 10 : (kind == PARENT_ODD ? 3 : 5);
+			for( int idx = 1; idx <= maxIndex; ++idx ){
+				if ( kind == PARENT_ROOT ){
+					LEFT_OPS[kind][idx] = op( OP_SIBLING, org.ratson.util.Util.cycle10( idx-1 ) );
+					RIGHT_OPS[kind][idx] = op( OP_SIBLING, org.ratson.util.Util.cycle10( idx+1 ) );
+				}else{
+					LEFT_OPS[kind][idx] = (idx >= 2) ? op( OP_SIBLING, idx-1 ) : op( OP_CARRY );
+					RIGHT_OPS[kind][idx] = (idx+1 <= maxIndex) ? op( OP_SIBLING, idx+1 ) : op( OP_CARRY );
+				}
+				
+				if ( (idx & 1) == 1 ){
+					int nextRightmost, nextLeftmost;
+					if ( kind == PARENT_ROOT ){
+						nextRightmost = op( OP_SIBLING, org.ratson.util.Util.cycle10( idx-2 ) );
+						nextLeftmost = op( OP_SIBLING, org.ratson.util.Util.cycle10( idx+2 ) );
+					}else{
+						nextRightmost = (idx > 2) ? op( OP_SIBLING, idx-2 ) : op( OP_TAIL_LEFT );
+						nextLeftmost = (idx+2 <= maxIndex) ? op( OP_SIBLING, idx+2 ) : op( OP_TAIL_RIGHT );
+					}
+					NEIGH_OPS[kind][idx] = new int[]{
+						op(OP_CHILD,1), op(OP_CHILD,3), op(OP_LEFT), op(OP_RIGHT), op(OP_TAIL),
+						op(OP_CHILD,2), op(OP_LEFT_RIGHTMOST), op(OP_RIGHT_LEFTMOST), nextRightmost, nextLeftmost };
+				}else{
+					NEIGH_OPS[kind][idx] = new int[]{
+						op(OP_CHILD,1), op(OP_CHILD,3), op(OP_CHILD,5), op(OP_LEFT), op(OP_RIGHT),
+						op(OP_CHILD,2), op(OP_CHILD,4), op(OP_TAIL), op(OP_LEFT_RIGHTMOST), op(OP_RIGHT_LEFTMOST) };
+				}
+			}
+		}
+	}
+	
+	/**Calculate 10-neighborhood of a point, writing it to the given array of size 10 (at least)*/
+	public static void neigh10( Path p, Path[] neigh ){
 		// neighbores of a root: simple case
 		if ( p.isRoot() ){
 			for( int i = 1; i <= 10; ++i ) neigh[i-1] = p.child(i);
-			return neigh;
+			return;
 		}
-		//not root
-		if ( p.odd() ){
-			neigh[0] = p.child(1); //1:path --n5
-			neigh[1] = p.child(3); // , 3:path --n5
-			neigh[2] = p.left(); // , left path --5
-			neigh[3] = p.right(); // , right path --5
-			neigh[4] = p.getTail(); // , rest --5
-			neigh[5] = p.child(2);// , 2:path --OK
-			neigh[6] = p.left().rightmostChild(); // , rightmostChild $ left path
-			neigh[7] = p.right().leftmostChild(); // , leftmostChild $ right path
-			neigh[8] = nextRightmostChild( p ); // , nextRightmostChild path --position: 4
-			neigh[9] = nextLeftmostChild( p ); // , nextLeftmostChild path --position: 8
-		}else{ //if even
-			neigh[0] = p.child(1);//   1: path
-			neigh[1] = p.child(3);//  , 3: path
-			neigh[2] = p.child(5);//  , 5: path
-			neigh[3] = p.left();//  , left path
-			neigh[4] = p.right();//  , right path
-			neigh[5] = p.child(2);//  , 2: path
-			neigh[6] = p.child(4);//  , 4: path	
-			neigh[7] = p.getTail();//  , rest
-			neigh[8] = p.left().rightmostChild();//  , rightmostChild $ left path
-			neigh[9] = p.right().leftmostChild();//  , leftmostChild $ right path ]
+		Path tail = p.getTail();
+		int kind = tail.isRoot() ? PARENT_ROOT : (tail.odd() ? PARENT_ODD : PARENT_EVEN );
+		int idx = p.getIndex();
+		int leftOp = LEFT_OPS[kind][idx], rightOp = RIGHT_OPS[kind][idx];
+		Path left = ((leftOp >> 4) == OP_CARRY) ? p.left() : tail.child( leftOp & 0xF );
+		Path right = ((rightOp >> 4) == OP_CARRY) ? p.right() : tail.child( rightOp & 0xF );
+		
+		int[] ops = NEIGH_OPS[kind][idx];
+		for (int i = 0; i < 10; i++) {
+			int arg = ops[i] & 0xF;
+			switch( ops[i] >> 4 ){
+			case OP_CHILD: neigh[i] = p.child( arg ); break;
+			case OP_SIBLING: neigh[i] = tail.child( arg ); break;
+			case OP_TAIL: neigh[i] = tail; break;
+			case OP_LEFT: neigh[i] = left; break;
+			case OP_RIGHT: neigh[i] = right; break;
+			case OP_LEFT_RIGHTMOST: neigh[i] = left.rightmostChild(); break;
+			case OP_RIGHT_LEFTMOST: neigh[i] = right.leftmostChild(); break;
+			case OP_TAIL_LEFT: neigh[i] = tail.left(); break;
+			case OP_TAIL_RIGHT: neigh[i] = tail.right(); break;
+			default: throw new RuntimeException("Bad neighbore operation");
+			}
 		}
-		for (int i = 0; i < neigh.length; i++) assert( neigh[i] != null );
+	}
+	
+	/**Same as {@link #neigh10(Path)}, but for the packed paths*/
+	public static PackedPath[] neigh10( PackedPath p ){
+		PackedPath[] neigh = new PackedPath[10];
+		neigh10( p, neigh );
 		return neigh;
 	}
 	
-	private static Path nextLeftmostChild(Path p) {
-		assert( (!p.isRoot()) && p.odd() );
-		if( p.getTail().isRoot() ) 
-			return p.getTail().child( org.ratson.util.Util.cycle10( p.getIndex() + 2) );
-		else{ //if not root
-			if (p.getIndex() + 2 <= p.getTail().maxChildIndex() ) //cycle is possible
-				return p.getTail().child( p.getIndex() +  2 );
-			else //no cycle is possible
-				return p.getTail().right();
+	/**Same as {@link #neigh10(Path, Path[])}, but for the packed paths*/
+	public static void neigh10( PackedPath p, PackedPath[] neigh ){
+		if ( p.isRoot() ){
+			for( int i = 1; i <= 10; ++i ) neigh[i-1] = p.child(i);
+			return;
+		}
+		PackedPath left = p.left(), right = p.right();
+		if ( p.odd() ){
+			neigh[0] = p.child(1);
+			neigh[1] = p.child(3);
+			neigh[2] = left;
+			neigh[3] = right;
+			neigh[4] = p.getTail();
+			neigh[5] = p.child(2);
+			neigh[6] = left.rightmostChild();
+			neigh[7] = right.leftmostChild();
+			neigh[8] = nextRightmostChild( p );
+			neigh[9] = nextLeftmostChild( p );
+		}else{
+			neigh[0] = p.child(1);
+			neigh[1] = p.child(3);
+			neigh[2] = p.child(5);
+			neigh[3] = left;
+			neigh[4] = right;
+			neigh[5] = p.child(2);
+			neigh[6] = p.child(4);
+			neigh[7] = p.getTail();
+			neigh[8] = left.rightmostChild();
+			neigh[9] = right.leftmostChild();
 		}
 	}
 	
-	private static Path nextRightmostChild(Path p) {
-		assert( (!p.isRoot()) && p.odd() );
-		if( p.getTail().isRoot() ) 
-			return p.getTail().child( org.ratson.util.Util.cycle10( p.getIndex() - 2) );
-		else{//if not root
-			if (p.getIndex() > 2 ) //cycle is possible
-				return p.getTail().child( p.getIndex() - 2 );
-			else //no cycle is possible
-				return p.getTail().left();
-			
+	/**Same as {@link #neigh10(PackedPath, PackedPath[])}, but for the head words (see {@link PackedPath#packHead}), without creating objects.
+	 * Path must be shorter than {@link PackedPath#HEAD_DIGITS}, so that its children fit the head word too*/
+	public static void neigh10( long head, int length, long[] neigh ){
+		if ( length == 0 ){
+			for( int i = 1; i <= 10; ++i ) neigh[i-1] = PackedPath.headChild( head, 0, i );
+			return;
 		}
+		long left = PackedPath.headLeft( head, length ), right = PackedPath.headRight( head, length );
+		long leftRightmost = PackedPath.headChild( left, length, PackedPath.headMaxChildIndex( left, length ) );
+		long rightLeftmost = PackedPath.headChild( right, length, 1 );
+		long tail = PackedPath.headTail( head, length );
+		int index = PackedPath.headIndex( head, length );
+		if ( (index & 1) == 1 ){
+			neigh[0] = PackedPath.headChild( head, length, 1 );
+			neigh[1] = PackedPath.headChild( head, length, 3 );
+			neigh[2] = left;
+			neigh[3] = right;
+			neigh[4] = tail;
+			neigh[5] = PackedPath.headChild( head, length, 2 );
+			neigh[6] = leftRightmost;
+			neigh[7] = rightLeftmost;
+			//next rightmost and next leftmost children of the tail
+			if ( length == 1 ){
+				neigh[8] = PackedPath.headChild( tail, 0, org.ratson.util.Util.cycle10( index - 2 ) );
+				neigh[9] = PackedPath.headChild( tail, 0, org.ratson.util.Util.cycle10( index + 2 ) );
+			}else{
+				neigh[8] = ( index > 2 ) ? PackedPath.headChild( tail, length-1, index - 2 ) : PackedPath.headLeft( tail, length-1 );
+				neigh[9] = ( index + 2 <= PackedPath.headMaxChildIndex( tail, length-1 ) ) ?
+						PackedPath.headChild( tail, length-1, index + 2 ) : PackedPath.headRight( tail, length-1 );
+			}
+		}else{
+			neigh[0] = PackedPath.headChild( head, length, 1 );
+			neigh[1] = PackedPath.headChild( head, length, 3 );
+			neigh[2] = PackedPath.headChild( head, length, 5 );
+			neigh[3] = left;
+			neigh[4] = right;
+			neigh[5] = PackedPath.headChild( head, length, 2 );
+			neigh[6] = PackedPath.headChild( head, length, 4 );
+			neigh[7] = tail;
+			neigh[8] = leftRightmost;
+			neigh[9] = rightLeftmost;
+		}
+	}
+	
+	private static PackedPath nextLeftmostChild(PackedPath p) {
+		PackedPath tail = p.getTail();
+		if( tail.isRoot() ) 
+			return tail.child( org.ratson.util.Util.cycle10( p.getIndex() + 2) );
+		else if (p.getIndex() + 2 <= tail.maxChildIndex() )
+			return tail.child( p.getIndex() +  2 );
+		else
+			return tail.right();
+	}
+	
+	private static PackedPath nextRightmostChild(PackedPath p) {
+		PackedPath tail = p.getTail();
+		if( tail.isRoot() ) 
+			return tail.child( org.ratson.util.Util.cycle10( p.getIndex() - 2) );
+		else if (p.getIndex() > 2 )
+			return tail.child( p.getIndex() - 2 );
+		else
+			return tail.left();
 	}
 	
 	//Miscelanneous rotations
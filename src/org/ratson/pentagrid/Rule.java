@@ -43,6 +43,14 @@ public class Rule implements TotalisticRule, Serializable {
 				parseRule_str2intArray(sAlive) );
 		return rval;
 	}
+	/**True, if dead cell with the given number of alive neighbores becomes alive*/
+	public boolean isBorn( int numNeighbores ){
+		return born[ numNeighbores ];
+	}
+	/**True, if alive cell with the given number of alive neighbores stays alive*/
+	public boolean isSurviving( int numNeighbores ){
+		return live[ numNeighbores ];
+	}
 	/**Returns True, if vacuum (empty field) is stable under this rule*/
 	public boolean isVacuumStable(){
 		return born[0] == false;
@@ -0,0 +1,162 @@
+package org.ratson.pentagrid;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.ratson.pentagrid.RuleSearcher.Result;
+
+/**Append-only file with the results of the rule search, indexed by the rule index (see {@link Rule#fromIndex}).
+ * File starts with the header, followed by the records: rule index (int), number of results (byte), and for every result
+ * its type (byte) and steps (int).
+ * Records are appended in batches, and every batch is forced to the disk, so the store itself is the checkpoint of the search:
+ * when the search is restarted, rules that are already in the store are skipped.
+ * Incomplete record at the end of the file (left by the killed process) is dropped on opening.
+ * Only offsets of the records and the sets of the result types are kept in memory.*/
+public final class RuleResultStore {
+	public static final int NUM_RULES = 1 << RuleSearcher.PartialRule.NUM_BITS;
+	private static final int MAGIC = 0x50475253;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 8;
+	private static final int MAX_RESULTS = 255;
+
+	private final RandomAccessFile file;
+	/**Offset of the record of every rule, or -1 if rule is not tried yet*/
+	private final long[] offsets = new long[ NUM_RULES ];
+	/**Bit t is set, if rule has result of the type t*/
+	private final int[] typeMasks = new int[ NUM_RULES ];
+	private int numDone = 0;
+
+	/**Open existing store, or create new one*/
+	public RuleResultStore( File f ) throws IOException{
+		Arrays.fill( offsets, -1 );
+		file = new RandomAccessFile( f, "rw" );
+		try{
+			if ( file.length() < HEADER_SIZE ){
+				file.setLength( 0 );
+				file.writeInt( MAGIC );
+				file.writeInt( VERSION );
+				file.getFD().sync();
+			}else{
+				if ( file.readInt() != MAGIC || file.readInt() != VERSION )
+					throw new IOException( "File "+f+" is not a rule results store" );
+				load();
+			}
+		}catch( IOException e ){
+			file.close();
+			throw e;
+		}
+	}
+
+	/**Read all complete records, and cut the incomplete tail*/
+	private void load() throws IOException{
+		long length = file.length();
+		byte[] data = new byte[ (int)(length - HEADER_SIZE) ];
+		file.seek( HEADER_SIZE );
+		file.readFully( data );
+		int pos = 0;
+		while( pos + 5 <= data.length ){
+			int count = data[ pos+4 ] & 0xff;
+			if ( pos + 5 + 5*count > data.length ) break;
+			int ruleIndex = readInt( data, pos );
+			if ( ruleIndex < 0 || ruleIndex >= NUM_RULES ) throw new IOException( "Wrong rule index in the store: "+ruleIndex );
+			int mask = 0;
+			for( int i = 0; i < count; ++i ) mask |= 1 << data[ pos + 5 + 5*i ];
+			if ( offsets[ ruleIndex ] < 0 ) numDone ++;
+			offsets[ ruleIndex ] = HEADER_SIZE + pos;
+			typeMasks[ ruleIndex ] = mask;
+			pos += 5 + 5*count;
+		}
+		if ( pos != data.length ){
+			System.out.println( "Dropping incomplete record at the end of the results store" );
+			file.setLength( HEADER_SIZE + pos );
+		}
+	}
+
+	private static int readInt( byte[] data, int pos ){
+		return ( (data[pos] & 0xff) << 24 ) | ( (data[pos+1] & 0xff) << 16 ) | ( (data[pos+2] & 0xff) << 8 ) | ( data[pos+3] & 0xff );
+	}
+
+	/**Append results of the given rules and force them to the disk*/
+	public synchronized void append( int[] ruleIndices, Result[][] results ) throws IOException{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream( bytes );
+		int[] positions = new int[ ruleIndices.length ];
+		for( int i = 0; i < ruleIndices.length; ++i ){
+			Result[] res = results[i];
+			if ( res.length > MAX_RESULTS ) throw new RuntimeException( "Too many results for one rule: "+res.length );
+			positions[i] = out.size();
+			out.writeInt( ruleIndices[i] );
+			out.writeByte( res.length );
+			for( Result r : res ){
+				out.writeByte( r.type );
+				out.writeInt( r.steps );
+			}
+		}
+		out.close();
+		long start = file.length();
+		file.seek( start );
+		file.write( bytes.toByteArray() );
+		file.getFD().sync();
+		for( int i = 0; i < ruleIndices.length; ++i ){
+			int ruleIndex = ruleIndices[i];
+			if ( offsets[ ruleIndex ] < 0 ) numDone ++;
+			offsets[ ruleIndex ] = start + positions[i];
+			int mask = 0;
+			for( Result r : results[i] ) mask |= 1 << r.type;
+			typeMasks[ ruleIndex ] = mask;
+		}
+	}
+
+	/**True, if results of the rule are stored*/
+	public synchronized boolean contains( int ruleIndex ){
+		return offsets[ ruleIndex ] >= 0;
+	}
+
+	/**Number of the rules with stored results*/
+	public synchronized int size(){
+		return numDone;
+	}
+
+	/**Stored results of the rule, or null*/
+	public synchronized Result[] get( int ruleIndex ) throws IOException{
+		long offset = offsets[ ruleIndex ];
+		if ( offset < 0 ) return null;
+		file.seek( offset + 4 );
+		Result[] rval = new Result[ file.readUnsignedByte() ];
+		for( int i = 0; i < rval.length; ++i ){
+			int type = file.readByte();
+			rval[i] = new Result( type, file.readInt() );
+		}
+		return rval;
+	}
+
+	/**Indices of the rules, having at least one result of the given type, in increasing order*/
+	public synchronized int[] rulesWithResult( int type ){
+		ArrayList<Integer> found = new ArrayList<Integer>();
+		for( int ruleIndex = 0; ruleIndex < NUM_RULES; ++ruleIndex ){
+			if ( ( typeMasks[ruleIndex] & (1 << type) ) != 0 ) found.add( ruleIndex );
+		}
+		int[] rval = new int[ found.size() ];
+		for( int i = 0; i < rval.length; ++i ) rval[i] = found.get(i);
+		return rval;
+	}
+
+	/**Indices of the rules without stored results, in increasing order*/
+	public synchronized int[] missingRules(){
+		int[] rval = new int[ NUM_RULES - numDone ];
+		int n = 0;
+		for( int ruleIndex = 0; ruleIndex < NUM_RULES; ++ruleIndex ){
+			if ( offsets[ ruleIndex ] < 0 ) rval[ n++ ] = ruleIndex;
+		}
+		return rval;
+	}
+
+	public synchronized void close() throws IOException{
+		file.close();
+	}
+}
@@ -1,9 +1,15 @@
 package org.ratson.pentagrid;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
-import org.ratson.pentagrid.fields.ArrayField;
+import org.ratson.pentagrid.fields.BallField;
+import org.ratson.pentagrid.fields.BitSlicedBall;
 
 
 /**Searches for he interesting rules*/
@@ -14,11 +20,19 @@ public class RuleSearcher {
 	public final static int R_DIE_OUT = 3;
 	public final static int R_CHAOTIC = 4;
 	public static final int R_CYCLIC = 5;
-	private static final int R_CHAOTIC_GLIDERS = 6;
+	public static final int R_CHAOTIC_GLIDERS = 6;
 	
 	public static final int NO_PERIOD = -1;
+	/**Pattern, that went this number of rings away from the initial soup without exponential growth, is considered to have gliders.
+	 * Explosive patterns usually reach this distance before the population limit, so after the boundary of the field is reached,
+	 * simulation continues: if population reaches the limit, rule is exponential, otherwise something has escaped.*/
+	private static final int GLIDER_DISTANCE = 4;
+	/**Longest detected period of the cycles*/
+	private static final int MAX_PERIOD = 23;
+	/**Generations, simulated before the cycle detection*/
+	private static final int LIMIT_ITERATION = 500;
 	
-	class Result implements Comparable<Result>{
+	static class Result implements Comparable<Result>{
 		int type;
 		int steps;
 		Result( int t, int s){ type = t; steps = s; };
@@ -50,60 +64,60 @@ public class RuleSearcher {
 		}
 	}
 	
-	private void sortCells( Path[] cells ){
-		Arrays.sort( cells, PathHashComparator.getInst());
-	}
-	
 	Result tryRule( TotalisticRule r, int fieldSize ){
 		double p = 0.5;
-		
-		ArrayField field = new ArrayField();
-		field.setCells( Util.randomField( fieldSize, p) );
-		Path[] soup = field.getAliveCellsArray(); //it returns reference
-		sortCells( soup );
+		return tryRule( r, fieldSize, Util.randomField( fieldSize, p) );
+	}
+
+	/**Try rule on the given soup, that must fit into the field of the given size*/
+	Result tryRule( TotalisticRule r, int fieldSize, Path[] initialSoup ){
+		//Field is bounded by the ball, whose outermost ring is GLIDER_DISTANCE rings away from the soup
+		BallField field = new BallField( fieldSize + GLIDER_DISTANCE + 1 );
+		field.setCells( initialSoup );
+		int[] soup = field.getAliveIds(); //sorted, and never modified
 		
 		int initialPopulation = soup.length;
 		
 		int limitPopulaion = initialPopulation * 10;
-		int limitIteration = 500;
+		int limitIteration = LIMIT_ITERATION;
 		int step = 0;
+		CycleDetector<int[]> cycles = newCycleDetector();
+		cycles.add( field.fingerprint(), soup );
+		//explosion is detected before the exploded generation is built
+		EvaluationBudget budget = new EvaluationBudget().setMaxPopulation( limitPopulaion - 1 );
+		//Something went far away from the soup. Bounded field absorbs it, so later stabilization or cycles mean gliders
+		boolean escaped = false;
 		
 		while ( soup.length > 0 && soup.length < limitPopulaion && step < limitIteration){
-			field.evaluate( r );
-			Path[] soup1 = field.getAliveCellsArray();
+			if ( field.evaluate( r, budget ) == EvaluationBudget.ABORT_POPULATION )
+				return new Result( R_EXPONENTIAL, step + 1 );
+			soup = field.getAliveIds();
 			step += 1;
-			sortCells( soup1 );
-			if (Arrays.equals( soup1, soup )){//stabilized
+			escaped |= field.touchesBoundary();
+			int period = cycles.add( field.fingerprint(), soup );
+			if ( period != CycleDetector.NO_PERIOD && escaped )
+				return new Result( R_CHAOTIC_GLIDERS, NO_PERIOD );
+			if ( period == 1 ) //stabilized
 				return new Result( R_STATIC, step );
-			}
-			soup = soup1;
+			if ( period != CycleDetector.NO_PERIOD )
+				return new Result( R_CYCLIC, period );
 		}
 		//now analyze the situation.
-		if ( soup.length == 0 ) return new Result( R_DIE_OUT, step );
 		if ( soup.length >= limitPopulaion ) return new Result(R_EXPONENTIAL, step);
 		//most interesting case.
+		//Something went far away from the soup, and population did not explode: search for the gliders
+		if ( escaped )
+			return new Result( R_CHAOTIC_GLIDERS, NO_PERIOD);
+		if ( soup.length == 0 ) return new Result( R_DIE_OUT, step );
 		//Trying to detect cycle
 		int period = detectCycle( field, r );
 		if (period == NO_PERIOD){
-			//search for the gliders
-			if ( hasGliders( soup, fieldSize ))
-				return new Result( R_CHAOTIC_GLIDERS, NO_PERIOD);
-			else
-				return new Result( R_CHAOTIC, NO_PERIOD );
+			return new Result( R_CHAOTIC, NO_PERIOD );
 		}
 		else
 			return new Result( R_CYCLIC, period );
 	}
 	
-	private boolean hasGliders(Path[] soup, int fieldSize) {
-		int maxLen = 0;
-		for (int i = 0; i < soup.length; i++) {
-			int len = soup[i].length();
-			if( len > maxLen) maxLen = len;
-		}
-		return maxLen > fieldSize + 5;
-	}
-
 	Result[] tryRuleTimes( TotalisticRule r, int steps ){
 		LinkedList<Result> res = new LinkedList<Result>();
 		
@@ -124,23 +138,416 @@ public class RuleSearcher {
 		return rval;
 	}
 
-	private int detectCycle( Field field, TotalisticRule rule) {
-		Path[] original = field.getAliveCellsArray();
+	/**Same as {@link #tryRule}, but for many rules at once. Each rule is tried on its own soup.
+	 * Rules are simulated in the lanes of the bit-sliced engine; when some lane is classified, next rule is started in it.
+	 * Classification is the same, as in tryRule.*/
+	Result[] tryRules( Rule[] rules, int fieldSize ){
+		final int lanes = BitSlicedBall.LANES;
+		final int limitIteration = LIMIT_ITERATION;
+		final int limitCycle = MAX_PERIOD + 1;
+		Result[] rval = new Result[ rules.length ];
+		BitSlicedBall engine = new BitSlicedBall( fieldSize + GLIDER_DISTANCE + 1 );
+		int[] rule = new int[ lanes ]; //rule index of the lane, -1 for free lanes
+		int[] step = new int[ lanes ];
+		int[] cycleStep = new int[ lanes ]; //0 while lane is not in the cycle detection
+		long escaped = 0; //lanes, that have reached the boundary (see tryRule)
+		int[] limitPopulation = new int[ lanes ];
+		int[] population = new int[ lanes ];
+		Arrays.fill( rule, -1 );
+		int nextRule = 0;
+		while( true ){
+			//Start next rules in the free lanes
+			long running = 0;
+			for( int lane = 0; lane < lanes; ++lane ){
+				while( rule[lane] < 0 && nextRule < rules.length ){
+					Path[] soup = Util.randomField( fieldSize, 0.5 );
+					if ( soup.length == 0 ){
+						rval[ nextRule++ ] = new Result( R_DIE_OUT, 0 );
+						continue;
+					}
+					engine.setRule( lane, rules[ nextRule ] );
+					engine.setCells( lane, soup );
+					escaped &= ~(1L << lane);
+					rule[ lane ] = nextRule++;
+					step[ lane ] = 0;
+					cycleStep[ lane ] = 0;
+					limitPopulation[ lane ] = soup.length * 10;
+				}
+				if ( rule[lane] >= 0 ) running |= 1L << lane;
+			}
+			if ( running == 0 ) break;
+
+			long changed = engine.step();
+			engine.populations( population );
+			long boundary = engine.boundaryLanes();
+			long difference = engine.snapshotDifference();
+			long finished = 0, startCycle = 0;
+			for( int lane = 0; lane < lanes; ++lane ){
+				if ( rule[lane] < 0 ) continue;
+				long bit = 1L << lane;
+				Result res = null;
+				if ( cycleStep[lane] == 0 ){
+					step[ lane ] += 1;
+					escaped |= boundary & bit;
+					if ( population[lane] >= limitPopulation[lane] ) res = new Result( R_EXPONENTIAL, step[lane] );
+					else if ( (escaped & bit) != 0 ){
+						if ( (changed & bit) == 0 || population[lane] == 0 || step[lane] >= limitIteration )
+							res = new Result( R_CHAOTIC_GLIDERS, NO_PERIOD );
+					}
+					else if ( (changed & bit) == 0 ) res = new Result( R_STATIC, step[lane] );
+					else if ( population[lane] == 0 ) res = new Result( R_DIE_OUT, step[lane] );
+					else if ( step[lane] >= limitIteration ){
+						//Either chaotic or cyclic. Trying to detect cycle
+						startCycle |= bit;
+						cycleStep[ lane ] = 1;
+						limitPopulation[ lane ] = population[ lane ] * 10;
+					}
+				}else{
+					if ( population[lane] > limitPopulation[lane] ) res = new Result( R_CHAOTIC, NO_PERIOD );
+					else if ( (difference & bit) == 0 ) res = new Result( R_CYCLIC, cycleStep[lane] );
+					else if ( ++cycleStep[lane] >= limitCycle ) res = new Result( R_CHAOTIC, NO_PERIOD );
+				}
+				if ( res != null ){
+					rval[ rule[lane] ] = res;
+					rule[ lane ] = -1;
+					finished |= bit;
+				}
+			}
+			if ( finished != 0 ) engine.clearLanes( finished );
+			if ( startCycle != 0 ) engine.saveSnapshot( startCycle );
+		}
+		return rval;
+	}
+
+	/**Same as {@link #tryRuleTimes}, but for many rules at once*/
+	Result[][] tryRulesTimes( Rule[] rules, int steps ){
+		Result[] first = tryRules( rules, 3 );//try rules on small radius to filter out exponentials quickly
+		ArrayList<Rule> repeated = new ArrayList<Rule>();
+		for( int i = 0; i < rules.length; ++i ){
+			if ( first[i].type == R_EXPONENTIAL ) continue;
+			for( int j = 0; j < steps; ++j ) repeated.add( rules[i] );
+		}
+		Result[] runs = tryRules( repeated.toArray( new Rule[ repeated.size() ] ), 5 );
+
+		Result[][] rval = new Result[ rules.length ][];
+		int run = 0;
+		for( int i = 0; i < rules.length; ++i ){
+			LinkedList<Result> res = new LinkedList<Result>();
+			res.add( first[i] );
+			if ( first[i].type != R_EXPONENTIAL ){
+				//Keep results up to the first exponential, as tryRuleTimes does
+				boolean stopped = false;
+				for( int j = 0; j < steps; ++j, ++run ){
+					if ( stopped ) continue;
+					res.add( runs[run] );
+					if ( runs[run].type == R_EXPONENTIAL ) stopped = true;
+				}
+			}
+			rval[i] = res.toArray( new Result[ res.size() ] );
+			Arrays.sort( rval[i] );
+		}
+		return rval;
+	}
+
+	/**Cycle detector for the sorted id arrays of the {@link BallField}*/
+	private static CycleDetector<int[]> newCycleDetector(){
+		return new CycleDetector<int[]>( MAX_PERIOD ){
+			@Override
+			protected boolean sameState( int[] a, int[] b ){
+				return Arrays.equals( a, b );
+			}
+		};
+	}
+
+	/**Continue evaluation, until the current generation repeats. Only its repetitions are detected, as in the batch and tree searches*/
+	private int detectCycle( BallField field, TotalisticRule rule ) {
+		int[] original = field.getAliveIds();
+		long fingerprint = field.fingerprint();
 		int populationLimit = original.length * 10;
-		for( int i = 1; i < 24; ++ i){
+		for( int i = 1; i <= MAX_PERIOD; ++ i){
 			field.evaluate( rule );
-			Path[] next = field.getAliveCellsArray();
-			if (next.length > populationLimit)
+			if ( field.population() > populationLimit )
 				return NO_PERIOD;
-			sortCells(next);
-			if (Arrays.equals( next, original))
+			if ( field.fingerprint() == fingerprint && Arrays.equals( field.getAliveIds(), original ) )
 				return i;
 		}
 		return NO_PERIOD;
 	}
+	/**Rule from the {@link Rule#fromIndex} space, where only some bits of the index are known.
+	 * Asking for the transition, that depends on the unknown bit, is an error.*/
+	static final class PartialRule implements TotalisticRule{
+		static final int NUM_BITS = 19;
+		static final int ALL_BITS = (1 << NUM_BITS) - 1;
+		/**Mask of the known bits and their values*/
+		final int known, values;
+		PartialRule( int known, int values ){
+			this.known = known;
+			this.values = values;
+		}
+		/**Index bit, that defines the transition, or -1 if the transition always gives 0*/
+		static int ruleBit( int state, int numNeighbores ){
+			if ( state == 0 ) return (numNeighbores >= 1 && numNeighbores <= 9) ? numNeighbores - 1 : -1;
+			return (numNeighbores <= 9) ? 9 + numNeighbores : -1;
+		}
+		/**Index bits, needed to evaluate given transitions (see {@link BallField#evaluateUnless})*/
+		static int neededBits( long transitions ){
+			int rval = 0;
+			for( int state = 0; state < 2; ++state ){
+				for( int sum = 0; sum <= 10; ++sum ){
+					int bit = ruleBit( state, sum );
+					if ( bit >= 0 && (transitions & (1L << (11*state + sum))) != 0 ) rval |= 1 << bit;
+				}
+			}
+			return rval;
+		}
+		/**Transitions, that depend on the given index bits*/
+		static long transitions( int bits ){
+			long rval = 0;
+			for( int state = 0; state < 2; ++state ){
+				for( int sum = 0; sum <= 10; ++sum ){
+					int bit = ruleBit( state, sum );
+					if ( bit >= 0 && (bits & (1 << bit)) != 0 ) rval |= 1L << (11*state + sum);
+				}
+			}
+			return rval;
+		}
+		@Override
+		public int nextState( int worldState, int prevState, int numNeighbores ){
+			int bit = ruleBit( prevState, numNeighbores );
+			if ( bit < 0 ) return 0;
+			if ( (known & (1 << bit)) == 0 ) throw new RuntimeException( "Rule bit "+bit+" is not determined" );
+			return (values >> bit) & 1;
+		}
+		@Override
+		public int nextFieldState( int prevFieldState ){
+			return prevFieldState;
+		}
+		/**Rule code with unknown transitions marked by the question marks, like "B3?/S2?3"*/
+		@Override
+		public String getCode(){
+			StringBuilder b = new StringBuilder( "B" );
+			for( int sum = 1; sum <= 9; ++sum ) appendTransition( b, ruleBit( 0, sum ), sum );
+			b.append( "/S" );
+			for( int sum = 0; sum <= 9; ++sum ) appendTransition( b, ruleBit( 1, sum ), sum );
+			return b.toString();
+		}
+		private void appendTransition( StringBuilder b, int bit, int sum ){
+			if ( (known & (1 << bit)) == 0 ) b.append( sum ).append( '?' );
+			else if ( (values & (1 << bit)) != 0 ) b.append( sum );
+		}
+		public String toString(){ return getCode(); }
+	}
+
+	/**Group of rules with the same result: all rules, having given values of the known index bits*/
+	class RuleSet{
+		final int known, values;
+		final Result result;
+		RuleSet( int known, int values, Result result ){
+			this.known = known;
+			this.values = values;
+			this.result = result;
+		}
+		/**Number of rules in the group*/
+		int size(){
+			return 1 << ( PartialRule.NUM_BITS - Integer.bitCount( known ) );
+		}
+	}
+
+	/**State of the {@link #tryRule} simulation for the group of rules, with the partially known rule.
+	 * Cells are stored as the immutable arrays of the alive cell ids, so branches are cheap to copy.*/
+	private final class Branch implements Cloneable{
+		int known, values;
+		/**Alive cells now, and before the last step*/
+		int[] current, soup;
+		int step = 0;
+		int limitPopulation;
+		/**Pattern has reached the boundary (see tryRule)*/
+		boolean escaped = false;
+		/**0 while cycle is not being detected*/
+		int cycleStep = 0;
+		int[] cycleOriginal;
+		Branch copy(){
+			try {
+				return (Branch)clone();
+			} catch (CloneNotSupportedException e) {
+				throw new RuntimeException( e );
+			}
+		}
+		/**Classify the state after the evaluation, the same way as tryRule does. Returns null, if simulation must continue*/
+		Result classify( BallField field ){
+			final int limitIteration = LIMIT_ITERATION;
+			final int limitCycle = MAX_PERIOD + 1;
+			current = field.getAliveIds();
+			if ( cycleStep == 0 ){
+				step += 1;
+				escaped |= field.touchesBoundary();
+				boolean stabilized = Arrays.equals( current, soup );
+				soup = current;
+				if ( soup.length >= limitPopulation ) return new Result( R_EXPONENTIAL, step );
+				if ( escaped ){
+					if ( stabilized || soup.length == 0 || step >= limitIteration ) return new Result( R_CHAOTIC_GLIDERS, NO_PERIOD );
+					return null;
+				}
+				if ( stabilized ) return new Result( R_STATIC, step );
+				if ( soup.length == 0 ) return new Result( R_DIE_OUT, step );
+				if ( step >= limitIteration ){
+					//Trying to detect cycle
+					cycleStep = 1;
+					cycleOriginal = soup;
+					limitPopulation = soup.length * 10;
+				}
+				return null;
+			}else{
+				if ( current.length > limitPopulation ) return new Result( R_CHAOTIC, NO_PERIOD );
+				if ( Arrays.equals( current, cycleOriginal ) ) return new Result( R_CYCLIC, cycleStep );
+				if ( ++cycleStep >= limitCycle ) return new Result( R_CHAOTIC, NO_PERIOD );
+				return null;
+			}
+		}
+	}
+
+	/**Try all rules of the {@link Rule#fromIndex} space on the same soup at once.
+	 * Simulation starts with all rule bits unknown, and branches only when some cell needs an unknown bit;
+	 * branches share the simulated prefix. Result for every rule is the same, as {@link #tryRule} gives for this soup.
+	 * Returns groups of rules with the same result, covering the whole rule space.*/
+	ArrayList<RuleSet> tryRuleTree( int fieldSize, Path[] initialSoup ){
+		return tryRuleTree( fieldSize, initialSoup, null );
+	}
+
+	/**Same as {@link #tryRuleTree(int, Path[])}, but only the rules with true value in the array must be classified.
+	 * Branches without such rules are dropped, so returned groups may not cover the whole space.*/
+	ArrayList<RuleSet> tryRuleTree( int fieldSize, Path[] initialSoup, boolean[] rules ){
+		ArrayList<RuleSet> rval = new ArrayList<RuleSet>();
+		BallField field = new BallField( fieldSize + GLIDER_DISTANCE + 1 );
+		field.setCells( initialSoup );
+		Branch b = new Branch();
+		b.current = b.soup = field.getAliveIds();
+		b.limitPopulation = b.soup.length * 10;
+		if ( b.soup.length == 0 ){
+			rval.add( new RuleSet( 0, 0, new Result( R_DIE_OUT, 0 ) ) );
+		}else{
+			tryBranch( field, b, rules, rval );
+		}
+		return rval;
+	}
+
+	/**Groups with more free bits are not checked, they almost surely contain some needed rule*/
+	private static final int MAX_CHECKED_FREE_BITS = 14;
+	/**False, if the group surely has no rules, marked in the array. Null array means all rules*/
+	private static boolean isNeeded( int known, int values, boolean[] rules ){
+		if ( rules == null ) return true;
+		int free = PartialRule.ALL_BITS & ~known;
+		if ( Integer.bitCount( free ) > MAX_CHECKED_FREE_BITS ) return true;
+		int sub = free;
+		while( true ){
+			if ( rules[ values | sub ] ) return true;
+			if ( sub == 0 ) return false;
+			sub = (sub - 1) & free;
+		}
+	}
+
+	/**Simulate branch until it is classified. Field must contain the current cells of the branch; it is shared by all branches*/
+	private void tryBranch( BallField field, Branch b, boolean[] rules, ArrayList<RuleSet> results ){
+		while( true ){
+			long unknown = field.evaluateUnless( new PartialRule( b.known, b.values ), PartialRule.transitions( ~b.known ) );
+			if ( unknown != 0 ){
+				//Split by all needed bits at once: copies continue with the nonzero values of the bits, this branch with zeros
+				int bits = PartialRule.neededBits( unknown );
+				for( int sub = bits; sub != 0; sub = (sub - 1) & bits ){
+					Branch other = b.copy();
+					other.known |= bits;
+					other.values |= sub;
+					if ( isNeeded( other.known, other.values, rules ) ){
+						tryBranch( field, other, rules, results );
+						field.setAliveIds( b.current );
+					}
+				}
+				b.known |= bits;
+				if ( ! isNeeded( b.known, b.values, rules ) ) return;
+				continue;
+			}
+			Result res = b.classify( field );
+			if ( res != null ){
+				results.add( new RuleSet( b.known, b.values, res ) );
+				return;
+			}
+		}
+	}
+
+	/**Same as {@link #searchAllRules}, but all rules are tried on the same soups, using the rule tree.
+	 * First soup is small, it filters out exponential rules.*/
+	public void searchAllRulesTree( int steps ){
+		int numRules = 1 << PartialRule.NUM_BITS;
+		Result[][] results = new Result[ steps + 1 ][];
+		//Rules, that must be tried on the next soup: rules, that became exponential, are not tried any more
+		boolean[] needed = new boolean[ numRules ];
+		Arrays.fill( needed, true );
+		for( int i = 0; i <= steps; ++i ){
+			int fieldSize = (i == 0) ? 3 : 5;
+			ArrayList<RuleSet> groups = tryRuleTree( fieldSize, Util.randomField( fieldSize, 0.5 ), needed );
+			results[i] = new Result[ numRules ];
+			for( RuleSet g : groups ){
+				//enumerate all indices with given known bits
+				int free = PartialRule.ALL_BITS & ~g.known;
+				int sub = free;
+				while( true ){
+					results[i][ g.values | sub ] = g.result;
+					if ( sub == 0 ) break;
+					sub = (sub - 1) & free;
+				}
+			}
+			for( int ruleIndex = 0; ruleIndex < numRules; ++ruleIndex ){
+				if ( needed[ruleIndex] && results[i][ruleIndex].type == R_EXPONENTIAL ) needed[ ruleIndex ] = false;
+			}
+		}
+		for( int ruleIndex = 0; ruleIndex < numRules; ++ruleIndex ){
+			LinkedList<Result> res = new LinkedList<Result>();
+			res.add( results[0][ ruleIndex ] );
+			if ( results[0][ ruleIndex ].type != R_EXPONENTIAL ){
+				for( int i = 1; i <= steps; ++i ){
+					res.add( results[i][ ruleIndex ] );
+					if ( results[i][ ruleIndex ].type == R_EXPONENTIAL ) break;
+				}
+			}
+			Result[] rval = res.toArray( new Result[ res.size() ] );
+			Arrays.sort( rval );
+			System.out.println( "Rule:"+Rule.fromIndex( ruleIndex )+" " + Arrays.toString(rval));
+		}
+	}
+
 	public static void main(String[] args) {
 		RuleSearcher s = new RuleSearcher();
-		s.searchAllRules();
+		if ( args.length == 0 ){
+			s.searchAllRules();
+			return;
+		}
+		try{
+			RuleResultStore store = new RuleResultStore( new File( args[0] ) );
+			try{
+				if ( args.length == 1 ){
+					s.searchAllRules( store, 20, new ForkJoinPool() );
+				}else if ( args.length == 3 && args[1].equals( "query" ) ){
+					int type = parseResultType( args[2] );
+					for( int ruleIndex : store.rulesWithResult( type ) )
+						System.out.println( "Rule:"+Rule.fromIndex( ruleIndex )+" " + Arrays.toString( store.get( ruleIndex ) ));
+				}else{
+					System.out.println( "Usage: RuleSearcher [store-file [query Exp|Static|Die|Chaos|Cycle|Gliders]]" );
+				}
+			}finally{
+				store.close();
+			}
+		}catch( IOException e ){
+			System.err.println( e.getMessage() );
+		}
+	}
+
+	/**Result type by the name, used in the queries*/
+	static int parseResultType( String name ){
+		String[] names = { "Exp", "Static", "Die", "Chaos", "Cycle", "Gliders" };
+		for( int i = 0; i < names.length; ++i ){
+			if ( names[i].equalsIgnoreCase( name ) ) return i + 1;
+		}
+		throw new RuntimeException( "Unknown result type: "+name );
 	}
 	
 	boolean isInterestingReslut( Result[] res ){
@@ -153,12 +560,64 @@ public class RuleSearcher {
 		return false;
 	}
 	
+	/**Try all rules, that are not in the store yet, and append their results to the store.
+	 * Rules are split into the blocks, that are tried by the tasks of the given pool; idle threads steal remaining blocks.
+	 * Every finished block is forced to the disk, so the search can be killed at any moment and resumed later
+	 * with the same store, losing only the blocks that were in progress.*/
+	public void searchAllRules( final RuleResultStore store, final int steps, ForkJoinPool pool ) throws IOException{
+		final int[] missing = store.missingRules();
+		final int blockSize = BitSlicedBall.LANES * 16;
+		final int numBlocks = ( missing.length + blockSize - 1 ) / blockSize;
+		System.out.println( "Rules done: "+store.size()+", remaining: "+missing.length );
+		final IOException[] error = { null };
+
+		/**Tries range of the blocks, splitting it in halves*/
+		class SearchTask extends RecursiveAction{
+			private static final long serialVersionUID = 1L;
+			private final int firstBlock, lastBlock;
+			SearchTask( int firstBlock, int lastBlock ){
+				this.firstBlock = firstBlock;
+				this.lastBlock = lastBlock;
+			}
+			@Override
+			protected void compute(){
+				if ( lastBlock - firstBlock > 1 ){
+					int middle = ( firstBlock + lastBlock ) / 2;
+					invokeAll( new SearchTask( firstBlock, middle ), new SearchTask( middle, lastBlock ) );
+					return;
+				}
+				synchronized( error ){
+					if ( error[0] != null ) return;
+				}
+				int start = firstBlock * blockSize;
+				int[] indices = Arrays.copyOfRange( missing, start, Math.min( start + blockSize, missing.length ) );
+				Rule[] rules = new Rule[ indices.length ];
+				for( int i = 0; i < rules.length; ++i ) rules[i] = (Rule)Rule.fromIndex( indices[i] );
+				Result[][] res = tryRulesTimes( rules, steps );
+				try{
+					store.append( indices, res );
+					System.out.println( "Rules done: "+store.size()+" of "+RuleResultStore.NUM_RULES );
+				}catch( IOException e ){
+					synchronized( error ){
+						error[0] = e;
+					}
+				}
+			}
+		}
+		if ( numBlocks > 0 ) pool.invoke( new SearchTask( 0, numBlocks ) );
+		if ( error[0] != null ) throw error[0];
+	}
+
 	public void searchAllRules(){
-		for( int ruleIndex = 0; ruleIndex < (1<<19); ++ ruleIndex ){
-			TotalisticRule r = Rule.fromIndex(ruleIndex);
-			Result[] res = tryRuleTimes(r, 20);
-			//if ( isInterestingReslut(res) )
-				System.out.println( "Rule:"+r+" " + Arrays.toString(res));
+		int blockSize = BitSlicedBall.LANES * 16;
+		for( int blockStart = 0; blockStart < (1<<19); blockStart += blockSize ){
+			Rule[] rules = new Rule[ blockSize ];
+			for( int i = 0; i < blockSize; ++i ) rules[i] = (Rule)Rule.fromIndex( blockStart + i );
+			Result[][] res = tryRulesTimes( rules, 20 );
+			for( int i = 0; i < blockSize; ++i ){
+				//if ( isInterestingReslut(res[i]) )
+					System.out.println( "Rule:"+rules[i]+" " + Arrays.toString(res[i]));
+			}
 		}
 	}
 }
@@ -0,0 +1,220 @@
+package org.ratson.pentagrid.fields;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+
+import org.ratson.pentagrid.Field;
+import org.ratson.pentagrid.Path;
+import org.ratson.pentagrid.PathNavigation;
+import org.ratson.pentagrid.TotalisticRule;
+
+/**Field, that tracks activity: only the cells, that changed during the last generation, and their neighbores are re-evaluated.
+ * Neighbore sums are stored for every cell and updated incrementally, when the cell state changes.
+ * Stable parts of the pattern cost nothing.
+ *
+ * When rule changes, or when rule changes the global field state (strobing rules), all cells are re-evaluated.*/
+public final class ActivityField extends Field{
+	private static final long serialVersionUID = 1L;
+	/**Cells, that are alive or have alive neighbores, with their states and sums*/
+	private transient CellTable cells = new CellTable();
+	/**Cells, that have changed since the last evaluation*/
+	private transient ArrayList<Path> changed = new ArrayList<Path>();
+	/**Rule of the last evaluation. Activity information is valid only for it*/
+	private transient TotalisticRule lastRule = null;
+	private transient int population = 0;
+	/**Fingerprint of the alive cells, updated on every change*/
+	private transient long fingerprint = 0;
+	private transient Path[] neighbores = new Path[10];
+	/**Candidate flags for the table slots, all false between evaluations*/
+	private transient boolean[] marks = null;
+
+	/**Create completely new field*/
+	public synchronized void setCells( Iterable<Path> newCells ){
+		cells = new CellTable();
+		changed.clear();
+		population = 0;
+		fingerprint = 0;
+		for (Path path : newCells) {
+			changeState( path, 1 );
+		}
+	}
+
+	/**Set new cell state, updating sums of the neighbores*/
+	private void changeState( Path p, int newState ){
+		int slot = cells.find( p );
+		int oldState = (slot >= 0) ? cells.states[ slot ] : 0;
+		if ( oldState == newState ) return;
+		if ( slot < 0 ) slot = cells.insertNew( p );
+		cells.states[ slot ] = newState;
+		if ( oldState == 0 ) population ++;
+		if ( newState == 0 ) population --;
+		if ( oldState != 0 ) fingerprint ^= cellHash( p, oldState );
+		if ( newState != 0 ) fingerprint ^= cellHash( p, newState );
+		changed.add( p );
+
+		int delta = newState - oldState;
+		PathNavigation.neigh10( p, neighbores );
+		for (int i = 0; i < neighbores.length; i++) {
+			int neighSlot = cells.insert( neighbores[i] );
+			cells.sums[ neighSlot ] += delta;
+			removeIfEmpty( neighSlot );
+		}
+		removeIfEmpty( cells.find( p ) ); //slot could have changed
+	}
+
+	/**Remove record of the dead cell without alive neighbores*/
+	private void removeIfEmpty( int slot ){
+		if ( cells.states[slot] == 0 && cells.sums[slot] == 0 ) cells.remove( slot );
+	}
+
+	public synchronized void evaluate( TotalisticRule r ){
+		int fieldState = getFieldState();
+		boolean full = (r != lastRule) || (r.nextFieldState( fieldState ) != fieldState);
+
+		//Collect slots of the cells, that can change: changed cells and their neighbores.
+		//Table is not modified until all new states are calculated, so slots are stable.
+		int[] candidates;
+		int numCandidates = 0;
+		if ( full ){
+			candidates = new int[ cells.size() ];
+			for( int slot = 0; slot < cells.capacity(); ++slot ){
+				if ( cells.keyAt( slot ) != null ) candidates[ numCandidates++ ] = slot;
+			}
+		}else{
+			if ( marks == null || marks.length != cells.capacity() ) marks = new boolean[ cells.capacity() ];
+			candidates = new int[ Math.min( changed.size() * 11, cells.size() ) ];
+			for( Path p : changed ){
+				numCandidates = addCandidate( cells.find( p ), candidates, numCandidates );
+				PathNavigation.neigh10( p, neighbores );
+				for (int i = 0; i < neighbores.length; i++) {
+					numCandidates = addCandidate( cells.find( neighbores[i] ), candidates, numCandidates );
+				}
+			}
+			for( int i = 0; i < numCandidates; ++i ) marks[ candidates[i] ] = false;
+		}
+
+		//Calculate new states, without modifying anything
+		ArrayList<Path> changedCells = new ArrayList<Path>();
+		ArrayList<Integer> newStates = new ArrayList<Integer>();
+		for( int i = 0; i < numCandidates; ++i ){
+			int slot = candidates[i];
+			int state = cells.states[slot];
+			int nextState = r.nextState( fieldState, state, cells.sums[slot] );
+			if ( nextState != state ){
+				changedCells.add( cells.keyAt( slot ) );
+				newStates.add( nextState );
+			}
+		}
+
+		//Apply changes
+		changed.clear();
+		for (int i = 0; i < changedCells.size(); i++) {
+			changeState( changedCells.get(i), newStates.get(i) );
+		}
+		cells.compact();
+		lastRule = r;
+		setFieldState( r.nextFieldState( fieldState ));
+	}
+
+	/**Add slot to the list of candidates, unless it is absent or already added. Dead cells without alive neighbores are absent.*/
+	private int addCandidate( int slot, int[] candidates, int numCandidates ){
+		if ( slot < 0 || marks[ slot ] ) return numCandidates;
+		marks[ slot ] = true;
+		candidates[ numCandidates ] = slot;
+		return numCandidates + 1;
+	}
+
+	/**Number of cells, that changed during the last generation*/
+	public synchronized int activity(){
+		return changed.size();
+	}
+
+	public synchronized Path[] getAliveCellsArray(){
+		ArrayList<Path> alive = aliveCellsList();
+		Path[] rval = new Path[ alive.size() ];
+		alive.toArray( rval );
+		return rval;
+	}
+
+	private ArrayList<Path> aliveCellsList(){
+		ArrayList<Path> alive = new ArrayList<Path>( population );
+		for( int slot = 0; slot < cells.capacity(); ++slot ){
+			if ( cells.states[slot] != 0 ) alive.add( cells.keyAt(slot) );
+		}
+		return alive;
+	}
+
+	@Override
+	public int population() {
+		return population;
+	}
+
+	@Override
+	public synchronized long fingerprint(){
+		return fingerprint;
+	}
+
+	@Override
+	public synchronized int getCell(Path cell) {
+		int slot = cells.find( cell );
+		if (slot < 0)return 0;
+		else return cells.states[ slot ];
+	}
+
+	@Override
+	public synchronized void setCell(Path cell, int newState) {
+		changeState( cell, newState );
+	}
+
+	/**Returns snapshot of the alive cells*/
+	@Override
+	public synchronized Iterable<Path> getAliveCells() {
+		return aliveCellsList();
+	}
+
+	/**Sums are stored for all cells near the alive ones*/
+	@Override
+	public int heapBytesPerCell(){
+		return 920;
+	}
+	@Override
+	public int storedBytesPerCell(){
+		return 630;
+	}
+
+	@Override
+	public synchronized Field copy(){
+		ActivityField rval = new ActivityField();
+		rval.cells = new CellTable( cells );
+		rval.changed.addAll( changed );
+		rval.population = population;
+		rval.fingerprint = fingerprint;
+		rval.lastRule = lastRule;
+		return rval;
+	}
+
+	private synchronized void writeObject( ObjectOutputStream out ) throws IOException{
+		out.defaultWriteObject();
+		out.writeInt( population );
+		for( int slot = 0; slot < cells.capacity(); ++slot ){
+			if ( cells.states[slot] != 0 ){
+				out.writeObject( cells.keyAt(slot) );
+				out.writeInt( cells.states[slot] );
+			}
+		}
+	}
+
+	private void readObject( ObjectInputStream in ) throws IOException, ClassNotFoundException{
+		in.defaultReadObject();
+		cells = new CellTable();
+		changed = new ArrayList<Path>();
+		neighbores = new Path[10];
+		int count = in.readInt();
+		for( int i = 0; i < count; ++i ){
+			Path p = (Path)in.readObject();
+			changeState( p, in.readInt() );
+		}
+	}
+}
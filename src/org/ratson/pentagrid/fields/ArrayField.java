@@ -1,5 +1,7 @@
 package org.ratson.pentagrid.fields;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -8,6 +10,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 
 import org.ratson.pentagrid.Field;
+import org.ratson.pentagrid.PackedPath;
 import org.ratson.pentagrid.Path;
 import org.ratson.pentagrid.PathNavigation;
 import org.ratson.pentagrid.TotalisticRule;
@@ -22,17 +25,157 @@ final class NeighborhoodRecord implements Serializable{
 	}
 }
 
-/**Simpliest implmentation, not using map. It does not allows to store cell state: all cells are either dead or alive*/ 
+/**Simpliest implmentation, not using map. It does not allows to store cell state: all cells are either dead or alive.
+ * Alive cells are kept sorted by their packed head words (see {@link PackedPath#packHead}).
+ * Evaluation writes packed keys of all neighbores into one primitive array, radix-sorts it, and counts runs of equal keys
+ * to get the neighbore sums; then runs are merged with the sorted alive cells to apply the rule.
+ * Cells, too deep for the packed keys, are evaluated with the hash map.*/ 
 public final class ArrayField extends Field{
 	private static final long serialVersionUID = 1L;
+	/**Cells of this length or shorter have packed keys. Keys are shorter than the head word, so they are positive*/
+	private static final int MAX_KEY_LENGTH = PackedPath.HEAD_DIGITS - 1;
+	private static final int RADIX_BITS = 11;
 	private Path[] aliveCells = new Path[0];
+	/**Packed keys of the alive cells in increasing order, or null if some cell is too deep*/
+	private transient long[] keys = new long[0];
+	/**Length of the longest alive path*/
+	private transient int maxLength = 0;
 
 	@Override
 	public synchronized void evaluate(TotalisticRule r) {
-		aliveCells = evaluate(aliveCells, r);
+		if ( keys != null && maxLength < MAX_KEY_LENGTH ){
+			evaluateSorted( r );
+		}else{
+			setSorted( evaluate(aliveCells, r) );
+		}
 		setFieldState( r.nextFieldState( getFieldState()));
 	}
 
+	/**Set alive cells, sorting them by keys and removing duplicates*/
+	private void setSorted( Path[] cells ){
+		maxLength = 0;
+		for( Path p : cells ) maxLength = Math.max( maxLength, p.length() );
+		if ( maxLength > MAX_KEY_LENGTH ){
+			aliveCells = cells;
+			keys = null;
+			return;
+		}
+		long[] cellKeys = new long[ cells.length ];
+		for( int i = 0; i < cells.length; ++i ) cellKeys[i] = PackedPath.packHead( cells[i] );
+		int[] order = sortOrder( cellKeys, cells.length );
+		Path[] sortedCells = new Path[ cells.length ];
+		long[] sortedKeys = new long[ cells.length ];
+		int n = 0;
+		for( int i = 0; i < order.length; ++i ){
+			long k = cellKeys[ order[i] ];
+			if ( n > 0 && sortedKeys[ n-1 ] == k ) continue;
+			sortedKeys[ n ] = k;
+			sortedCells[ n++ ] = cells[ order[i] ];
+		}
+		aliveCells = Arrays.copyOf( sortedCells, n );
+		keys = Arrays.copyOf( sortedKeys, n );
+	}
+
+	/**Indices of the first n keys in the order of increasing keys. LSD radix sort, skipping the high zero digits*/
+	private static int[] sortOrder( long[] keys, int n ){
+		long allBits = 0;
+		for( int i = 0; i < n; ++i ) allBits |= keys[i];
+		int bits = 64 - Long.numberOfLeadingZeros( allBits );
+		int[] order = new int[ n ];
+		for( int i = 0; i < n; ++i ) order[i] = i;
+		int[] buffer = new int[ n ];
+		int[] counts = new int[ (1 << RADIX_BITS) + 1 ];
+		int mask = (1 << RADIX_BITS) - 1;
+		for( int shift = 0; shift < bits; shift += RADIX_BITS ){
+			Arrays.fill( counts, 0 );
+			for( int i = 0; i < n; ++i ) counts[ (int)( keys[i] >>> shift ) & mask ] ++;
+			int start = 0;
+			for( int d = 0; d <= mask; ++d ){
+				int c = counts[d];
+				counts[d] = start;
+				start += c;
+			}
+			for( int i = 0; i < n; ++i ){
+				int idx = order[i];
+				buffer[ counts[ (int)( keys[idx] >>> shift ) & mask ]++ ] = idx;
+			}
+			int[] t = order; order = buffer; buffer = t;
+		}
+		return order;
+	}
+
+	/**Packed key of the neighbore of the cell with given key. Children, parent and siblings are derived from the cell key*/
+	private static long neighboreKey( Path p, long key, Path neigh ){
+		int len = p.length();
+		Path tail = neigh.getTail();
+		if ( tail == p ) return PackedPath.headChild( key, len, neigh.getIndex() );
+		if ( len == 0 ) return PackedPath.packHead( neigh );
+		if ( neigh == p.getTail() ) return PackedPath.headTail( key, len );
+		if ( tail == p.getTail() ) return PackedPath.headChild( PackedPath.headTail( key, len ), len-1, neigh.getIndex() );
+		return PackedPath.packHead( neigh );
+	}
+
+	/**Sort-merge evaluation. All cells must have keys, and their neighbores too*/
+	private void evaluateSorted( TotalisticRule rule ){
+		int fieldState = getFieldState();
+		int n = aliveCells.length;
+		//Keys of all neighbores, with repetitions
+		long[] neighKeys = new long[ n * 10 ];
+		Path[] neighCells = new Path[ n * 10 ];
+		Path[] neighbores = new Path[10];
+		for( int i = 0; i < n; ++i ){
+			Path p = aliveCells[i];
+			PathNavigation.neigh10( p, neighbores );
+			for( int j = 0; j < 10; ++j ){
+				neighCells[ 10*i + j ] = neighbores[j];
+				neighKeys[ 10*i + j ] = neighboreKey( p, keys[i], neighbores[j] );
+			}
+		}
+		int[] order = sortOrder( neighKeys, neighKeys.length );
+
+		//Merge runs of equal neighbore keys with the alive cells
+		Path[] newCells = new Path[ Math.max( 16, n ) ];
+		long[] newKeys = new long[ newCells.length ];
+		int numNew = 0;
+		int newMaxLength = 0;
+		int i = 0, j = 0;
+		while( i < n || j < order.length ){
+			long aliveKey = ( i < n ) ? keys[i] : Long.MAX_VALUE;
+			long runKey = ( j < order.length ) ? neighKeys[ order[j] ] : Long.MAX_VALUE;
+			Path cell;
+			long key;
+			int state, sum = 0;
+			if ( aliveKey < runKey ){ //alive cell without alive neighbores
+				cell = aliveCells[i++];
+				key = aliveKey;
+				state = 1;
+			}else{
+				cell = neighCells[ order[j] ];
+				key = runKey;
+				while( j < order.length && neighKeys[ order[j] ] == runKey ){
+					sum ++;
+					j ++;
+				}
+				state = 0;
+				if ( aliveKey == runKey ){
+					state = 1;
+					i ++;
+				}
+			}
+			if ( rule.nextState( fieldState, state, sum ) == 0 ) continue;
+			if ( numNew == newCells.length ){
+				newCells = Arrays.copyOf( newCells, numNew * 2 );
+				newKeys = Arrays.copyOf( newKeys, numNew * 2 );
+			}
+			newCells[ numNew ] = cell;
+			newKeys[ numNew++ ] = key;
+			newMaxLength = Math.max( newMaxLength, cell.length() );
+		}
+		aliveCells = Arrays.copyOf( newCells, numNew );
+		keys = Arrays.copyOf( newKeys, numNew );
+		maxLength = newMaxLength;
+	}
+
 	@Override
 	public synchronized Path[] getAliveCellsArray() {
 		return aliveCells;
@@ -42,15 +185,14 @@ public final class ArrayField extends Field{
 	public synchronized void setCells(Iterable<Path> cells) {
 		ArrayList<Path> newCells = new ArrayList<Path>();
 		for( Path p : cells)newCells.add( p );
-		aliveCells = new Path[ newCells.size() ];
-		newCells.toArray( aliveCells );
+		setSorted( newCells.toArray( new Path[ newCells.size() ] ) );
 	}
 	
 	@Override
 	public synchronized void setCells( Path[] newCells ){
-		aliveCells = newCells;
+		setSorted( newCells );
 	}
-	/**Calculate next step*/
+	/**Calculate next step, using the hash map. Used for the cells, that are too deep for the packed keys*/
 	private Path[] evaluate( Path[] cells, TotalisticRule rule ){
 		Map<Path, NeighborhoodRecord> withNeighbores = new HashMap<Path, NeighborhoodRecord>( ); //hash map is much (x3) faster in this task
 		
@@ -60,8 +202,9 @@ public final class ArrayField extends Field{
 		}
 		
 		/*Now update neighbores counters*/
+		Path[] neighbores = new Path[10];
 		for (int i = 0; i < cells.length; i++) {			
-			Path[] neighbores = PathNavigation.neigh10(cells[i]);
+			PathNavigation.neigh10(cells[i], neighbores);
 			
 			for (int j = 0; j < neighbores.length; j++) {
 				Path neigh = neighbores[j];
@@ -96,6 +239,10 @@ public final class ArrayField extends Field{
 
 	@Override
 	public synchronized int getCell(Path cell) {
+		if ( keys != null ){
+			if ( cell.length() > MAX_KEY_LENGTH ) return 0;
+			return ( Arrays.binarySearch( keys, PackedPath.packHead( cell ) ) >= 0 ) ? 1 : 0;
+		}
 		for (int i = 0; i < aliveCells.length; i++) {
 			if ( aliveCells[i].equals(cell)) return 1;
 		}
@@ -112,9 +259,28 @@ public final class ArrayField extends Field{
 		return Arrays.asList(aliveCells);
 	}
 	
+	/**Sorted key arrays are small, but the sort buffers of the evaluation are big*/
+	@Override
+	public int heapBytesPerCell(){
+		return 810;
+	}
+	@Override
+	public int storedBytesPerCell(){
+		return 120;
+	}
+
 	public synchronized Field copy(){
 		ArrayField rval = new ArrayField();
-		rval.setCells( aliveCells );
+		//arrays are never modified, only replaced
+		rval.aliveCells = aliveCells;
+		rval.keys = keys;
+		rval.maxLength = maxLength;
+		rval.setFieldState( getFieldState() );
 		return rval;
 	}
+
+	private void readObject( ObjectInputStream in ) throws IOException, ClassNotFoundException{
+		in.defaultReadObject();
+		setSorted( aliveCells );
+	}
 }
\ No newline at end of file
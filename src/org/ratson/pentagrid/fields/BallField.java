@@ -0,0 +1,322 @@
+package org.ratson.pentagrid.fields;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.ratson.pentagrid.EvaluationBudget;
+import org.ratson.pentagrid.Field;
+import org.ratson.pentagrid.Path;
+import org.ratson.pentagrid.TotalisticRule;
+
+/**Field, bounded by the ball of the given radius around the root.
+ * Cells are identified by the dense ids of the {@link BallGraph}, and evaluation works on the plain arrays, without paths and maps.
+ * Only cells near the alive ones are evaluated, so small patterns in the big ball are cheap.
+ * Like {@link ArrayField}, supports only states 0 and 1.*/
+public final class BallField extends Field{
+	private static final long serialVersionUID = 1L;
+	/**Cells outside the ball are always dead*/
+	public static final int BOUNDARY_DEAD = 0;
+	/**Cells outside the ball are always alive*/
+	public static final int BOUNDARY_ALIVE = 1;
+	/**Pattern must not reach the outermost ring of the ball: RuntimeException is thrown*/
+	public static final int BOUNDARY_ERROR = 2;
+
+	/**Budget is checked after every 1024 candidate cells*/
+	private static final int BUDGET_CHECK_MASK = 1023;
+	private final int radius;
+	private final int boundary;
+	/**Ids of the alive cells, sorted*/
+	private int[] alive = new int[0];
+	private boolean boundaryTouched = false;
+	/**Fingerprint of the alive cells, updated on every change*/
+	private transient long fingerprint = 0;
+	private transient BallGraph graph;
+	private transient byte[] states;
+	private transient byte[] sums;
+	/**Cells, that are already added to the candidates list*/
+	private transient boolean[] marks;
+	private transient int[] candidates;
+
+	public BallField( int radius ){
+		this( radius, BOUNDARY_DEAD );
+	}
+	public BallField( int radius, int boundary ){
+		if ( boundary < BOUNDARY_DEAD || boundary > BOUNDARY_ERROR )
+			throw new RuntimeException( "Unknown boundary type:"+boundary );
+		this.radius = radius;
+		this.boundary = boundary;
+		init();
+	}
+	private void init(){
+		graph = BallGraph.get( radius );
+		states = new byte[ graph.size ];
+		sums = new byte[ graph.size ];
+		marks = new boolean[ graph.size ];
+		candidates = new int[ 64 ];
+	}
+
+	public int getRadius(){ return radius; }
+	public int getBoundary(){ return boundary; }
+
+	/**Id of the cell, or -1 if cell is outside the ball*/
+	private int cellId( Path p ){
+		int id = graph.find( p );
+		if ( id < 0 && boundary == BOUNDARY_ERROR )
+			throw new RuntimeException( "Cell "+p+" is outside of the field" );
+		return id;
+	}
+
+	private long calculateFingerprint( int[] ids ){
+		long[] hashes = graph.getCellHashes();
+		long rval = 0;
+		for( int id : ids ) rval ^= hashes[ id ];
+		return rval;
+	}
+
+	@Override
+	public synchronized void setCells( Iterable<Path> cells ){
+		for( int id : alive ) states[ id ] = 0;
+		ArrayList<Integer> ids = new ArrayList<Integer>();
+		for( Path p : cells ){
+			int id = cellId( p );
+			if ( id < 0 || states[id] != 0 ) continue; //outside cells can not be changed
+			states[ id ] = 1;
+			ids.add( id );
+		}
+		int[] newAlive = new int[ ids.size() ];
+		for( int i = 0; i < newAlive.length; ++i ) newAlive[i] = ids.get(i);
+		setAlive( newAlive );
+		fingerprint = calculateFingerprint( newAlive );
+	}
+
+	/**Set new sorted array of the alive cells and check the boundary*/
+	private void setAlive( int[] newAlive ){
+		Arrays.sort( newAlive );
+		alive = newAlive;
+		boundaryTouched = false;
+		for( int id : alive ){
+			if ( graph.outside[id] != 0 ){
+				boundaryTouched = true;
+				break;
+			}
+		}
+		if ( boundaryTouched && boundary == BOUNDARY_ERROR )
+			throw new RuntimeException( "Pattern reached the boundary of the field" );
+	}
+
+	private int addCandidate( int id, int numCandidates ){
+		if ( marks[ id ] ) return numCandidates;
+		marks[ id ] = true;
+		if ( numCandidates == candidates.length ) candidates = Arrays.copyOf( candidates, numCandidates * 2 );
+		candidates[ numCandidates ] = id;
+		return numCandidates + 1;
+	}
+
+	/**Collect cells, that can change: alive, their neighbores and, if outside is alive, the boundary.
+	 * Calculate their sums. Returns number of the candidates*/
+	private int calculateSums(){
+		int numCandidates = 0;
+		for( int id : alive ) numCandidates = addCandidate( id, numCandidates );
+		if ( boundary == BOUNDARY_ALIVE ){
+			for( int id : graph.boundaryCells ){
+				sums[ id ] += graph.outside[ id ];
+				numCandidates = addCandidate( id, numCandidates );
+			}
+		}
+		int[] neighStart = graph.neighStart;
+		int[] neighbores = graph.neighbores;
+		for( int id : alive ){
+			for( int j = neighStart[id]; j < neighStart[id+1]; ++j ){
+				int n = neighbores[j];
+				sums[ n ] ++;
+				numCandidates = addCandidate( n, numCandidates );
+			}
+		}
+		return numCandidates;
+	}
+
+	@Override
+	public synchronized void evaluate( TotalisticRule r ){
+		applyRule( r, calculateSums() );
+	}
+
+	/**Sums are calculated first; then the next population is counted, and evaluation is aborted as soon as it exceeds the limit.
+	 * Cells are changed only after all checks*/
+	@Override
+	public synchronized int evaluate( TotalisticRule r, EvaluationBudget budget ){
+		budget.begin();
+		int numCandidates = calculateSums();
+		budget.setProgress( 0.5 );
+		int result = checkNextPopulation( r, numCandidates, budget );
+		if ( result != EvaluationBudget.COMPLETED ){
+			discardSums( numCandidates );
+			return budget.end( result );
+		}
+		applyRule( r, numCandidates );
+		return budget.end( EvaluationBudget.COMPLETED );
+	}
+
+	/**Count alive cells of the next generation, when sums are known, checking the budget on the way*/
+	private int checkNextPopulation( TotalisticRule r, int numCandidates, EvaluationBudget budget ){
+		if ( numCandidates <= budget.getMaxPopulation() ) return budget.check( candidates.length * 4L ); //limit can not be exceeded
+		int fieldState = getFieldState();
+		int population = 0;
+		for( int i = 0; i < numCandidates; ++i ){
+			int id = candidates[i];
+			if ( r.nextState( fieldState, states[id], sums[id] ) != 0 ) population ++;
+			if ( ( i & BUDGET_CHECK_MASK ) == BUDGET_CHECK_MASK ){
+				budget.setProgress( 0.5 + 0.5 * i / numCandidates );
+				int result = budget.check( population, candidates.length * 4L );
+				if ( result != EvaluationBudget.COMPLETED ) return result;
+			}
+		}
+		return budget.check( population, candidates.length * 4L );
+	}
+
+	/**Drop the calculated sums without changing the cells*/
+	private void discardSums( int numCandidates ){
+		for( int i = 0; i < numCandidates; ++i ){
+			int id = candidates[i];
+			sums[ id ] = 0;
+			marks[ id ] = false;
+		}
+	}
+
+	/**Update candidate cells, when their sums are calculated*/
+	private void applyRule( TotalisticRule r, int numCandidates ){
+		int fieldState = getFieldState();
+		long[] hashes = graph.getCellHashes();
+		//Sums are known, so states can be updated in place. Alive cells are collected in the same array
+		int population = 0;
+		for( int i = 0; i < numCandidates; ++i ){
+			int id = candidates[i];
+			int nextState = r.nextState( fieldState, states[id], sums[id] );
+			if ( nextState != states[id] ) fingerprint ^= hashes[ id ];
+			states[ id ] = (byte)nextState;
+			sums[ id ] = 0;
+			marks[ id ] = false;
+			if ( nextState != 0 ) candidates[ population++ ] = id;
+		}
+		setAlive( Arrays.copyOf( candidates, population ) );
+		setFieldState( r.nextFieldState( fieldState ));
+	}
+
+	/**Evaluate the field, unless some cell needs one of the given transitions.
+	 * Transition of the cell in the given state with given neighbore sum is the bit (11*state + sum).
+	 * Returns 0, if field was evaluated. Otherwise field is not changed, and needed transitions from the given set are returned.
+	 * Outside cells are not checked.*/
+	public synchronized long evaluateUnless( TotalisticRule r, long transitions ){
+		int numCandidates = calculateSums();
+		long used = 0;
+		if ( transitions != 0 ){
+			for( int i = 0; i < numCandidates; ++i ){
+				int id = candidates[i];
+				used |= 1L << ( 11*states[id] + sums[id] );
+			}
+			used &= transitions;
+		}
+		if ( used != 0 ){
+			discardSums( numCandidates );
+			return used;
+		}
+		applyRule( r, numCandidates );
+		return 0;
+	}
+
+	/**Replace alive cells by the cells with given ids, previously returned by {@link #getAliveIds}. Array is not copied*/
+	public synchronized void setAliveIds( int[] ids ){
+		for( int id : alive ) states[ id ] = 0;
+		for( int id : ids ) states[ id ] = 1;
+		setAlive( ids );
+		fingerprint = calculateFingerprint( ids );
+	}
+
+	/**Sorted ids of the alive cells. Returns reference to the internal array, that is never modified*/
+	public synchronized int[] getAliveIds(){
+		return alive;
+	}
+
+	@Override
+	public synchronized long fingerprint(){
+		return fingerprint;
+	}
+
+	/**True, if some alive cell is on the outermost ring of the ball, so the evolution may differ from the unbounded field*/
+	public synchronized boolean touchesBoundary(){
+		return boundaryTouched;
+	}
+
+	@Override
+	public synchronized Path[] getAliveCellsArray(){
+		Path[] rval = new Path[ alive.length ];
+		for( int i = 0; i < alive.length; ++i ) rval[i] = graph.path( alive[i] );
+		return rval;
+	}
+
+	@Override
+	public synchronized Iterable<Path> getAliveCells(){
+		return Arrays.asList( getAliveCellsArray() );
+	}
+
+	@Override
+	public int population(){
+		return alive.length;
+	}
+
+	@Override
+	public synchronized int getCell( Path cell ){
+		int id = graph.find( cell );
+		if ( id < 0 ) return (boundary == BOUNDARY_ALIVE) ? 1 : 0;
+		return states[ id ];
+	}
+
+	@Override
+	public synchronized void setCell( Path cell, int newState ){
+		if ( newState != 0 && newState != 1 ) throw new RuntimeException( "This field supports only 1 and 0 states" );
+		int id = cellId( cell );
+		if ( id < 0 || states[id] == newState ) return;
+		states[ id ] = (byte)newState;
+		fingerprint ^= graph.getCellHashes()[ id ];
+		int pos = Arrays.binarySearch( alive, id );
+		int[] newAlive;
+		if ( newState != 0 ){
+			newAlive = Arrays.copyOf( alive, alive.length + 1 );
+			newAlive[ alive.length ] = id;
+		}else{
+			newAlive = new int[ alive.length - 1 ];
+			System.arraycopy( alive, 0, newAlive, 0, pos );
+			System.arraycopy( alive, pos+1, newAlive, pos, alive.length - pos - 1 );
+		}
+		setAlive( newAlive );
+	}
+
+	/**Arrays of the whole ball are allocated in advance*/
+	@Override
+	public int heapBytesPerCell(){
+		return 8;
+	}
+	@Override
+	public int storedBytesPerCell(){
+		return 0;
+	}
+
+	@Override
+	public synchronized Field copy(){
+		BallField rval = new BallField( radius, boundary );
+		rval.alive = alive;
+		rval.boundaryTouched = boundaryTouched;
+		rval.fingerprint = fingerprint;
+		for( int id : alive ) rval.states[ id ] = 1;
+		rval.setFieldState( getFieldState() );
+		return rval;
+	}
+
+	private void readObject( ObjectInputStream in ) throws IOException, ClassNotFoundException{
+		in.defaultReadObject();
+		init();
+		for( int id : alive ) states[ id ] = 1;
+		fingerprint = calculateFingerprint( alive );
+	}
+}
@@ -0,0 +1,185 @@
+package org.ratson.pentagrid.fields;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.ratson.pentagrid.Field;
+import org.ratson.pentagrid.Path;
+import org.ratson.pentagrid.PathNavigation;
+
+/**Neighborhood graph of all cells in the ball of the given radius: paths, shorter than the radius.
+ * These are the same cells, as {@link org.ratson.pentagrid.Util#forField} enumerates.
+ * Cells are numbered by dense ids ring by ring, and in the order of paths inside the ring,
+ * so that the inner rings, where patterns usually live, occupy the beginning of the arrays, and neighbore cells have close ids.
+ * Id of the path is calculated arithmetically from its digits, without any map.
+ * Neighbores are stored in the compressed rows: neighbores of the cell i are neighbores[neighStart[i]] .. neighbores[neighStart[i+1]-1].
+ * Neighbores outside the ball are omitted.
+ * Graphs are immutable and cached, one for each radius.*/
+final class BallGraph {
+	private static final int ROOT = 0;
+	private static final int ODD = 1;
+	private static final int EVEN = 2;
+	private static final int[] NUM_CHILDREN = { 10, 3, 5 };
+
+	private static final Map<Integer, BallGraph> cache = new HashMap<Integer, BallGraph>();
+
+	final int radius;
+	/**Number of cells in the ball*/
+	final int size;
+	final int[] neighStart;
+	final int[] neighbores;
+	/**Number of the neighbores outside the ball. Non-zero only for the outermost ring*/
+	final byte[] outside;
+	/**Ids of the outermost ring cells*/
+	final int[] boundaryCells;
+	/**Neighbores table with exactly 10 entries per cell; missing neighbores are replaced by the id {@link #size}. Created on demand*/
+	private int[] paddedNeighbores = null;
+	/**{@link org.ratson.pentagrid.Field#cellHash} of every alive cell. Created on demand*/
+	private long[] cellHashes = null;
+	/**Id of the first cell of the ring with given path length*/
+	private final int[] ringStart;
+	/**before[kind][levels][index]: number of cells, that are given number of levels below the children of the node of given kind,
+	 * having smaller index*/
+	private final int[][][] before;
+
+	/**Cached graph for the given radius*/
+	public static synchronized BallGraph get( int radius ){
+		BallGraph g = cache.get( radius );
+		if ( g == null ){
+			g = new BallGraph( radius );
+			cache.put( radius, g );
+		}
+		return g;
+	}
+
+	private BallGraph( int radius ){
+		if ( radius < 1 ) throw new RuntimeException( "Ball radius must be positive" );
+		this.radius = radius;
+		//levelSize[kind][levels]: number of cells, that are exactly given number of levels below the node of given kind
+		long[][] levelSize = new long[3][ radius ];
+		for( int kind = 0; kind < 3; ++kind ) levelSize[kind][0] = 1;
+		for( int levels = 1; levels < radius; ++ levels ){
+			for( int kind = 0; kind < 3; ++kind ){
+				long s = 0;
+				for( int c = 1; c <= NUM_CHILDREN[kind]; ++c ) s += levelSize[ childKind(c) ][ levels-1 ];
+				levelSize[kind][levels] = s;
+			}
+		}
+		long total = 0;
+		for( int len = 0; len < radius; ++len ) total += levelSize[ ROOT ][ len ];
+		if ( total * 10 > Integer.MAX_VALUE ) throw new RuntimeException( "Ball of radius "+radius+" is too big" );
+		size = (int)total;
+		ringStart = new int[ radius + 1 ];
+		for( int len = 0; len < radius; ++len ) ringStart[ len+1 ] = ringStart[ len ] + (int)levelSize[ ROOT ][ len ];
+
+		before = new int[3][ radius ][];
+		for( int kind = 0; kind < 3; ++kind ){
+			for( int levels = 0; levels < radius; ++levels ){
+				int[] b = new int[ NUM_CHILDREN[kind] + 1 ];
+				int sum = 0;
+				for( int c = 1; c <= NUM_CHILDREN[kind]; ++c ){
+					b[c] = sum;
+					sum += (int)levelSize[ childKind(c) ][ levels ];
+				}
+				before[kind][levels] = b;
+			}
+		}
+
+		//Build neighbore table
+		neighStart = new int[ size + 1 ];
+		int[] neighTable = new int[ size * 10 ];
+		outside = new byte[ size ];
+		int numBoundary = 0;
+		Path[] neigh = new Path[10];
+		int pos = 0;
+		for( int id = 0; id < size; ++id ){
+			neighStart[ id ] = pos;
+			PathNavigation.neigh10( path(id), neigh );
+			for (int i = 0; i < neigh.length; i++) {
+				int n = find( neigh[i] );
+				if ( n >= 0 ){
+					neighTable[ pos++ ] = n;
+				}else{
+					outside[ id ] ++;
+				}
+			}
+			if ( outside[id] != 0 ) numBoundary ++;
+		}
+		neighStart[ size ] = pos;
+		neighbores = Arrays.copyOf( neighTable, pos );
+
+		boundaryCells = new int[ numBoundary ];
+		for( int id = 0, i = 0; id < size; ++id ){
+			if ( outside[id] != 0 ) boundaryCells[ i++ ] = id;
+		}
+	}
+
+	/**Neighbores of the cell i are paddedNeighbores[10*i] .. paddedNeighbores[10*i+9].
+	 * Neighbores outside the ball are replaced by the id {@link #size}, so that users can keep an always empty cell there.*/
+	public synchronized int[] getPaddedNeighbores(){
+		if ( paddedNeighbores == null ){
+			int[] padded = new int[ size * 10 ];
+			for( int id = 0; id < size; ++id ){
+				int j = 10 * id;
+				for( int k = neighStart[id]; k < neighStart[id+1]; ++k ) padded[ j++ ] = neighbores[k];
+				while( j < 10 * (id+1) ) padded[ j++ ] = size;
+			}
+			paddedNeighbores = padded;
+		}
+		return paddedNeighbores;
+	}
+
+	/**Hashes of the alive cells, indexed by id*/
+	public synchronized long[] getCellHashes(){
+		if ( cellHashes == null ){
+			long[] hashes = new long[ size ];
+			for( int id = 0; id < size; ++id ) hashes[ id ] = Field.cellHash( path(id), 1 );
+			cellHashes = hashes;
+		}
+		return cellHashes;
+	}
+
+	private static int childKind( int index ){
+		return ( (index & 1) == 1 ) ? ODD : EVEN;
+	}
+	private static int kind( Path p ){
+		if ( p.isRoot() ) return ROOT;
+		return p.odd() ? ODD : EVEN;
+	}
+
+	/**Id of the cell, or -1 if it is outside the ball*/
+	public int find( Path p ){
+		int len = p.length();
+		if ( len >= radius ) return -1;
+		int id = ringStart[ len ];
+		for( Path cur = p; ! cur.isRoot(); cur = cur.getTail() ){
+			Path parent = cur.getTail();
+			id += before[ kind(parent) ][ len - 1 - parent.length() ][ cur.getIndex() ];
+		}
+		return id;
+	}
+
+	/**Length of the path of the cell with given id: its ring*/
+	public int length( int id ){
+		int len = 0;
+		while( ringStart[ len+1 ] <= id ) len ++;
+		return len;
+	}
+
+	/**Path of the cell with given id*/
+	public Path path( int id ){
+		int len = 0;
+		while( ringStart[ len+1 ] <= id ) len ++;
+		int pos = id - ringStart[ len ];
+		Path p = Path.getRoot();
+		for( int depth = 0; depth < len; ++depth ){
+			int[] b = before[ kind(p) ][ len - 1 - depth ];
+			int c = b.length - 1;
+			while( b[c] > pos ) c --;
+			pos -= b[c];
+			p = p.child( c );
+		}
+		return p;
+	}
+}
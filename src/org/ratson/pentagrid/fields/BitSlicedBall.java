@@ -0,0 +1,262 @@
+package org.ratson.pentagrid.fields;
+
+import java.util.Arrays;
+
+import org.ratson.pentagrid.Path;
+import org.ratson.pentagrid.Rule;
+
+/**Simulates 64 independent patterns (lanes) at once in the ball of the given radius.
+ * Every cell is one long word, bit i of which is the cell state in the lane i. Each lane has its own rule.
+ * Neighbore sums are calculated by the bit-sliced adders, and the born/survive tables of the rules become per-lane masks,
+ * so one pass over the cells evaluates all lanes.
+ * Only cells, alive in some lane, and their neighbores are evaluated. Cells outside the ball are always dead.*/
+public final class BitSlicedBall {
+	public static final int LANES = 64;
+	private final BallGraph graph;
+	/**10 neighbores of every cell, outside neighbores refer to the always empty cell at the end of the cells array*/
+	private final int[] neighbores;
+	/**State words of all cells, and one empty cell*/
+	private final long[] cells;
+	/**Bit i of bornMasks[k] is set, if rule of the lane i gives birth with k neighbores*/
+	private final long[] bornMasks = new long[11];
+	private final long[] surviveMasks = new long[11];
+	/**bornMasks ^ surviveMasks: lanes, where state of the cell matters*/
+	private final long[] switchMasks = new long[11];
+	/**Cells with nonzero state words*/
+	private int[] active = new int[64];
+	private int numActive = 0;
+	private int[] candidates = new int[64];
+	private long[] nextStates = new long[64];
+	private final boolean[] marks;
+	/**Saved states of the lanes, used to detect cycles. Allocated on demand*/
+	private long[] snapshot = null;
+	private boolean[] inSnapshot = null;
+	/**Cells with nonzero snapshot words*/
+	private int[] snapshotIds = new int[64];
+	private int numSnapshotIds = 0;
+
+	public BitSlicedBall( int radius ){
+		graph = BallGraph.get( radius );
+		neighbores = graph.getPaddedNeighbores();
+		cells = new long[ graph.size + 1 ];
+		marks = new boolean[ graph.size ];
+	}
+
+	/**Set rule of the lane. Rule must keep the vacuum stable*/
+	public void setRule( int lane, Rule r ){
+		if ( ! r.isVacuumStable() ) throw new RuntimeException( "Rules with B0 are not supported" );
+		long bit = 1L << lane;
+		for( int k = 0; k < 11; ++k ){
+			bornMasks[k] = r.isBorn( k ) ? (bornMasks[k] | bit) : (bornMasks[k] & ~bit);
+			surviveMasks[k] = r.isSurviving( k ) ? (surviveMasks[k] | bit) : (surviveMasks[k] & ~bit);
+			switchMasks[k] = bornMasks[k] ^ surviveMasks[k];
+		}
+	}
+
+	/**Make given cells alive in the lane. Cells outside the ball are ignored*/
+	public void setCells( int lane, Path[] alive ){
+		long bit = 1L << lane;
+		for( Path p : alive ){
+			int id = graph.find( p );
+			if ( id < 0 ) continue;
+			if ( cells[id] == 0 ) addActive( id );
+			cells[ id ] |= bit;
+		}
+	}
+
+	/**State of the cell in the lane*/
+	public int getCell( int lane, Path p ){
+		int id = graph.find( p );
+		if ( id < 0 ) return 0;
+		return (int)( (cells[id] >>> lane) & 1 );
+	}
+
+	private void addActive( int id ){
+		if ( numActive == active.length ) active = Arrays.copyOf( active, numActive * 2 );
+		active[ numActive++ ] = id;
+	}
+
+	/**Kill all cells in the given lanes, and forget their snapshots*/
+	public void clearLanes( long lanes ){
+		int n = 0;
+		for( int i = 0; i < numActive; ++i ){
+			int id = active[i];
+			cells[ id ] &= ~lanes;
+			if ( cells[id] != 0 ) active[ n++ ] = id;
+		}
+		numActive = n;
+		clearSnapshot( lanes );
+	}
+
+	/**Kill all cells in all lanes*/
+	public void clear(){
+		clearLanes( -1L );
+	}
+
+	private int addCandidate( int id, int numCandidates ){
+		if ( marks[ id ] ) return numCandidates;
+		marks[ id ] = true;
+		if ( numCandidates == candidates.length ){
+			candidates = Arrays.copyOf( candidates, numCandidates * 2 );
+			nextStates = Arrays.copyOf( nextStates, numCandidates * 2 );
+		}
+		candidates[ numCandidates ] = id;
+		return numCandidates + 1;
+	}
+
+	/**Evaluate one generation in all lanes. Returns mask of the lanes, where something has changed*/
+	public long step(){
+		int[] neighbores = this.neighbores;
+		long[] cells = this.cells;
+		int numCandidates = 0;
+		for( int i = 0; i < numActive; ++i ){
+			int id = active[i];
+			numCandidates = addCandidate( id, numCandidates );
+			for( int j = 10*id; j < 10*id + 10; ++j ){
+				int n = neighbores[j];
+				if ( n != graph.size ) numCandidates = addCandidate( n, numCandidates );
+			}
+		}
+		long changed = 0;
+		for( int i = 0; i < numCandidates; ++i ){
+			int id = candidates[i];
+			int j = 10 * id;
+			//4-bit sum of the 10 neighbores in every lane, by the tree of full adders
+			long x0 = cells[ neighbores[j] ], x1 = cells[ neighbores[j+1] ], x2 = cells[ neighbores[j+2] ];
+			long x3 = cells[ neighbores[j+3] ], x4 = cells[ neighbores[j+4] ], x5 = cells[ neighbores[j+5] ];
+			long x6 = cells[ neighbores[j+6] ], x7 = cells[ neighbores[j+7] ], x8 = cells[ neighbores[j+8] ];
+			long x9 = cells[ neighbores[j+9] ];
+			long t = x0 ^ x1;
+			long sa = t ^ x2, ca = (x0 & x1) | (x2 & t);
+			t = x3 ^ x4;
+			long sb = t ^ x5, cb = (x3 & x4) | (x5 & t);
+			t = x6 ^ x7;
+			long sc = t ^ x8, cc = (x6 & x7) | (x8 & t);
+			t = sa ^ sb;
+			long sd = t ^ sc, cd = (sa & sb) | (sc & t);
+			long s0 = sd ^ x9, ce = sd & x9;
+			//5 bits of weight 2
+			t = ca ^ cb;
+			long sf = t ^ cc, k1 = (ca & cb) | (cc & t);
+			t = sf ^ cd;
+			long s1 = t ^ ce, k2 = (sf & cd) | (ce & t);
+			//2 bits of weight 4
+			long s2 = k1 ^ k2, s3 = k1 & k2;
+
+			long state = cells[ id ];
+			long next = applyRule( state, s0, s1, s2, s3 );
+			nextStates[ i ] = next;
+			changed |= next ^ state;
+		}
+		if ( active.length < numCandidates ) active = new int[ candidates.length ];
+		int n = 0;
+		for( int i = 0; i < numCandidates; ++i ){
+			int id = candidates[i];
+			long next = nextStates[i];
+			cells[ id ] = next;
+			marks[ id ] = false;
+			if ( next != 0 ) active[ n++ ] = id;
+		}
+		numActive = n;
+		return changed;
+	}
+
+	/**Select rule outcome for every lane by the 4 bits of the neighbore sum*/
+	private long applyRule( long state, long s0, long s1, long s2, long s3 ){
+		long[] b = bornMasks, s = switchMasks;
+		//r[k]: next state of the lanes, if they have k neighbores
+		long r0 = b[0] ^ ( state & s[0] );
+		long r1 = b[1] ^ ( state & s[1] );
+		long r2 = b[2] ^ ( state & s[2] );
+		long r3 = b[3] ^ ( state & s[3] );
+		long r4 = b[4] ^ ( state & s[4] );
+		long r5 = b[5] ^ ( state & s[5] );
+		long r6 = b[6] ^ ( state & s[6] );
+		long r7 = b[7] ^ ( state & s[7] );
+		long r8 = b[8] ^ ( state & s[8] );
+		long r9 = b[9] ^ ( state & s[9] );
+		long r10 = b[10] ^ ( state & s[10] );
+		//multiplexer tree
+		long m01 = r0 ^ ( (r0 ^ r1) & s0 );
+		long m23 = r2 ^ ( (r2 ^ r3) & s0 );
+		long m45 = r4 ^ ( (r4 ^ r5) & s0 );
+		long m67 = r6 ^ ( (r6 ^ r7) & s0 );
+		long m89 = r8 ^ ( (r8 ^ r9) & s0 );
+		long m1011 = r10 & ~s0;
+		long m0123 = m01 ^ ( (m01 ^ m23) & s1 );
+		long m4567 = m45 ^ ( (m45 ^ m67) & s1 );
+		long m8_11 = m89 ^ ( (m89 ^ m1011) & s1 );
+		long m0_7 = m0123 ^ ( (m0123 ^ m4567) & s2 );
+		long m8_15 = m8_11 & ~s2;
+		return m0_7 ^ ( (m0_7 ^ m8_15) & s3 );
+	}
+
+	/**Count alive cells in every lane*/
+	public void populations( int[] population ){
+		Arrays.fill( population, 0 );
+		for( int i = 0; i < numActive; ++i ){
+			long w = cells[ active[i] ];
+			while( w != 0 ){
+				population[ Long.numberOfTrailingZeros( w ) ] ++;
+				w &= w - 1;
+			}
+		}
+	}
+
+	/**Mask of the lanes, having alive cells on the outermost ring of the ball*/
+	public long boundaryLanes(){
+		long rval = 0;
+		byte[] outside = graph.outside;
+		for( int i = 0; i < numActive; ++i ){
+			int id = active[i];
+			if ( outside[id] != 0 ) rval |= cells[id];
+		}
+		return rval;
+	}
+
+	private void clearSnapshot( long lanes ){
+		int n = 0;
+		for( int i = 0; i < numSnapshotIds; ++i ){
+			int id = snapshotIds[i];
+			snapshot[ id ] &= ~lanes;
+			if ( snapshot[id] != 0 ) snapshotIds[ n++ ] = id;
+			else inSnapshot[ id ] = false;
+		}
+		numSnapshotIds = n;
+	}
+
+	/**Remember current state of the given lanes. Snapshots of the other lanes are not changed*/
+	public void saveSnapshot( long lanes ){
+		if ( snapshot == null ){
+			snapshot = new long[ cells.length ];
+			inSnapshot = new boolean[ cells.length ];
+		}
+		clearSnapshot( lanes );
+		for( int i = 0; i < numActive; ++i ){
+			int id = active[i];
+			long w = cells[ id ] & lanes;
+			if ( w == 0 ) continue;
+			snapshot[ id ] |= w;
+			if ( ! inSnapshot[id] ){
+				inSnapshot[ id ] = true;
+				if ( numSnapshotIds == snapshotIds.length ) snapshotIds = Arrays.copyOf( snapshotIds, numSnapshotIds * 2 );
+				snapshotIds[ numSnapshotIds++ ] = id;
+			}
+		}
+	}
+
+	/**Mask of the lanes, whose state differs from their saved snapshot. Only meaningful for the lanes with saved snapshot*/
+	public long snapshotDifference(){
+		if ( snapshot == null ) return -1L;
+		long rval = 0;
+		for( int i = 0; i < numSnapshotIds; ++i ){
+			int id = snapshotIds[i];
+			rval |= snapshot[id] ^ cells[id];
+		}
+		for( int i = 0; i < numActive; ++i ){
+			int id = active[i];
+			rval |= snapshot[id] ^ cells[id];
+		}
+		return rval;
+	}
+}
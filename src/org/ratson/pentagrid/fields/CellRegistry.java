@@ -0,0 +1,102 @@
+package org.ratson.pentagrid.fields;
+
+import java.util.Arrays;
+
+import org.ratson.pentagrid.Path;
+import org.ratson.pentagrid.PathNavigation;
+
+/**Growable registry of cells. Assigns dense int ids to the paths, when they are first used, and lazily fills the neighbore table:
+ * neighbores[10*id + k] is the id of the k'th neighbore (in the order of {@link PathNavigation#neigh10(Path, Path[])}), or UNRESOLVED.
+ * Once cell and its neighbores are registered, navigation is pure array access.
+ * Ids are not reused; unused cells are removed by {@link #compact}, which renumbers the remaining ones.*/
+final class CellRegistry {
+	static final int UNRESOLVED = -1;
+	private static final int MIN_CAPACITY = 16;
+
+	/**Maps path to the slot, whose state is the id of the path*/
+	private CellTable index = new CellTable();
+	Path[] paths = new Path[ MIN_CAPACITY ];
+	/**Neighbore table. Array is replaced when registry grows, so it must be re-read after registering new cells*/
+	int[] neighbores = newNeighbores( MIN_CAPACITY );
+	/**Number of the registered cells*/
+	int size = 0;
+	private final Path[] buffer = new Path[10];
+
+	private static int[] newNeighbores( int capacity ){
+		int[] rval = new int[ capacity * 10 ];
+		Arrays.fill( rval, UNRESOLVED );
+		return rval;
+	}
+
+	int capacity(){ return paths.length; }
+
+	/**Id of the cell, or -1 if it is not registered*/
+	int idOf( Path p ){
+		int slot = index.find( p );
+		return ( slot < 0 ) ? -1 : index.states[ slot ];
+	}
+
+	/**Id of the cell, registering it if needed*/
+	int register( Path p ){
+		int slot = index.find( p );
+		if ( slot >= 0 ) return index.states[ slot ];
+		if ( size == paths.length ){
+			int capacity = paths.length * 2;
+			paths = Arrays.copyOf( paths, capacity );
+			int[] n = newNeighbores( capacity );
+			System.arraycopy( neighbores, 0, n, 0, neighbores.length );
+			neighbores = n;
+		}
+		int id = size ++;
+		paths[ id ] = p;
+		index.put( p, id );
+		return id;
+	}
+
+	/**Make sure, that all neighbores of the cell are registered and resolved. Returns offset of its row in the neighbore table*/
+	int resolve( int id ){
+		int base = id * 10;
+		for( int k = 0; k < 10; ++k ){
+			if ( neighbores[ base + k ] == UNRESOLVED ){
+				PathNavigation.neigh10( paths[ id ], buffer );
+				for( k = 0; k < 10; ++k ){
+					if ( neighbores[ base + k ] == UNRESOLVED ){
+						int n = register( buffer[k] ); //may replace the table
+						neighbores[ base + k ] = n;
+					}
+				}
+				break;
+			}
+		}
+		return base;
+	}
+
+	/**Remove cells, that are not marked, and renumber the remaining ones, keeping their order.
+	 * References to the removed cells become UNRESOLVED. Returns new ids of the old cells, -1 for the removed ones*/
+	int[] compact( boolean[] keep ){
+		int[] newIds = new int[ size ];
+		int newSize = 0;
+		for( int id = 0; id < size; ++id ) newIds[ id ] = keep[ id ] ? newSize++ : -1;
+		int capacity = MIN_CAPACITY;
+		while( capacity < newSize ) capacity *= 2;
+		Path[] newPaths = new Path[ capacity ];
+		int[] newNeighbores = newNeighbores( capacity );
+		CellTable newIndex = new CellTable();
+		newIndex.ensureCapacity( newSize );
+		for( int id = 0; id < size; ++id ){
+			int newId = newIds[ id ];
+			if ( newId < 0 ) continue;
+			newPaths[ newId ] = paths[ id ];
+			newIndex.put( paths[ id ], newId );
+			for( int k = 0; k < 10; ++k ){
+				int n = neighbores[ id*10 + k ];
+				newNeighbores[ newId*10 + k ] = ( n == UNRESOLVED ) ? UNRESOLVED : newIds[ n ];
+			}
+		}
+		paths = newPaths;
+		neighbores = newNeighbores;
+		index = newIndex;
+		size = newSize;
+		return newIds;
+	}
+}
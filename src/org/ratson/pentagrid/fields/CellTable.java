@@ -0,0 +1,151 @@
+package org.ratson.pentagrid.fields;
+
+import java.util.Arrays;
+
+import org.ratson.pentagrid.Path;
+
+/**Open-addressing hash table of cells, with linear probing.
+ * Stores cell paths, states and neighbore sums in the parallel arrays, so no objects are created per cell.
+ * Paths are canonical, so they are compared by reference.
+ * Removed cells leave tombstones, that are dropped when table is rehashed.*/
+final class CellTable {
+	private static final Object TOMBSTONE = new Object();
+	private static final int MIN_CAPACITY = 16;
+	/**Maximal fraction of occupied slots (including tombstones)*/
+	private static final double MAX_LOAD = 0.75;
+
+	/**Slot contents. Null for empty slots, TOMBSTONE for removed cells, otherwise Path*/
+	Object[] keys;
+	int[] states;
+	int[] sums;
+	private int mask;
+	private int size = 0;
+	/**Number of non-empty slots, including tombstones*/
+	private int used = 0;
+
+	public CellTable(){
+		allocate( MIN_CAPACITY );
+	}
+
+	public CellTable( CellTable t ){
+		keys = t.keys.clone();
+		states = t.states.clone();
+		sums = t.sums.clone();
+		mask = t.mask;
+		size = t.size;
+		used = t.used;
+	}
+
+	private void allocate( int capacity ){
+		keys = new Object[ capacity ];
+		states = new int[ capacity ];
+		sums = new int[ capacity ];
+		mask = capacity - 1;
+	}
+
+	private static int hash( Path p ){
+		int h = p.hashCode() * 0x9E3779B9; //Path hash codes are poorly distributed in lower bits
+		return h ^ (h >>> 16);
+	}
+
+	public int size(){ return size; }
+	public int capacity(){ return keys.length; }
+
+	/**Path, stored in the slot, or null if slot is empty or removed*/
+	public Path keyAt( int slot ){
+		Object k = keys[ slot ];
+		return (k == null || k == TOMBSTONE) ? null : (Path)k;
+	}
+
+	/**Slot of the cell, or -1 if not present*/
+	public int find( Path p ){
+		int slot = hash(p) & mask;
+		while( true ){
+			Object k = keys[ slot ];
+			if ( k == p ) return slot;
+			if ( k == null ) return -1;
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	/**Slot of the cell; if not present, new cell with zero state and sum is inserted*/
+	public int insert( Path p ){
+		int slot = find( p );
+		if ( slot >= 0 ) return slot;
+		return insertNew( p );
+	}
+
+	/**Set state of the cell, inserting it if necessary*/
+	public void put( Path p, int state ){
+		int slot = insert( p );
+		states[ slot ] = state;
+	}
+
+	/**Insert cell, that is known to be absent. Returns its slot*/
+	public int insertNew( Path p ){
+		if ( used + 1 > keys.length * MAX_LOAD ) rehash( size + 1 );
+		int slot = hash(p) & mask;
+		while( true ){
+			Object k = keys[ slot ];
+			if ( k == null ){
+				used ++;
+				break;
+			}
+			if ( k == TOMBSTONE ) break;
+			slot = (slot + 1) & mask;
+		}
+		keys[ slot ] = p;
+		states[ slot ] = 0;
+		sums[ slot ] = 0;
+		size ++;
+		return slot;
+	}
+
+	/**Remove cell in the given slot*/
+	public void remove( int slot ){
+		assert keyAt( slot ) != null;
+		keys[ slot ] = TOMBSTONE;
+		states[ slot ] = 0;
+		sums[ slot ] = 0;
+		size --;
+	}
+
+	/**Remove all cells. Capacity is preserved*/
+	public void clear(){
+		if ( used == 0 ) return;
+		Arrays.fill( keys, null );
+		Arrays.fill( states, 0 );
+		Arrays.fill( sums, 0 );
+		size = 0;
+		used = 0;
+	}
+
+	/**Make sure, that given number of cells can be inserted without rehashing*/
+	public void ensureCapacity( int numCells ){
+		if ( used + numCells > keys.length * MAX_LOAD ) rehash( size + numCells );
+	}
+
+	/**Drop tombstones, if there are too many of them*/
+	public void compact(){
+		if ( used - size > size && used > MIN_CAPACITY ) rehash( size );
+	}
+
+	/**Re-insert all cells into the table, big enough for the given number of cells*/
+	private void rehash( int numCells ){
+		int capacity = MIN_CAPACITY;
+		while( capacity * MAX_LOAD < numCells ) capacity *= 2;
+		Object[] oldKeys = keys;
+		int[] oldStates = states;
+		int[] oldSums = sums;
+		allocate( capacity );
+		size = 0;
+		used = 0;
+		for (int i = 0; i < oldKeys.length; i++) {
+			Object k = oldKeys[i];
+			if ( k == null || k == TOMBSTONE ) continue;
+			int slot = insertNew( (Path)k );
+			states[ slot ] = oldStates[i];
+			sums[ slot ] = oldSums[i];
+		}
+	}
+}
@@ -0,0 +1,683 @@
+package org.ratson.pentagrid.fields;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+import org.ratson.pentagrid.EvaluationBudget;
+import org.ratson.pentagrid.Field;
+import org.ratson.pentagrid.FieldDelta;
+import org.ratson.pentagrid.PackedPath;
+import org.ratson.pentagrid.Path;
+import org.ratson.pentagrid.PathNavigation;
+import org.ratson.pentagrid.TotalisticRule;
+
+/**Field, that keeps alive cells on the disk: in the file of their packed keys (see {@link PackedPath#packHead}), sorted in increasing order.
+ * Evaluation is an external sort. Neighbore keys of the alive cells are collected in the buffer of the limited size;
+ * every full buffer is sorted, equal keys are counted, and the buffer is written to the disk as a sorted run.
+ * Runs are merged (k-way) into the neighbore sums, and the sums are merged with the alive cells, producing the file of the next generation.
+ * Heap use is bounded by the buffer size and the stream buffers, and does not depend on the population.
+ * Cells are either dead or alive, and must not be deeper than {@link #MAX_KEY_LENGTH}.
+ * Files are deleted, when they are replaced; field, that is not needed anymore, must be {@link #close() closed} to delete the last one.*/
+public final class ExternalField extends Field {
+	private static final long serialVersionUID = 1L;
+	/**Cells of this length or shorter have packed keys. Keys are shorter than the head word, so they are positive*/
+	public static final int MAX_KEY_LENGTH = PackedPath.HEAD_DIGITS - 1;
+	/**Default size of the sort buffer, in keys*/
+	public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+	/**Maximal number of runs, merged at once. More runs are merged in several passes*/
+	private static final int MAX_FAN_IN = 64;
+	private static final int STREAM_BUFFER = 1 << 16;
+	/**Key after the end of the sorted stream*/
+	private static final long END = Long.MAX_VALUE;
+
+	/**Directory for the temporary files*/
+	private final File directory;
+	private final int bufferSize;
+	/**Sorted keys of the alive cells*/
+	private transient File aliveFile = null;
+	private transient long population = 0;
+	/**Opened alive file for the random access, or null*/
+	private transient RandomAccessFile reader = null;
+
+	/**Field with the default buffer size, storing files in the default temporary directory*/
+	public ExternalField(){
+		this( null, DEFAULT_BUFFER_SIZE );
+	}
+
+	/**Field storing files in the given directory (null for the default temporary directory), and sorting at most bufferSize keys in memory*/
+	public ExternalField( File directory, int bufferSize ){
+		if ( bufferSize < 16 ) throw new RuntimeException( "Buffer size is too small: "+bufferSize );
+		this.directory = directory;
+		this.bufferSize = bufferSize;
+	}
+
+	///////////// Sorted streams /////////////////
+
+	/**Sorted stream of the keys with counts. After the end, key is END*/
+	private static abstract class Source{
+		long key = END;
+		int count = 0;
+		/**Go to the next key*/
+		abstract void advance() throws IOException;
+		abstract void close() throws IOException;
+	}
+
+	/**Keys of the alive cells file, with count 1*/
+	private static final class KeyReader extends Source{
+		private final DataInputStream in;
+		private long remaining;
+		KeyReader( File f, long size ) throws IOException{
+			in = new DataInputStream( new BufferedInputStream( new FileInputStream( f ), STREAM_BUFFER ) );
+			remaining = size;
+			advance();
+		}
+		@Override
+		void advance() throws IOException{
+			if ( remaining == 0 ){
+				key = END;
+				return;
+			}
+			remaining --;
+			key = in.readLong();
+			count = 1;
+		}
+		@Override
+		void close() throws IOException{ in.close(); }
+	}
+
+	/**Run file: records of the key (long) and count (byte), sorted by keys*/
+	private static final class RunReader extends Source{
+		private final DataInputStream in;
+		RunReader( File f ) throws IOException{
+			in = new DataInputStream( new BufferedInputStream( new FileInputStream( f ), STREAM_BUFFER ) );
+			advance();
+		}
+		@Override
+		void advance() throws IOException{
+			try{
+				key = in.readLong();
+			}catch( EOFException e ){
+				key = END;
+				return;
+			}
+			count = in.readByte();
+		}
+		@Override
+		void close() throws IOException{ in.close(); }
+	}
+
+	private static final Comparator<Source> byKey = new Comparator<Source>(){
+		@Override
+		public int compare( Source a, Source b ){
+			return ( a.key < b.key ) ? -1 : ( ( a.key == b.key ) ? 0 : 1 );
+		}
+	};
+
+	/**K-way merge of the sorted sources. Counts of the equal keys are summed*/
+	private static final class Merger extends Source{
+		private final PriorityQueue<Source> queue;
+		private final List<Source> sources;
+		Merger( List<Source> sources ) throws IOException{
+			this.sources = sources;
+			queue = new PriorityQueue<Source>( Math.max( 1, sources.size() ), byKey );
+			for( Source s : sources ) if ( s.key != END ) queue.add( s );
+			advance();
+		}
+		@Override
+		void advance() throws IOException{
+			if ( queue.isEmpty() ){
+				key = END;
+				return;
+			}
+			key = queue.peek().key;
+			count = 0;
+			while( ! queue.isEmpty() && queue.peek().key == key ){
+				Source s = queue.poll();
+				count += s.count;
+				s.advance();
+				if ( s.key != END ) queue.add( s );
+			}
+		}
+		@Override
+		void close() throws IOException{
+			for( Source s : sources ) s.close();
+		}
+	}
+
+	///////////// Files /////////////////
+
+	private File newFile( String prefix ) throws IOException{
+		return File.createTempFile( prefix, ".bin", directory );
+	}
+
+	private static DataOutputStream openOutput( File f ) throws IOException{
+		return new DataOutputStream( new BufferedOutputStream( new FileOutputStream( f ), STREAM_BUFFER ) );
+	}
+
+	private static void delete( List<File> files ){
+		if ( files == null ) return;
+		for( File f : files ) f.delete();
+	}
+
+	private static void writeRecord( DataOutputStream out, long key, int count ) throws IOException{
+		out.writeLong( key );
+		out.writeByte( Math.min( count, Byte.MAX_VALUE ) );
+	}
+
+	/**Collects keys and writes them to the disk as sorted runs, one run per full buffer*/
+	private final class RunWriter{
+		private long[] buffer = new long[ bufferSize ];
+		private int size = 0;
+		final List<File> runs = new ArrayList<File>();
+
+		void add( long key ) throws IOException{
+			if ( size == buffer.length ) flush();
+			buffer[ size++ ] = key;
+		}
+
+		/**Write the last run and release the buffer. Returns all runs*/
+		List<File> finish() throws IOException{
+			if ( size > 0 ) flush();
+			buffer = null;
+			return runs;
+		}
+
+		private void flush() throws IOException{
+			Arrays.sort( buffer, 0, size );
+			File f = newFile( "run" );
+			runs.add( f );
+			DataOutputStream out = openOutput( f );
+			try{
+				int i = 0;
+				while( i < size ){
+					long key = buffer[i];
+					int j = i + 1;
+					while( j < size && buffer[j] == key ) j ++;
+					writeRecord( out, key, j - i );
+					i = j;
+				}
+			}finally{
+				out.close();
+			}
+			size = 0;
+		}
+	}
+
+	/**Merge all runs into one source. If there are too many runs, they are merged in groups into the bigger runs first.
+	 * Merged runs are deleted, remaining runs are in the list*/
+	private Source mergeRuns( List<File> runs ) throws IOException{
+		while( runs.size() > MAX_FAN_IN ){
+			List<File> group = new ArrayList<File>( runs.subList( 0, MAX_FAN_IN ) );
+			File merged = newFile( "run" );
+			runs.add( merged );
+			Source s = openRuns( group );
+			DataOutputStream out = openOutput( merged );
+			try{
+				for( ; s.key != END; s.advance() ) writeRecord( out, s.key, s.count );
+			}finally{
+				out.close();
+				s.close();
+			}
+			runs.subList( 0, MAX_FAN_IN ).clear();
+			delete( group );
+		}
+		return openRuns( runs );
+	}
+
+	private static Source openRuns( List<File> runs ) throws IOException{
+		List<Source> sources = new ArrayList<Source>();
+		try{
+			for( File f : runs ) sources.add( new RunReader( f ) );
+		}catch( IOException e ){
+			for( Source s : sources ) s.close();
+			throw e;
+		}
+		return new Merger( sources );
+	}
+
+	/**Packed key of the cell*/
+	private static long cellKey( PackedPath p ){
+		if ( p.length() > MAX_KEY_LENGTH ) throw new RuntimeException( "Cell "+p+" is too deep for the external field" );
+		return p.getHead();
+	}
+
+	private static long cellKey( Path p ){
+		if ( p.length() > MAX_KEY_LENGTH ) throw new RuntimeException( "Cell "+p+" is too deep for the external field" );
+		return PackedPath.packHead( p );
+	}
+
+	/**Replace alive cells with the given file*/
+	private void replaceCells( File newAlive, long newPopulation ) throws IOException{
+		closeReader();
+		if ( aliveFile != null ) aliveFile.delete();
+		aliveFile = newAlive;
+		population = newPopulation;
+	}
+
+	private void closeReader() throws IOException{
+		if ( reader != null ){
+			reader.close();
+			reader = null;
+		}
+	}
+
+	/**Write the keys from the source to the new alive file, and make it current*/
+	private void writeCells( Source s ) throws IOException{
+		File f = newFile( "cells" );
+		long n = 0;
+		DataOutputStream out = openOutput( f );
+		try{
+			for( ; s.key != END; s.advance() ){
+				out.writeLong( s.key );
+				n ++;
+			}
+		}catch( IOException e ){
+			out.close();
+			f.delete();
+			throw e;
+		}
+		out.close();
+		replaceCells( f, n );
+	}
+
+	///////////// Evaluation /////////////////
+
+	@Override
+	public synchronized void evaluate( TotalisticRule r ) {
+		try{
+			evaluateExternal( r, null );
+		}catch( IOException e ){
+			throw new RuntimeException( "External evaluation failed", e );
+		}
+		setFieldState( r.nextFieldState( getFieldState() ) );
+	}
+
+	/**Changes are recorded while merging, so the field is not copied*/
+	@Override
+	public synchronized FieldDelta evaluateDelta( TotalisticRule r ) {
+		FieldDelta rval = new FieldDelta( getFieldState() );
+		try{
+			evaluateExternal( r, rval );
+		}catch( IOException e ){
+			throw new RuntimeException( "External evaluation failed", e );
+		}
+		setFieldState( r.nextFieldState( getFieldState() ) );
+		rval.finish( getFieldState() );
+		return rval;
+	}
+
+	@Override
+	public synchronized FieldDelta evaluateDelta( TotalisticRule r, EvaluationBudget budget ) {
+		budget.begin();
+		int result = budget.check( population(), 0 );
+		if ( result != EvaluationBudget.COMPLETED ){
+			budget.end( result );
+			return null;
+		}
+		FieldDelta rval = evaluateDelta( r );
+		budget.end( EvaluationBudget.COMPLETED );
+		return rval;
+	}
+
+	/**Evaluate the next generation. Births and deaths are recorded to the changes, if they are not null*/
+	private void evaluateExternal( TotalisticRule rule, FieldDelta changes ) throws IOException{
+		int fieldState = getFieldState();
+		RunWriter runWriter = new RunWriter();
+		List<File> runs = runWriter.runs;
+		File newAlive = null;
+		long newPopulation = 0;
+		try{
+			//Pass 1: neighbore keys of all alive cells, as sorted runs
+			if ( population > 0 ){
+				KeyReader alive = new KeyReader( aliveFile, population );
+				try{
+					PackedPath[] neighbores = new PackedPath[10];
+					for( ; alive.key != END; alive.advance() ){
+						PathNavigation.neigh10( PackedPath.fromHead( alive.key ), neighbores );
+						for( PackedPath n : neighbores ) runWriter.add( cellKey( n ) );
+					}
+				}finally{
+					alive.close();
+				}
+			}
+			runWriter.finish();
+
+			//Pass 2: merge runs into sums, and sums with the alive cells
+			Source sums = mergeRuns( runs );
+			Source alive = ( population > 0 ) ? new KeyReader( aliveFile, population ) : null;
+			newAlive = newFile( "cells" );
+			DataOutputStream out = openOutput( newAlive );
+			try{
+				long aliveKey = ( alive == null ) ? END : alive.key;
+				while( aliveKey != END || sums.key != END ){
+					long key;
+					int state, sum = 0;
+					if ( aliveKey < sums.key ){ //alive cell without alive neighbores
+						key = aliveKey;
+						state = 1;
+						alive.advance();
+					}else{
+						key = sums.key;
+						sum = sums.count;
+						sums.advance();
+						state = 0;
+						if ( aliveKey == key ){
+							state = 1;
+							alive.advance();
+						}
+					}
+					if ( alive != null ) aliveKey = alive.key;
+					int newState = ( rule.nextState( fieldState, state, sum ) == 0 ) ? 0 : 1;
+					if ( changes != null && newState != state ) changes.record( PackedPath.fromHead( key ).toPath(), state, newState );
+					if ( newState == 0 ) continue;
+					out.writeLong( key );
+					newPopulation ++;
+				}
+			}finally{
+				out.close();
+				sums.close();
+				if ( alive != null ) alive.close();
+			}
+		}catch( IOException e ){
+			if ( newAlive != null ) newAlive.delete();
+			throw e;
+		}finally{
+			delete( runs );
+		}
+		replaceCells( newAlive, newPopulation );
+	}
+
+	///////////// Field interface /////////////////
+
+	@Override
+	public synchronized void setCells( Iterable<Path> cells ) {
+		RunWriter runWriter = new RunWriter();
+		try{
+			for( Path p : cells ) runWriter.add( cellKey( p ) );
+			runWriter.finish();
+			Source s = mergeRuns( runWriter.runs );
+			try{
+				writeCells( s );
+			}finally{
+				s.close();
+			}
+		}catch( IOException e ){
+			throw new RuntimeException( "Failed to write cells", e );
+		}finally{
+			delete( runWriter.runs );
+		}
+	}
+
+	/**Reads all cells into the memory*/
+	@Override
+	public synchronized Path[] getAliveCellsArray() {
+		if ( population > Integer.MAX_VALUE ) throw new RuntimeException( "Too many cells for the array: "+population );
+		Path[] rval = new Path[ (int)population ];
+		int i = 0;
+		for( Path p : getAliveCells() ) rval[ i++ ] = p;
+		return rval;
+	}
+
+	/**Cells are read from the disk while iterating. Iteration sees the cells of the moment, when it was started*/
+	@Override
+	public synchronized Iterable<Path> getAliveCells() {
+		final File f = aliveFile;
+		final long size = population;
+		return new Iterable<Path>(){
+			@Override
+			public Iterator<Path> iterator() {
+				final KeyReader in;
+				try{
+					in = ( size > 0 ) ? new KeyReader( f, size ) : null;
+				}catch( IOException e ){
+					throw new RuntimeException( "Failed to read cells", e );
+				}
+				return new Iterator<Path>(){
+					@Override
+					public boolean hasNext() {
+						return in != null && in.key != END;
+					}
+					@Override
+					public Path next() {
+						if ( ! hasNext() ) throw new NoSuchElementException();
+						Path rval = PackedPath.fromHead( in.key ).toPath();
+						try{
+							in.advance();
+							if ( in.key == END ) in.close();
+						}catch( IOException e ){
+							throw new RuntimeException( "Failed to read cells", e );
+						}
+						return rval;
+					}
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+		};
+	}
+
+	/**Number of alive cells, truncated to int*/
+	@Override
+	public synchronized int population() {
+		return (int)Math.min( population, Integer.MAX_VALUE );
+	}
+
+	/**Exact number of alive cells*/
+	public synchronized long longPopulation(){
+		return population;
+	}
+
+	/**Binary search in the file*/
+	@Override
+	public synchronized int getCell( Path cell ) {
+		if ( population == 0 || cell.length() > MAX_KEY_LENGTH ) return 0;
+		long key = PackedPath.packHead( cell );
+		try{
+			if ( reader == null ) reader = new RandomAccessFile( aliveFile, "r" );
+			long lo = 0, hi = population - 1;
+			while( lo <= hi ){
+				long mid = ( lo + hi ) >>> 1;
+				reader.seek( mid * 8 );
+				long k = reader.readLong();
+				if ( k == key ) return 1;
+				if ( k < key ) lo = mid + 1; else hi = mid - 1;
+			}
+			return 0;
+		}catch( IOException e ){
+			throw new RuntimeException( "Failed to read cells", e );
+		}
+	}
+
+	/**Rewrites the whole file, so it is slow for the big fields*/
+	@Override
+	public synchronized void setCell( Path cell, int newState ) {
+		final long newKey = cellKey( cell );
+		final boolean alive = newState != 0;
+		if ( ( getCell( cell ) != 0 ) == alive ) return;
+		try{
+			final Source old = ( population > 0 ) ? new KeyReader( aliveFile, population ) : null;
+			Source s = new Source(){
+				private boolean inserted = !alive;
+				{ advance(); }
+				@Override
+				void advance() throws IOException{
+					long next = ( old == null ) ? END : old.key;
+					if ( next == newKey ){ //removed cell
+						old.advance();
+						next = old.key;
+					}
+					if ( ! inserted && newKey < next ){
+						key = newKey;
+						inserted = true;
+						return;
+					}
+					key = next;
+					if ( next != END ) old.advance();
+				}
+				@Override
+				void close() throws IOException{
+					if ( old != null ) old.close();
+				}
+			};
+			try{
+				writeCells( s );
+			}finally{
+				s.close();
+			}
+		}catch( IOException e ){
+			throw new RuntimeException( "Failed to write cells", e );
+		}
+	}
+
+	/**Changes are sorted and merged with the file in one pass*/
+	@Override
+	public synchronized void applyDelta( FieldDelta d ) {
+		if ( d.isReset() ){
+			super.applyDelta( d );
+			return;
+		}
+		final long[] born = new long[ d.size() ], died = new long[ d.size() ];
+		int nBorn = 0, nDied = 0;
+		for( int i = 0; i < d.size(); ++i ){
+			Path p = d.getCell( i );
+			if ( d.getNewState( i ) != 0 ) born[ nBorn++ ] = cellKey( p );
+			else if ( p.length() <= MAX_KEY_LENGTH ) died[ nDied++ ] = PackedPath.packHead( p );
+		}
+		Arrays.sort( born, 0, nBorn );
+		Arrays.sort( died, 0, nDied );
+		if ( nBorn + nDied > 0 ){
+			final int bornSize = nBorn, diedSize = nDied;
+			try{
+				final Source old = ( population > 0 ) ? new KeyReader( aliveFile, population ) : null;
+				Source s = new Source(){
+					private int nextBorn = 0, nextDied = 0;
+					{ advance(); }
+					@Override
+					void advance() throws IOException{
+						while( true ){
+							long o = ( old == null ) ? END : old.key;
+							long b = ( nextBorn < bornSize ) ? born[ nextBorn ] : END;
+							key = Math.min( o, b );
+							if ( key == END ) return;
+							if ( o == key ) old.advance();
+							while( nextBorn < bornSize && born[ nextBorn ] == key ) nextBorn ++;
+							while( nextDied < diedSize && died[ nextDied ] < key ) nextDied ++;
+							if ( nextDied == diedSize || died[ nextDied ] != key ) return;
+						}
+					}
+					@Override
+					void close() throws IOException{
+						if ( old != null ) old.close();
+					}
+				};
+				try{
+					writeCells( s );
+				}finally{
+					s.close();
+				}
+			}catch( IOException e ){
+				throw new RuntimeException( "Failed to write cells", e );
+			}
+		}
+		setFieldState( d.getFieldStateAfter() );
+	}
+
+	/**Cells are on the disk, heap use does not depend on the population*/
+	@Override
+	public int heapBytesPerCell(){
+		return 8;
+	}
+	@Override
+	public int storedBytesPerCell(){
+		return 0;
+	}
+	/**Changes are recorded while merging, but their paths are in the heap*/
+	@Override
+	public int deltaBytesPerCell(){
+		return 150;
+	}
+
+	@Override
+	public synchronized Field copy() {
+		ExternalField rval = new ExternalField( directory, bufferSize );
+		rval.setFieldState( getFieldState() );
+		try{
+			KeyReader in = ( population > 0 ) ? new KeyReader( aliveFile, population ) : null;
+			if ( in != null ){
+				try{
+					rval.writeCells( in );
+				}finally{
+					in.close();
+				}
+			}
+		}catch( IOException e ){
+			throw new RuntimeException( "Failed to copy cells", e );
+		}
+		return rval;
+	}
+
+	/**Fingerprint is calculated by reading the whole file*/
+	@Override
+	public synchronized long fingerprint() {
+		long rval = 0;
+		for( Path p : getAliveCells() ) rval ^= cellHash( p, 1 );
+		return rval;
+	}
+
+	/**Delete the files of the field. Field becomes empty*/
+	public synchronized void close(){
+		try{
+			replaceCells( null, 0 );
+		}catch( IOException e ){
+			throw new RuntimeException( e );
+		}
+	}
+
+	private void writeObject( ObjectOutputStream out ) throws IOException{
+		out.defaultWriteObject();
+		out.writeLong( population );
+		if ( population == 0 ) return;
+		KeyReader in = new KeyReader( aliveFile, population );
+		try{
+			for( ; in.key != END; in.advance() ) out.writeLong( in.key );
+		}finally{
+			in.close();
+		}
+	}
+
+	private void readObject( ObjectInputStream in ) throws IOException, ClassNotFoundException{
+		in.defaultReadObject();
+		final long size = in.readLong();
+		final ObjectInputStream input = in;
+		Source s = new Source(){
+			private long remaining = size;
+			{ advance(); }
+			@Override
+			void advance() throws IOException{
+				key = ( remaining-- > 0 ) ? input.readLong() : END;
+			}
+			@Override
+			void close(){}
+		};
+		writeCells( s );
+	}
+}
@@ -0,0 +1,394 @@
+package org.ratson.pentagrid.fields;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.ratson.pentagrid.Field;
+import org.ratson.pentagrid.Path;
+import org.ratson.pentagrid.PathNavigation;
+import org.ratson.pentagrid.TotalisticRule;
+
+/**Field, stored as the tree of hash-consed nodes, in the spirit of Hashlife.
+ * Node is the subtree of the path tree: state of its top cell and its child nodes. Equal subtrees are represented by the same node.
+ * Subtrees of the odd nodes are all isomorphic, together with their neighborhood structure, and the same is true for the even nodes,
+ * so node does not depend on its location in the field.
+ *
+ * Every node memoizes its next generation: next states of its inner cells, that have all neighbores inside the subtree.
+ * Only the cells on the leftmost and rightmost paths of the subtree have neighbores outside of it.
+ * Next generation of the node is assembled from the next generations of its children, and only the cells
+ * on the edges of the children (the seams) are calculated directly. Seams are followed down only while their vicinity has alive cells.
+ * Repeated and unchanged parts of the field are thus evaluated once.
+ *
+ * Whole field is the root node, and {@link #advance} jumps by the powers of 2 generations,
+ * memoizing the jumps of the root nodes, so that periodic fields are advanced by many generations at once.
+ *
+ * Rule must keep the vacuum stable. Only field states 0 and 1 are supported.*/
+public final class HashLifeField extends Field{
+	private static final long serialVersionUID = 1L;
+	private static final int ROOT = 0;
+	private static final int ODD = 1;
+	private static final int EVEN = 2;
+	private static final int[] NUM_CHILDREN = { 10, 3, 5 };
+	/**Memoized results are dropped, when the table grows bigger*/
+	private static final int MAX_NODES = 1 << 21;
+	private static final int MAX_JUMP_LEVEL = 62;
+
+	/**Empty subtrees of every type. Empty nodes are shared by all fields*/
+	private static final Node[] EMPTY = { new Node( ROOT, 0, null ), new Node( ODD, 0, null ), new Node( EVEN, 0, null ) };
+
+	private static final class Node{
+		final int type;
+		final int state;
+		/**Child nodes, null for the empty node*/
+		final Node[] children;
+		/**Number of levels with alive cells, 0 for the empty node*/
+		final int height;
+		final int population;
+		private final int hash;
+		/**Memoized next generation, for the field states 0 and 1*/
+		Node next0 = null, next1 = null;
+
+		Node( int type, int state, Node[] children ){
+			this.type = type;
+			this.state = state;
+			this.children = children;
+			int h = ( state != 0 ) ? 1 : 0;
+			int p = ( state != 0 ) ? 1 : 0;
+			int hc = type * 31 + state;
+			if ( children != null ){
+				for( Node c : children ){
+					if ( c.height != 0 ) h = Math.max( h, c.height + 1 );
+					p += c.population;
+					hc = hc * 31 + System.identityHashCode( c );
+				}
+			}
+			height = h;
+			population = p;
+			hash = hc;
+		}
+		boolean isEmpty(){ return children == null && state == 0; }
+		Node child( int index ){
+			return ( children == null ) ? EMPTY[ childType( index ) ] : children[ index-1 ];
+		}
+		@Override
+		public int hashCode(){ return hash; }
+		/**Structural equality: children are canonical, so they are compared by reference*/
+		@Override
+		public boolean equals( Object o ){
+			if ( !( o instanceof Node ) ) return false;
+			Node n = (Node)o;
+			if ( n.type != type || n.state != state || n.hash != hash ) return false;
+			if ( children == null || n.children == null ) return children == n.children;
+			for( int i = 0; i < children.length; ++i ){
+				if ( children[i] != n.children[i] ) return false;
+			}
+			return true;
+		}
+	}
+
+	/**Cell near the seam of the node: digits of the path from the node top, and digits of its 10 neighbores*/
+	private static final class SeamCell{
+		final int[] digits;
+		final int[][] neighbores;
+		SeamCell( int[] digits, int[][] neighbores ){
+			this.digits = digits;
+			this.neighbores = neighbores;
+		}
+	}
+
+	/**seamChains[type]: for every child and side (left, then right), the list of the chain cells by depth.
+	 * Entry is null, if the cell has neighbores outside of the node: such cells are calculated by the parent node.*/
+	private static final ArrayList<ArrayList<SeamCell>>[] seamChains = newChainLists();
+	private static final Path[] ANCHORS = { Path.getRoot(), Path.getRoot().child(1), Path.getRoot().child(2) };
+
+	private transient HashMap<Node, Node> table = new HashMap<Node, Node>();
+	private transient Node root = EMPTY[ ROOT ];
+	/**Rule of the memoized results*/
+	private transient TotalisticRule memoRule = null;
+	/**jumps[fieldState][level]: root nodes after 2^level generations*/
+	private transient HashMap<Node, Node>[][] jumps = null;
+	/**Field state after 2^level generations*/
+	private transient int[][] jumpFieldStates = null;
+
+	@SuppressWarnings("unchecked")
+	private static ArrayList<ArrayList<SeamCell>>[] newChainLists(){
+		ArrayList<ArrayList<SeamCell>>[] rval = (ArrayList<ArrayList<SeamCell>>[]) new ArrayList<?>[3];
+		for( int type = 0; type < 3; ++type ){
+			rval[type] = new ArrayList<ArrayList<SeamCell>>();
+			for( int i = 0; i < 2 * NUM_CHILDREN[type]; ++i ) rval[type].add( new ArrayList<SeamCell>() );
+		}
+		return rval;
+	}
+
+	private static int childType( int index ){
+		return ( (index & 1) == 1 ) ? ODD : EVEN;
+	}
+
+	/**Digits of the path below the anchor, or null if path is outside the anchor subtree*/
+	private static int[] relativeDigits( Path p, Path anchor ){
+		int len = p.length() - anchor.length();
+		if ( len < 0 || p.ancestor( anchor.length() ) != anchor ) return null;
+		int[] rval = new int[ len ];
+		for( Path c = p; c != anchor; c = c.getTail() ) rval[ --len ] = c.getIndex();
+		return rval;
+	}
+
+	/**Cell of the given seam chain at the given depth below the child, or null for the edge cells of the node itself*/
+	private static synchronized SeamCell seamCell( int type, int chain, int depth ){
+		ArrayList<SeamCell> cells = seamChains[ type ].get( chain );
+		while( cells.size() <= depth ){
+			Path anchor = ANCHORS[ type ];
+			int d = cells.size();
+			Path p = anchor.child( chain / 2 + 1 );
+			for( int i = 0; i < d; ++i ) p = ( chain % 2 == 0 ) ? p.child( 1 ) : p.child( p.maxChildIndex() );
+			Path[] neigh = PathNavigation.neigh10( p );
+			int[][] neighDigits = new int[10][];
+			boolean inner = true;
+			for( int i = 0; i < 10; ++i ){
+				neighDigits[i] = relativeDigits( neigh[i], anchor );
+				if ( neighDigits[i] == null ) inner = false;
+			}
+			cells.add( inner ? new SeamCell( relativeDigits( p, anchor ), neighDigits ) : null );
+		}
+		return cells.get( depth );
+	}
+
+	/**Canonical node with given contents*/
+	private Node node( int type, int state, Node[] children ){
+		if ( state == 0 ){
+			boolean empty = true;
+			for( Node c : children ){
+				if ( ! c.isEmpty() ){
+					empty = false;
+					break;
+				}
+			}
+			if ( empty ) return EMPTY[ type ];
+		}
+		Node n = new Node( type, state, children );
+		Node existing = table.get( n );
+		if ( existing != null ) return existing;
+		table.put( n, n );
+		return n;
+	}
+
+	private Node[] childrenOf( Node n ){
+		Node[] rval = new Node[ NUM_CHILDREN[ n.type ] ];
+		for( int i = 0; i < rval.length; ++i ) rval[i] = n.child( i+1 );
+		return rval;
+	}
+
+	/**Node of the cell with given digits below the node, or the empty node, containing it.
+	 * In both cases, state of the returned node is the state of the cell*/
+	private static Node lookup( Node n, int[] digits ){
+		for( int i = 0; i < digits.length && ! n.isEmpty(); ++i ) n = n.child( digits[i] );
+		return n;
+	}
+
+	/**Node with the changed state of one cell*/
+	private Node set( Node n, int[] digits, int pos, int state ){
+		if ( pos == digits.length ) return node( n.type, state, childrenOf( n ) );
+		Node[] children = childrenOf( n );
+		int idx = digits[ pos ] - 1;
+		children[ idx ] = set( children[ idx ], digits, pos+1, state );
+		return node( n.type, n.state, children );
+	}
+
+	/**Next generation of the inner cells of the node. Edge cells of the node are dead in the result*/
+	private Node next( Node n, int fieldState, TotalisticRule r ){
+		if ( n.isEmpty() ) return n;
+		Node cached = ( fieldState == 0 ) ? n.next0 : n.next1;
+		if ( cached != null ) return cached;
+		Node[] children = new Node[ NUM_CHILDREN[ n.type ] ];
+		int rootSum = 0;
+		for( int i = 0; i < children.length; ++i ){
+			Node c = n.child( i+1 );
+			rootSum += c.state;
+			children[i] = next( c, fieldState, r );
+		}
+		//Top cell has all neighbores inside only for the whole field
+		int topState = ( n.type == ROOT ) ? r.nextState( fieldState, n.state, rootSum ) : 0;
+		Node rval = node( n.type, topState, children );
+		//Cells on the seams between the children, followed down while their vicinity has alive cells
+		for( int chain = 0; chain < 2 * children.length; ++chain ){
+			for( int depth = 0; depth < n.height; ++depth ){
+				SeamCell c = seamCell( n.type, chain, depth );
+				if ( c == null ) continue; //edge of this node, calculated by the parent
+				Node cell = lookup( n, c.digits );
+				boolean vicinityEmpty = cell.isEmpty();
+				int sum = 0;
+				for( int[] nd : c.neighbores ){
+					Node neigh = lookup( n, nd );
+					sum += neigh.state;
+					if ( ! neigh.isEmpty() ) vicinityEmpty = false;
+				}
+				int s = r.nextState( fieldState, cell.state, sum );
+				if ( s != 0 ) rval = set( rval, c.digits, 0, s );
+				//cells below and their neighbores are inside of the empty subtrees
+				if ( vicinityEmpty ) break;
+			}
+		}
+		if ( fieldState == 0 ) n.next0 = rval; else n.next1 = rval;
+		return rval;
+	}
+
+	private void checkRule( TotalisticRule r ){
+		int fieldState = getFieldState();
+		if ( fieldState != 0 && fieldState != 1 ) throw new RuntimeException( "Only field states 0 and 1 are supported" );
+		if ( r.nextState( fieldState, 0, 0 ) != 0 ) throw new RuntimeException( "Rules with B0 are not supported" );
+		if ( r != memoRule ){
+			memoRule = r;
+			resetMemo();
+		}
+	}
+
+	/**Drop all memoized results, keeping only the nodes of the current field*/
+	@SuppressWarnings("unchecked")
+	private void resetMemo(){
+		table = new HashMap<Node, Node>();
+		root = reintern( root );
+		jumps = (HashMap<Node, Node>[][]) new HashMap<?, ?>[2][ MAX_JUMP_LEVEL + 1 ];
+		jumpFieldStates = null;
+	}
+
+	private Node reintern( Node n ){
+		if ( n.isEmpty() ) return n;
+		Node[] children = new Node[ n.children.length ];
+		for( int i = 0; i < children.length; ++i ) children[i] = reintern( n.children[i] );
+		return node( n.type, n.state, children );
+	}
+
+	private void collectGarbage(){
+		if ( table.size() > MAX_NODES ) resetMemo();
+	}
+
+	@Override
+	public synchronized void evaluate( TotalisticRule r ){
+		checkRule( r );
+		int fieldState = getFieldState();
+		root = next( root, fieldState, r );
+		setFieldState( r.nextFieldState( fieldState ) );
+		collectGarbage();
+	}
+
+	/**Evaluate the given number of generations. Jumps by 2^k generations are memoized for the whole field,
+	 * so periodic fields are advanced by any number of generations in logarithmic time*/
+	public synchronized void advance( TotalisticRule r, long generations ){
+		if ( generations < 0 ) throw new RuntimeException( "Number of generations must be >= 0" );
+		checkRule( r );
+		if ( jumpFieldStates == null ){
+			jumpFieldStates = new int[ MAX_JUMP_LEVEL + 1 ][2];
+			for( int fs = 0; fs < 2; ++fs ) jumpFieldStates[0][fs] = r.nextFieldState( fs );
+			for( int level = 1; level <= MAX_JUMP_LEVEL; ++level ){
+				for( int fs = 0; fs < 2; ++fs ) jumpFieldStates[level][fs] = jumpFieldStates[level-1][ jumpFieldStates[level-1][fs] ];
+			}
+		}
+		for( int level = MAX_JUMP_LEVEL; level >= 0; --level ){
+			if ( ( generations & (1L << level) ) == 0 ) continue;
+			int fieldState = getFieldState();
+			root = jump( root, fieldState, level, r );
+			setFieldState( jumpFieldStates[ level ][ fieldState ] );
+			collectGarbage();
+		}
+	}
+
+	/**Root node after 2^level generations*/
+	private Node jump( Node n, int fieldState, int level, TotalisticRule r ){
+		if ( level == 0 ) return next( n, fieldState, r );
+		HashMap<Node, Node> memo = jumps[ fieldState ][ level ];
+		if ( memo == null ) memo = jumps[ fieldState ][ level ] = new HashMap<Node, Node>();
+		Node rval = memo.get( n );
+		if ( rval == null ){
+			Node half = jump( n, fieldState, level-1, r );
+			rval = jump( half, jumpFieldStates[ level-1 ][ fieldState ], level-1, r );
+			memo.put( n, rval );
+		}
+		return rval;
+	}
+
+	/**Number of the distinct nodes, kept in memory*/
+	public synchronized int numNodes(){
+		return table.size();
+	}
+
+	private static int[] digits( Path p ){
+		int[] rval = new int[ p.length() ];
+		for( Path c = p; ! c.isRoot(); c = c.getTail() ) rval[ c.length() - 1 ] = c.getIndex();
+		return rval;
+	}
+
+	@Override
+	public synchronized void setCells( Iterable<Path> cells ){
+		root = EMPTY[ ROOT ];
+		for( Path p : cells ) root = set( root, digits(p), 0, 1 );
+		collectGarbage();
+	}
+
+	private void collectAlive( Node n, Path p, ArrayList<Path> alive ){
+		if ( n.isEmpty() ) return;
+		if ( n.state != 0 ) alive.add( p );
+		if ( n.children == null ) return;
+		for( int i = 0; i < n.children.length; ++i ) collectAlive( n.children[i], p.child( i+1 ), alive );
+	}
+
+	@Override
+	public synchronized Path[] getAliveCellsArray(){
+		ArrayList<Path> alive = new ArrayList<Path>( root.population );
+		collectAlive( root, Path.getRoot(), alive );
+		return alive.toArray( new Path[ alive.size() ] );
+	}
+
+	@Override
+	public synchronized Iterable<Path> getAliveCells(){
+		return Arrays.asList( getAliveCellsArray() );
+	}
+
+	@Override
+	public synchronized int population(){
+		return root.population;
+	}
+
+	@Override
+	public synchronized int getCell( Path cell ){
+		return lookup( root, digits( cell ) ).state;
+	}
+
+	@Override
+	public synchronized void setCell( Path cell, int newState ){
+		root = set( root, digits( cell ), 0, newState );
+		collectGarbage();
+	}
+
+	@Override
+	public synchronized Field copy(){
+		HashLifeField rval = new HashLifeField();
+		rval.root = rval.reintern( root );
+		rval.setFieldState( getFieldState() );
+		return rval;
+	}
+
+	private synchronized void writeObject( ObjectOutputStream out ) throws IOException{
+		out.defaultWriteObject();
+		Path[] alive = getAliveCellsArray();
+		out.writeInt( alive.length );
+		for( Path p : alive ){
+			out.writeObject( p );
+			out.writeInt( getCell( p ) );
+		}
+	}
+
+	private void readObject( ObjectInputStream in ) throws IOException, ClassNotFoundException{
+		in.defaultReadObject();
+		table = new HashMap<Node, Node>();
+		root = EMPTY[ ROOT ];
+		int count = in.readInt();
+		for( int i = 0; i < count; ++i ){
+			Path p = (Path)in.readObject();
+			root = set( root, digits(p), 0, in.readInt() );
+		}
+	}
+}
@@ -0,0 +1,333 @@
+package org.ratson.pentagrid.fields;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.ratson.pentagrid.Field;
+import org.ratson.pentagrid.Path;
+import org.ratson.pentagrid.PathNavigation;
+import org.ratson.pentagrid.TotalisticRule;
+
+/**Field with two tiers: the dense core and the sparse rest.
+ * Core is the ball around the root (see {@link BallGraph}): cells are identified by the dense ids, states and sums are in the arrays.
+ * Cells outside of the core are stored in the hash table, as in {@link SimpleMapField}.
+ * Core radius adapts to the pattern: every few generations, population of the rings is measured. Core grows,
+ * while the first ring outside of it is dense enough, and shrinks, while its outermost ring is nearly empty; cells are moved between the tiers.*/
+public final class HybridField extends Field {
+	private static final long serialVersionUID = 1L;
+	public static final int MIN_CORE_RADIUS = 3;
+	/**Ball of this radius has about half a million cells*/
+	public static final int MAX_CORE_RADIUS = 10;
+	/**Core is adapted every this number of generations*/
+	private static final int ADAPT_INTERVAL = 8;
+	/**Core grows, when fraction of the alive cells in the first ring outside of it is at least this*/
+	private static final double GROW_DENSITY = 0.02;
+	/**Core shrinks, when fraction of the alive cells in its outermost ring is less than this*/
+	private static final double SHRINK_DENSITY = 0.002;
+	/**Number of the cells with given path length*/
+	private static final long[] RING_SIZE = new long[ MAX_CORE_RADIUS + 1 ];
+	static{
+		long odd = 5, even = 5; //cells of the ring 1
+		RING_SIZE[0] = 1;
+		for( int len = 1; len <= MAX_CORE_RADIUS; ++len ){
+			RING_SIZE[ len ] = odd + even;
+			long nextOdd = 2*odd + 3*even, nextEven = odd + 2*even;
+			odd = nextOdd;
+			even = nextEven;
+		}
+	}
+
+	private transient BallGraph graph;
+	private transient int[] states, sums;
+	private transient boolean[] marks;
+	private transient int[] candidates;
+	/**Ids of the alive core cells: first numCoreAlive elements*/
+	private transient int[] coreAlive;
+	private transient int numCoreAlive;
+	/**Alive cells outside of the core*/
+	private transient CellTable sparse;
+	/**Sums of the dead cells outside of the core*/
+	private transient CellTable sparseSums;
+	private transient int generation;
+
+	public HybridField(){
+		clear( MIN_CORE_RADIUS );
+	}
+
+	private void clear( int radius ){
+		graph = BallGraph.get( radius );
+		states = new int[ graph.size ];
+		sums = new int[ graph.size ];
+		marks = new boolean[ graph.size ];
+		candidates = new int[ 64 ];
+		coreAlive = new int[ 64 ];
+		numCoreAlive = 0;
+		sparse = new CellTable();
+		sparseSums = new CellTable();
+	}
+
+	///////////// Metrics /////////////////
+
+	/**Cells with paths shorter than this are in the dense core*/
+	public synchronized int getCoreRadius(){ return graph.radius; }
+	/**Number of cells in the core, alive and dead*/
+	public synchronized int getCoreSize(){ return graph.size; }
+	/**Number of the alive cells in the core*/
+	public synchronized int getCorePopulation(){ return numCoreAlive; }
+	/**Number of the alive cells outside of the core*/
+	public synchronized int getSparsePopulation(){ return sparse.size(); }
+
+	///////////// Tiers /////////////////
+
+	private int addCandidate( int id, int numCandidates ){
+		if ( marks[ id ] ) return numCandidates;
+		marks[ id ] = true;
+		if ( numCandidates == candidates.length ) candidates = Arrays.copyOf( candidates, numCandidates * 2 );
+		candidates[ numCandidates ] = id;
+		return numCandidates + 1;
+	}
+
+	private void addCoreAlive( int id ){
+		if ( numCoreAlive == coreAlive.length ) coreAlive = Arrays.copyOf( coreAlive, numCoreAlive * 2 );
+		coreAlive[ numCoreAlive++ ] = id;
+	}
+
+	/**Set state of the cell in its tier*/
+	private void put( Path p, int state ){
+		if ( p.length() < graph.radius ){
+			int id = graph.find( p );
+			if ( states[ id ] == 0 && state != 0 ) addCoreAlive( id );
+			if ( states[ id ] != 0 && state == 0 ){
+				for( int i = 0; i < numCoreAlive; ++i ){
+					if ( coreAlive[i] == id ){
+						coreAlive[i] = coreAlive[ --numCoreAlive ];
+						break;
+					}
+				}
+			}
+			states[ id ] = state;
+		}else{
+			int slot = sparse.find( p );
+			if ( state != 0 ){
+				if ( slot < 0 ) slot = sparse.insertNew( p );
+				sparse.states[ slot ] = state;
+			}else if ( slot >= 0 ){
+				sparse.remove( slot );
+				sparse.compact();
+			}
+		}
+	}
+
+	/**Move all cells to the tiers for the new core radius*/
+	private void rebuild( int radius ){
+		Path[] cells = getAliveCellsArray();
+		int[] cellStates = new int[ cells.length ];
+		for( int i = 0; i < cells.length; ++i ) cellStates[i] = getCell( cells[i] );
+		clear( radius );
+		for( int i = 0; i < cells.length; ++i ) put( cells[i], cellStates[i] );
+	}
+
+	/**Measure population of the rings near the core boundary, and change the core radius, if needed*/
+	private void adapt(){
+		int radius = graph.radius;
+		long[] ringPopulation = new long[ MAX_CORE_RADIUS + 1 ];
+		for( int i = 0; i < numCoreAlive; ++i ) ringPopulation[ graph.length( coreAlive[i] ) ] ++;
+		Object[] keys = sparse.keys;
+		for( int slot = 0; slot < keys.length; ++slot ){
+			Path p = sparse.keyAt( slot );
+			if ( p != null && p.length() <= MAX_CORE_RADIUS ) ringPopulation[ p.length() ] ++;
+		}
+		int newRadius = radius;
+		while( newRadius < MAX_CORE_RADIUS && ringPopulation[ newRadius ] >= GROW_DENSITY * RING_SIZE[ newRadius ] ) newRadius ++;
+		if ( newRadius == radius ){
+			while( newRadius > MIN_CORE_RADIUS && ringPopulation[ newRadius-1 ] < SHRINK_DENSITY * RING_SIZE[ newRadius-1 ] ) newRadius --;
+		}
+		if ( newRadius != radius ) rebuild( newRadius );
+	}
+
+	///////////// Evaluation /////////////////
+
+	/**Add the state to the sum of the cell outside of the core: alive cells keep sums in their table, dead ones are collected in the sums table*/
+	private void addSparseSum( Path p, int state ){
+		int slot = sparse.find( p );
+		if ( slot >= 0 ){
+			sparse.sums[ slot ] += state;
+		}else{
+			slot = sparseSums.insert( p ); //insertion may replace the arrays
+			sparseSums.sums[ slot ] += state;
+		}
+	}
+
+	@Override
+	public synchronized void evaluate( TotalisticRule r ) {
+		int radius = graph.radius;
+		int fieldState = getFieldState();
+		Path[] neighbores = new Path[10];
+
+		//Core cells: neighbores in the core by the table, outside ones by paths
+		int numCandidates = 0;
+		for( int i = 0; i < numCoreAlive; ++i ) numCandidates = addCandidate( coreAlive[i], numCandidates );
+		int[] neighStart = graph.neighStart;
+		int[] neighTable = graph.neighbores;
+		for( int i = 0; i < numCoreAlive; ++i ){
+			int id = coreAlive[i];
+			int state = states[ id ];
+			for( int j = neighStart[id]; j < neighStart[id+1]; ++j ){
+				int n = neighTable[j];
+				sums[ n ] += state;
+				numCandidates = addCandidate( n, numCandidates );
+			}
+			if ( graph.outside[ id ] != 0 ){
+				PathNavigation.neigh10( graph.path( id ), neighbores );
+				for( Path n : neighbores ){
+					if ( n.length() >= radius ) addSparseSum( n, state );
+				}
+			}
+		}
+		//Sparse cells
+		Object[] keys = sparse.keys;
+		for( int slot = 0; slot < keys.length; ++slot ){
+			int state = sparse.states[ slot ];
+			if ( state == 0 ) continue; //empty or removed
+			PathNavigation.neigh10( (Path)keys[ slot ], neighbores );
+			for( Path n : neighbores ){
+				if ( n.length() < radius ){
+					int id = graph.find( n );
+					sums[ id ] += state;
+					numCandidates = addCandidate( id, numCandidates );
+				}else{
+					addSparseSum( n, state );
+				}
+			}
+		}
+
+		//Rule for the core
+		numCoreAlive = 0;
+		for( int i = 0; i < numCandidates; ++i ){
+			int id = candidates[i];
+			int nextState = r.nextState( fieldState, states[id], sums[id] );
+			states[ id ] = nextState;
+			sums[ id ] = 0;
+			marks[ id ] = false;
+			if ( nextState != 0 ) addCoreAlive( id );
+		}
+		//Rule for the rest: alive cells in place, then the born ones
+		for( int slot = 0; slot < sparse.keys.length; ++slot ){
+			int state = sparse.states[ slot ];
+			if ( state == 0 ) continue;
+			int nextState = r.nextState( fieldState, state, sparse.sums[ slot ] );
+			if ( nextState != 0 ){
+				sparse.states[ slot ] = nextState;
+				sparse.sums[ slot ] = 0;
+			}else{
+				sparse.remove( slot );
+			}
+		}
+		for( int slot = 0; slot < sparseSums.keys.length; ++slot ){
+			Path p = sparseSums.keyAt( slot );
+			if ( p == null ) continue;
+			int nextState = r.nextState( fieldState, 0, sparseSums.sums[ slot ] );
+			if ( nextState == 0 ) continue;
+			int newSlot = sparse.insertNew( p );
+			sparse.states[ newSlot ] = nextState;
+		}
+		sparseSums.clear();
+		sparse.compact();
+
+		generation ++;
+		if ( generation % ADAPT_INTERVAL == 0 ) adapt();
+		setFieldState( r.nextFieldState( fieldState ) );
+	}
+
+	///////////// Field interface /////////////////
+
+	@Override
+	public synchronized void setCells( Iterable<Path> cells ) {
+		clear( graph.radius );
+		for( Path p : cells ) put( p, 1 );
+		adapt();
+	}
+
+	@Override
+	public synchronized Path[] getAliveCellsArray() {
+		Path[] rval = new Path[ numCoreAlive + sparse.size() ];
+		int n = 0;
+		for( int i = 0; i < numCoreAlive; ++i ) rval[ n++ ] = graph.path( coreAlive[i] );
+		Object[] keys = sparse.keys;
+		for( int slot = 0; slot < keys.length; ++slot ){
+			Path p = sparse.keyAt( slot );
+			if ( p != null ) rval[ n++ ] = p;
+		}
+		return rval;
+	}
+
+	@Override
+	public synchronized Iterable<Path> getAliveCells() {
+		return Arrays.asList( getAliveCellsArray() );
+	}
+
+	@Override
+	public synchronized int population() {
+		return numCoreAlive + sparse.size();
+	}
+
+	@Override
+	public synchronized int getCell( Path cell ) {
+		if ( cell.length() < graph.radius ) return states[ graph.find( cell ) ];
+		int slot = sparse.find( cell );
+		return ( slot < 0 ) ? 0 : sparse.states[ slot ];
+	}
+
+	@Override
+	public synchronized void setCell( Path cell, int newState ) {
+		put( cell, newState );
+	}
+
+	/**Sparse tier dominates for the big patterns*/
+	@Override
+	public int heapBytesPerCell(){
+		return 690;
+	}
+	@Override
+	public int storedBytesPerCell(){
+		return 310;
+	}
+
+	@Override
+	public synchronized Field copy() {
+		HybridField rval = new HybridField();
+		rval.clear( graph.radius );
+		for( Path p : getAliveCellsArray() ) rval.put( p, getCell( p ) );
+		rval.generation = generation;
+		rval.setFieldState( getFieldState() );
+		return rval;
+	}
+
+	/**Only alive cells and their states are serialized*/
+	private void writeObject( ObjectOutputStream out ) throws IOException{
+		out.defaultWriteObject();
+		Path[] cells = getAliveCellsArray();
+		out.writeInt( cells.length );
+		for( Path p : cells ){
+			out.writeObject( p );
+			out.writeInt( getCell( p ) );
+		}
+	}
+
+	private void readObject( ObjectInputStream in ) throws IOException, ClassNotFoundException{
+		in.defaultReadObject();
+		ArrayList<Path> cells = new ArrayList<Path>();
+		ArrayList<Integer> cellStates = new ArrayList<Integer>();
+		int n = in.readInt();
+		for( int i = 0; i < n; ++i ){
+			cells.add( (Path)in.readObject() );
+			cellStates.add( in.readInt() );
+		}
+		clear( MIN_CORE_RADIUS );
+		for( int i = 0; i < n; ++i ) put( cells.get(i), cellStates.get(i) );
+		adapt();
+	}
+}
@@ -0,0 +1,26 @@
+package org.ratson.pentagrid.fields;
+
+import org.ratson.pentagrid.Path;
+
+/**Cell record, that remembers its path and caches references to the records of its neighbores.
+ * Cache is not serialized: references are resolved again, when needed.*/
+final class LinkedCellRecord extends CellRecord{
+	private static final long serialVersionUID = 1L;
+	public final Path path;
+	/**Records of the neighbores, in the order of PathNavigation.neigh10. Null, if not resolved yet; 
+	 * individual items are null, if the neighbore record was removed.*/
+	public transient LinkedCellRecord[] neighbores = null;
+	
+	public LinkedCellRecord( Path path, int state ){
+		super( state );
+		this.path = path;
+	}
+	
+	/**Forget cached reference to the given record*/
+	public void unlink( LinkedCellRecord rec ){
+		if ( neighbores == null ) return;
+		for (int i = 0; i < neighbores.length; i++) {
+			if ( neighbores[i] == rec ) neighbores[i] = null;
+		}
+	}
+}
@@ -0,0 +1,176 @@
+package org.ratson.pentagrid.fields;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.ratson.pentagrid.Field;
+import org.ratson.pentagrid.Path;
+import org.ratson.pentagrid.PathNavigation;
+import org.ratson.pentagrid.TotalisticRule;
+
+/**Field, where every record caches references to the records of its neighbores.
+ * Alive cells and their dead neighbores are kept in the records list. Once resolved, neighbore references are reused
+ * while the records exist, so for long-living cells summation does not require hash lookups.
+ * Dead records without alive neighbores are removed, and references to them are dropped from the neighbore caches.*/
+public final class NeighborCacheField extends Field{
+	private static final long serialVersionUID = 1L;
+	/**All records: alive cells and their neighbores*/
+	private ArrayList<LinkedCellRecord> records = new ArrayList<LinkedCellRecord>();
+	private Map<Path, LinkedCellRecord> index = new HashMap<Path, LinkedCellRecord>();
+	private int population = 0;
+	
+	/**Create completely new field*/
+	public synchronized void setCells( Iterable<Path> cells ){
+		records.clear();
+		index.clear();
+		population = 0;
+		for (Path path : cells) {
+			setCell( path, 1 );
+		}
+	}
+	
+	/**Returns existing record for the path, or registers new empty one*/
+	private LinkedCellRecord getOrCreate( Path p ){
+		LinkedCellRecord rec = index.get( p );
+		if ( rec == null ){
+			rec = new LinkedCellRecord( p, 0 );
+			index.put( p, rec );
+			records.add( rec );
+		}
+		return rec;
+	}
+	
+	/**Resolve all neighbores of the record, re-using the cached ones*/
+	private LinkedCellRecord[] resolveNeighbores( LinkedCellRecord rec, Path[] buffer ){
+		LinkedCellRecord[] neigh = rec.neighbores;
+		if ( neigh == null ){
+			neigh = rec.neighbores = new LinkedCellRecord[10];
+		}else{
+			boolean complete = true;
+			for (int i = 0; i < neigh.length; i++) {
+				if ( neigh[i] == null ){ complete = false; break; }
+			}
+			if ( complete ) return neigh;
+		}
+		PathNavigation.neigh10( rec.path, buffer );
+		for (int i = 0; i < neigh.length; i++) {
+			if ( neigh[i] == null ) neigh[i] = getOrCreate( buffer[i] );
+		}
+		return neigh;
+	}
+	
+	/**Remove record from the index, and drop all references to it. Neighborhood is symmetric, so only the neighbores can reference it.*/
+	private void removeRecord( LinkedCellRecord rec, Path[] buffer ){
+		index.remove( rec.path );
+		LinkedCellRecord[] neigh = rec.neighbores;
+		rec.neighbores = null;
+		boolean resolved = false;
+		for (int i = 0; i < 10; i++) {
+			LinkedCellRecord n = (neigh == null) ? null : neigh[i];
+			if ( n == null ){
+				//Not cached (or was removed and possibly re-created since): look it up
+				if ( ! resolved ){
+					PathNavigation.neigh10( rec.path, buffer );
+					resolved = true;
+				}
+				n = index.get( buffer[i] );
+			}
+			if ( n != null ) n.unlink( rec );
+		}
+	}
+	
+	public synchronized void evaluate( TotalisticRule r ){
+		Path[] buffer = new Path[10];
+		//Calculate sums. New records are appended to the end of list, and they are all dead.
+		int numRecords = records.size();
+		for (int i = 0; i < numRecords; i++) {
+			LinkedCellRecord rec = records.get(i);
+			if ( rec.state == 0 ) continue;
+			LinkedCellRecord[] neigh = resolveNeighbores( rec, buffer );
+			for (int j = 0; j < neigh.length; j++) {
+				neigh[j].sum += rec.state;
+			}
+		}
+		//Apply rule, and compact the list of records
+		int fieldState = getFieldState();
+		int newPopulation = 0;
+		int write = 0;
+		for (int i = 0; i < records.size(); i++) {
+			LinkedCellRecord rec = records.get(i);
+			int nextState = r.nextState( fieldState, rec.state, rec.sum );
+			if ( nextState == 0 && rec.state == 0 && rec.sum == 0 ){
+				removeRecord( rec, buffer ); //neither alive, nor has alive neighbores
+				continue;
+			}
+			rec.state = nextState;
+			rec.sum = 0;
+			if ( nextState != 0 ) newPopulation ++;
+			records.set( write++, rec );
+		}
+		for (int i = records.size()-1; i >= write; --i) records.remove(i);
+		population = newPopulation;
+		setFieldState( r.nextFieldState( fieldState ));
+	}
+	
+	public synchronized Path[] getAliveCellsArray(){
+		ArrayList<Path> alive = aliveCellsList();
+		Path[] rval = new Path[ alive.size() ];
+		alive.toArray( rval );
+		return rval;
+	}
+	
+	private ArrayList<Path> aliveCellsList(){
+		ArrayList<Path> alive = new ArrayList<Path>( population );
+		for (LinkedCellRecord rec : records) {
+			if ( rec.state != 0 ) alive.add( rec.path );
+		}
+		return alive;
+	}
+
+	@Override
+	public int population() {
+		return population;
+	}
+
+	@Override
+	public synchronized int getCell(Path cell) {
+		LinkedCellRecord rec = index.get( cell );
+		if (rec == null)return 0;
+		else return rec.state;
+	}
+
+	/**Sets cell state. Records of the dead cells are kept until the next evaluation*/
+	@Override
+	public synchronized void setCell(Path cell, int newState) {
+		LinkedCellRecord rec = (newState != 0) ? getOrCreate( cell ) : index.get( cell );
+		if ( rec == null ) return;
+		if ( rec.state == 0 && newState != 0 ) population ++;
+		if ( rec.state != 0 && newState == 0 ) population --;
+		rec.state = newState;
+	}
+
+	@Override
+	public synchronized Iterable<Path> getAliveCells() {
+		return aliveCellsList();
+	}
+	
+	/**Records keep the neighbore references*/
+	@Override
+	public int heapBytesPerCell(){
+		return 950;
+	}
+	@Override
+	public int storedBytesPerCell(){
+		return 700;
+	}
+
+	@Override
+	public synchronized Field copy(){
+		NeighborCacheField rval = new NeighborCacheField();
+		for (LinkedCellRecord rec : records) {
+			if ( rec.state != 0 ) rval.setCell( rec.path, rec.state );
+		}
+		return rval;
+	}
+}
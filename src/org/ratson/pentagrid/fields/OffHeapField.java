@@ -0,0 +1,343 @@
+package org.ratson.pentagrid.fields;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.ratson.pentagrid.Field;
+import org.ratson.pentagrid.PackedPath;
+import org.ratson.pentagrid.Path;
+import org.ratson.pentagrid.PathNavigation;
+import org.ratson.pentagrid.TotalisticRule;
+import org.ratson.util.Util;
+
+/**Field, that keeps its cells outside of the Java heap.
+ * Cells are stored in the open-addressing hash table with linear probing: packed keys (see {@link PackedPath#packHead}), states and neighbore sums
+ * are in the direct buffers, or in the memory-mapped files, if the directory is given. Evaluation navigates by the packed keys
+ * (see {@link PathNavigation#neigh10(long, int, long[])}), so it creates no objects per cell, and the GC does not see the cells at all.
+ * Table has a twin of the same size: after the rule is applied, surviving cells are moved to the twin, and tables are swapped.
+ * Buffers are released by {@link #close()}; otherwise they are released, when the field is collected.
+ * Cells must not be deeper than {@link #MAX_KEY_LENGTH}.*/
+public final class OffHeapField extends Field {
+	private static final long serialVersionUID = 1L;
+	/**Cells of this length or shorter can be stored. Their neighbores fit the head word too*/
+	public static final int MAX_KEY_LENGTH = PackedPath.HEAD_DIGITS - 1;
+	private static final long EMPTY = -1; //never a key: first digit is at most 10
+	private static final int MIN_CAPACITY = 1 << 10;
+	/**Mapped buffers are limited by 2GB, keys take 8 bytes per slot*/
+	private static final int MAX_CAPACITY = 1 << 27;
+	/**Maximal fraction of the occupied slots*/
+	private static final double MAX_LOAD = 0.75;
+
+	/**Directory for the mapped files, or null for the direct buffers*/
+	private final File directory;
+	private transient Table table;
+	/**Second table of the same capacity*/
+	private transient Table twin;
+	private transient boolean closed = false;
+
+	/**Field in the direct buffers*/
+	public OffHeapField(){
+		this( null );
+	}
+
+	/**Field in the files, mapped to the memory. Files are created in the given directory and deleted immediately,
+	 * so the disk space is freed, when the buffers are released. Null means direct buffers*/
+	public OffHeapField( File directory ){
+		this.directory = directory;
+		init( MIN_CAPACITY );
+	}
+
+	private void init( int capacity ){
+		table = new Table( capacity );
+		twin = new Table( capacity );
+	}
+
+	/**Hash table of cells in the off-heap buffers*/
+	private final class Table{
+		final ByteBuffer keyBytes, states, sums;
+		final LongBuffer keys;
+		final int mask;
+		int size = 0;
+		/**Length of the longest stored key*/
+		int maxLength = 0;
+
+		Table( int capacity ){
+			keyBytes = allocate( capacity * 8L );
+			keys = keyBytes.asLongBuffer();
+			states = allocate( capacity );
+			sums = allocate( capacity );
+			mask = capacity - 1;
+			clear();
+		}
+
+		int capacity(){ return mask + 1; }
+
+		void clear(){
+			for( int i = 0; i <= mask; ++i ) keys.put( i, EMPTY );
+			size = 0;
+			maxLength = 0;
+		}
+
+		/**Slot of the key, or -1*/
+		int find( long key ){
+			for( int slot = (int)Util.mix64( key ) & mask; ; slot = (slot+1) & mask ){
+				long k = keys.get( slot );
+				if ( k == key ) return slot;
+				if ( k == EMPTY ) return -1;
+			}
+		}
+
+		/**Slot of the key; it is added with zero state and sum, if not present. Table must have free slots*/
+		int insert( long key ){
+			int slot = (int)Util.mix64( key ) & mask;
+			for( ; ; slot = (slot+1) & mask ){
+				long k = keys.get( slot );
+				if ( k == key ) return slot;
+				if ( k == EMPTY ) break;
+			}
+			keys.put( slot, key );
+			states.put( slot, (byte)0 );
+			sums.put( slot, (byte)0 );
+			size ++;
+			maxLength = Math.max( maxLength, PackedPath.headLength( key ) );
+			return slot;
+		}
+
+		/**Remove the key, shifting the following keys of the probe sequence back*/
+		void remove( int slot ){
+			int hole = slot;
+			for( int i = (hole+1) & mask; ; i = (i+1) & mask ){
+				long k = keys.get( i );
+				if ( k == EMPTY ) break;
+				int home = (int)Util.mix64( k ) & mask;
+				//move the key to the hole, if hole is between its home slot and its current slot (cyclically)
+				if ( ((i - home) & mask) >= ((i - hole) & mask) ){
+					keys.put( hole, k );
+					states.put( hole, states.get( i ) );
+					sums.put( hole, sums.get( i ) );
+					hole = i;
+				}
+			}
+			keys.put( hole, EMPTY );
+			size --;
+		}
+
+		void free(){
+			release( keyBytes );
+			release( states );
+			release( sums );
+		}
+	}
+
+	/**Zero-filled buffer of the given size, outside of the heap*/
+	private ByteBuffer allocate( long size ){
+		if ( directory == null ) return ByteBuffer.allocateDirect( (int)size ).order( ByteOrder.nativeOrder() );
+		try{
+			File f = File.createTempFile( "cells", ".bin", directory );
+			RandomAccessFile file = new RandomAccessFile( f, "rw" );
+			try{
+				file.setLength( size );
+				return file.getChannel().map( FileChannel.MapMode.READ_WRITE, 0, size ).order( ByteOrder.nativeOrder() );
+			}finally{
+				file.close(); //mapping stays valid
+				if ( ! f.delete() ) f.deleteOnExit();
+			}
+		}catch( IOException e ){
+			throw new RuntimeException( "Failed to map the cells file", e );
+		}
+	}
+
+	/**Release the direct or mapped buffer now, instead of waiting for its collection. Does nothing, if JVM does not allow it*/
+	private static void release( ByteBuffer buffer ){
+		try{
+			Class<?> unsafeClass = Class.forName( "sun.misc.Unsafe" );
+			java.lang.reflect.Field theUnsafe = unsafeClass.getDeclaredField( "theUnsafe" );
+			theUnsafe.setAccessible( true );
+			Method invokeCleaner = unsafeClass.getMethod( "invokeCleaner", ByteBuffer.class );
+			invokeCleaner.invoke( theUnsafe.get( null ), buffer );
+		}catch( Exception e ){
+			//Java before 9 has no invokeCleaner: buffer is released by GC
+		}
+	}
+
+	/**Make sure, that table has place for the given number of cells, growing both tables*/
+	private void reserve( long cells ){
+		if ( cells <= table.capacity() * MAX_LOAD ) return;
+		long capacity = table.capacity();
+		while( cells > capacity * MAX_LOAD ) capacity *= 2;
+		if ( capacity > MAX_CAPACITY ) throw new RuntimeException( "Too many cells for the off-heap field: "+cells );
+		Table old = table;
+		twin.free();
+		init( (int)capacity );
+		for( int slot = 0; slot <= old.mask; ++slot ){
+			long k = old.keys.get( slot );
+			if ( k == EMPTY ) continue;
+			int newSlot = table.insert( k );
+			table.states.put( newSlot, old.states.get( slot ) );
+		}
+		old.free();
+	}
+
+	private void checkOpen(){
+		if ( closed ) throw new RuntimeException( "Field is closed" );
+	}
+
+	private static long cellKey( Path p ){
+		if ( p.length() > MAX_KEY_LENGTH ) throw new RuntimeException( "Cell "+p+" is too deep for the off-heap field" );
+		return PackedPath.packHead( p );
+	}
+
+	@Override
+	public synchronized void evaluate( TotalisticRule r ) {
+		checkOpen();
+		if ( table.maxLength > MAX_KEY_LENGTH ) throw new RuntimeException( "Field has cells, too deep for the evaluation" );
+		reserve( table.size * 11L );
+		int fieldState = getFieldState();
+		Table t = table;
+		//Sums. New neighbores have zero state, so they are skipped, even if inserted after the current slot
+		long[] neighbores = new long[10];
+		for( int slot = 0; slot <= t.mask; ++slot ){
+			int state = t.states.get( slot );
+			if ( state == 0 || t.keys.get( slot ) == EMPTY ) continue;
+			long key = t.keys.get( slot );
+			PathNavigation.neigh10( key, PackedPath.headLength( key ), neighbores );
+			for( long n : neighbores ){
+				int s = t.insert( n );
+				t.sums.put( s, (byte)( t.sums.get( s ) + state ) );
+			}
+		}
+		//Rule, and moving alive cells to the twin
+		Table next = twin;
+		next.clear();
+		for( int slot = 0; slot <= t.mask; ++slot ){
+			long key = t.keys.get( slot );
+			if ( key == EMPTY ) continue;
+			int newState = r.nextState( fieldState, t.states.get( slot ), t.sums.get( slot ) );
+			if ( newState == 0 ) continue;
+			next.states.put( next.insert( key ), (byte)newState );
+		}
+		twin = t;
+		table = next;
+		setFieldState( r.nextFieldState( fieldState ) );
+	}
+
+	@Override
+	public synchronized void setCells( Iterable<Path> cells ) {
+		checkOpen();
+		table.clear();
+		for( Path p : cells ){
+			long key = cellKey( p );
+			reserve( table.size + 1 );
+			table.states.put( table.insert( key ), (byte)1 );
+		}
+	}
+
+	@Override
+	public synchronized Path[] getAliveCellsArray() {
+		ArrayList<Path> rval = new ArrayList<Path>( table.size );
+		for( int slot = 0; slot <= table.mask; ++slot ){
+			long key = table.keys.get( slot );
+			if ( key != EMPTY ) rval.add( PackedPath.fromHead( key ).toPath() );
+		}
+		return rval.toArray( new Path[ rval.size() ] );
+	}
+
+	@Override
+	public synchronized Iterable<Path> getAliveCells() {
+		return Arrays.asList( getAliveCellsArray() );
+	}
+
+	@Override
+	public synchronized int population() {
+		return table.size;
+	}
+
+	@Override
+	public synchronized int getCell( Path cell ) {
+		if ( cell.length() > PackedPath.HEAD_DIGITS ) return 0;
+		int slot = table.find( PackedPath.packHead( cell ) );
+		return ( slot < 0 ) ? 0 : table.states.get( slot );
+	}
+
+	@Override
+	public synchronized void setCell( Path cell, int newState ) {
+		checkOpen();
+		if ( newState < 0 || newState > Byte.MAX_VALUE ) throw new RuntimeException( "State is out of range: "+newState );
+		long key = cellKey( cell );
+		if ( newState == 0 ){
+			int slot = table.find( key );
+			if ( slot >= 0 ) table.remove( slot );
+		}else{
+			reserve( table.size + 1 );
+			table.states.put( table.insert( key ), (byte)newState );
+		}
+	}
+
+	/**Cells are outside of the heap; direct memory is limited separately*/
+	@Override
+	public int heapBytesPerCell(){
+		return 16;
+	}
+	@Override
+	public int storedBytesPerCell(){
+		return 0;
+	}
+
+	@Override
+	public synchronized Field copy() {
+		OffHeapField rval = new OffHeapField( directory );
+		rval.setFieldState( getFieldState() );
+		rval.reserve( table.size );
+		for( int slot = 0; slot <= table.mask; ++slot ){
+			long key = table.keys.get( slot );
+			if ( key != EMPTY ) rval.table.states.put( rval.table.insert( key ), table.states.get( slot ) );
+		}
+		return rval;
+	}
+
+	/**Memory, used by the tables, in bytes*/
+	public synchronized long memoryUsed(){
+		return 2L * table.capacity() * 10;
+	}
+
+	/**Release the memory of the field. Field can not be used after it*/
+	public synchronized void close(){
+		if ( closed ) return;
+		closed = true;
+		table.free();
+		twin.free();
+		table = twin = new Table( 1 );
+	}
+
+	private void writeObject( ObjectOutputStream out ) throws IOException{
+		out.defaultWriteObject();
+		out.writeInt( table.size );
+		for( int slot = 0; slot <= table.mask; ++slot ){
+			long key = table.keys.get( slot );
+			if ( key == EMPTY ) continue;
+			out.writeLong( key );
+			out.writeByte( table.states.get( slot ) );
+		}
+	}
+
+	private void readObject( ObjectInputStream in ) throws IOException, ClassNotFoundException{
+		in.defaultReadObject();
+		int size = in.readInt();
+		init( MIN_CAPACITY );
+		reserve( size );
+		for( int i = 0; i < size; ++i ){
+			long key = in.readLong();
+			table.states.put( table.insert( key ), in.readByte() );
+		}
+	}
+}
@@ -0,0 +1,169 @@
+package org.ratson.pentagrid.fields;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.ratson.pentagrid.Field;
+import org.ratson.pentagrid.PackedPath;
+import org.ratson.pentagrid.Path;
+import org.ratson.pentagrid.PathNavigation;
+import org.ratson.pentagrid.TotalisticRule;
+
+/**Same as {@link SimpleMapField}, but cells are keyed by the packed paths.
+ * Keys do not reference each other, so the memory per cell does not depend on the path structure,
+ * and hashing uses 64-bit path fingerprints.*/
+public final class PackedMapField extends Field{
+	private static final long serialVersionUID = 1L;
+	private Map<PackedPath, CellRecord> data = new HashMap<PackedPath, CellRecord>();
+	private Map<PackedPath, CellRecord> newCells = new HashMap<PackedPath, CellRecord>();
+	/**Fingerprint of the alive cells, updated on every change*/
+	private transient long fingerprint = 0;
+
+	/**Create completely new field*/
+	public synchronized void setCells( Iterable<Path> cells ){
+		data = new HashMap<PackedPath, CellRecord>();
+		fingerprint = 0;
+		for (Path path : cells) {
+			if ( data.put( PackedPath.fromPath(path), new CellRecord(1)) == null )
+				fingerprint ^= cellHash( path, 1 );
+		}
+	}
+
+	private void calculateSums(){
+		newCells.clear();
+		PackedPath[] neighbores = new PackedPath[10];
+		for( Entry<PackedPath, CellRecord> path_rec : data.entrySet() ){
+			if ( path_rec.getValue().state == 0 ) continue;
+			PathNavigation.neigh10( path_rec.getKey(), neighbores );
+			for (int i = 0; i < neighbores.length; i++) {
+				CellRecord neighRec = data.get( neighbores[i] );
+				if (neighRec == null)
+					neighRec = newCells.get( neighbores[i] );
+				if (neighRec == null){
+					neighRec = new CellRecord(0);
+					newCells.put( neighbores[i], neighRec );
+				}
+				neighRec.sum += path_rec.getValue().state;
+			}
+		}
+	}
+	public synchronized void evaluate( TotalisticRule r ){
+		calculateSums();
+		for( Iterator<Entry<PackedPath, CellRecord>> iRec = data.entrySet().iterator(); iRec.hasNext(); ){
+			Entry<PackedPath, CellRecord> path_state = iRec.next();
+			CellRecord state = path_state.getValue();
+			int nextState = r.nextState( getFieldState(), state.state, state.sum);
+			if ( nextState != state.state ) changeFingerprint( path_state.getKey(), state.state, nextState );
+			if ( nextState != 0){
+				state.state = nextState;
+				state.sum = 0;
+			}else{
+				iRec.remove();
+			}
+		}
+		for( Entry<PackedPath, CellRecord> path_state : newCells.entrySet() ){
+			CellRecord state = path_state.getValue();
+			int nextState = r.nextState( getFieldState(), state.state, state.sum);
+			if ( nextState != 0){
+				changeFingerprint( path_state.getKey(), 0, nextState );
+				state.state = nextState;
+				state.sum = 0;
+				data.put(path_state.getKey(), state);
+			}
+		}
+		newCells.clear();
+		setFieldState( r.nextFieldState( getFieldState() ));
+	}
+
+	public synchronized Path[] getAliveCellsArray(){
+		Path[] rval = new Path[ data.size() ];
+		int i = 0;
+		for( PackedPath p : data.keySet() ) rval[i++] = p.toPath();
+		return rval;
+	}
+
+	@Override
+	public int population() {
+		return data.size();
+	}
+
+	@Override
+	public synchronized int getCell(Path cell) {
+		CellRecord rec = data.get( PackedPath.fromPath(cell) );
+		if (rec == null)return 0;
+		else return rec.state;
+	}
+
+	@Override
+	public synchronized void setCell(Path cell, int newState) {
+		PackedPath key = PackedPath.fromPath(cell);
+		CellRecord rec = data.get( key );
+		if ( rec != null ) fingerprint ^= cellHash( cell, rec.state );
+		if ( newState != 0 ) fingerprint ^= cellHash( cell, newState );
+		if (newState != 0){
+			if ( rec == null ){
+				data.put( key, new CellRecord(newState) );
+			}else{
+				rec.state = newState;
+			}
+		}else{
+			data.remove( key );
+		}
+	}
+
+	/**Update fingerprint, when state of the cell changes. Changed cells are unpacked to get their hash*/
+	private void changeFingerprint( PackedPath key, int oldState, int newState ){
+		Path p = key.toPath();
+		if ( oldState != 0 ) fingerprint ^= cellHash( p, oldState );
+		if ( newState != 0 ) fingerprint ^= cellHash( p, newState );
+	}
+
+	@Override
+	public synchronized long fingerprint(){
+		return fingerprint;
+	}
+
+	/**Alive cells, unpacked on the fly*/
+	@Override
+	public synchronized Iterable<Path> getAliveCells() {
+		final Iterable<PackedPath> keys = data.keySet();
+		return new Iterable<Path>(){
+			@Override
+			public Iterator<Path> iterator() {
+				final Iterator<PackedPath> iKey = keys.iterator();
+				return new Iterator<Path>(){
+					public boolean hasNext() { return iKey.hasNext(); }
+					public Path next() { return iKey.next().toPath(); }
+					public void remove() { iKey.remove(); }
+				};
+			}
+		};
+	}
+	/**Packed keys do not keep the path objects alive*/
+	@Override
+	public int heapBytesPerCell(){
+		return 420;
+	}
+	@Override
+	public int storedBytesPerCell(){
+		return 150;
+	}
+	@Override
+	public synchronized Field copy(){
+		PackedMapField rval = new PackedMapField();
+		for( Entry<PackedPath, CellRecord> e : data.entrySet() ){
+			rval.data.put( e.getKey(), new CellRecord(e.getValue().state));
+		}
+		rval.fingerprint = fingerprint;
+		return rval;
+	}
+
+	private void readObject( ObjectInputStream in ) throws IOException, ClassNotFoundException{
+		in.defaultReadObject();
+		fingerprint = super.fingerprint();
+	}
+}
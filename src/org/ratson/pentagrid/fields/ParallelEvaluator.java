@@ -0,0 +1,322 @@
+package org.ratson.pentagrid.fields;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.ratson.pentagrid.Path;
+import org.ratson.pentagrid.PathNavigation;
+import org.ratson.pentagrid.TotalisticRule;
+
+/**Evaluates the cell table on several cores.
+ *
+ * Alive cells are partitioned by path prefix: initially, by 10 sectors under the root.
+ * Prefixes, holding too big part of the population, are split by the next digit (up to SPLIT_DEPTH).
+ * Each partition accumulates neighbore sums of the cells in its own subtree locally.
+ * Neighbores outside the subtree are routed to their owner partitions after that,
+ * and then the rule is applied to every partition independently.
+ * Cells, not covered by any prefix (root and the split prefixes themselves), form the additional "rest" partition.
+ */
+final class ParallelEvaluator {
+	/**Maximal length of the partition prefix*/
+	private static final int SPLIT_DEPTH = 4;
+	/**How many partitions to create per thread, for better load balancing*/
+	private static final int PARTITIONS_PER_THREAD = 4;
+
+	private static ForkJoinPool pool = null;
+
+	/**Shared pool, one thread per processor*/
+	static synchronized ForkJoinPool getPool(){
+		if ( pool == null ) pool = new ForkJoinPool();
+		return pool;
+	}
+
+	/**Neighbores, that belong to other partitions*/
+	private static final class BoundaryCells{
+		Path[] cells = new Path[16];
+		int[] states = new int[16];
+		int size = 0;
+		void add( Path p, int state ){
+			if ( size == cells.length ){
+				cells = Arrays.copyOf( cells, size*2 );
+				states = Arrays.copyOf( states, size*2 );
+			}
+			cells[size] = p;
+			states[size] = state;
+			size ++;
+		}
+	}
+
+	private final ForkJoinPool executor;
+	private final CellTable data;
+	private final TotalisticRule rule;
+	private final int fieldState;
+	private final int numChunks;
+
+	/**Partition prefixes; the last partition is the rest, its prefix is null*/
+	private ArrayList<Path> prefixes = new ArrayList<Path>();
+	private HashMap<Path, Integer> partitionOfPrefix = new HashMap<Path, Integer>();
+	/**Slots of the alive cells, sorted by partition; partition i occupies [partitionStart[i], partitionStart[i+1])*/
+	private int[] order;
+	private int[] partitionStart;
+	private CellTable[] partitionTables;
+	private BoundaryCells[] boundary;
+
+	ParallelEvaluator( ForkJoinPool executor, CellTable data, TotalisticRule rule, int fieldState ){
+		this.executor = executor;
+		this.data = data;
+		this.rule = rule;
+		this.fieldState = fieldState;
+		numChunks = executor.getParallelism() * PARTITIONS_PER_THREAD;
+	}
+
+	/**Calculate next generation. Source table is not modified*/
+	CellTable evaluate(){
+		Path[] buckets = classifyCells();
+		choosePartitions( buckets );
+		sortByPartition( buckets );
+		calculateSums();
+		routeBoundaryCells();
+		return applyRule();
+	}
+
+	/**Run tasks in the pool and wait for them*/
+	private void runAll( List<Callable<Void>> tasks ){
+		try {
+			for( Future<Void> f : executor.invokeAll( tasks ) ) f.get();
+		} catch (InterruptedException e) {
+			throw new RuntimeException( e );
+		} catch (ExecutionException e) {
+			throw new RuntimeException( e.getCause() );
+		}
+	}
+
+	/**Split slot range into chunks and run the task for each chunk*/
+	private interface ChunkTask { void run( int from, int to ); }
+	private void runChunks( final ChunkTask task ){
+		int capacity = data.capacity();
+		int chunkSize = (capacity + numChunks - 1) / numChunks;
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for( int from = 0; from < capacity; from += chunkSize ){
+			final int f = from, t = Math.min( capacity, from + chunkSize );
+			tasks.add( new Callable<Void>(){
+				public Void call(){ task.run( f, t ); return null; }
+			});
+		}
+		runAll( tasks );
+	}
+
+	/**For every alive cell, find its ancestor of the length SPLIT_DEPTH (or the cell itself, if it is shorter)*/
+	private Path[] classifyCells(){
+		final Path[] buckets = new Path[ data.capacity() ];
+		runChunks( new ChunkTask(){
+			public void run( int from, int to ){
+				for( int slot = from; slot < to; ++slot ){
+					if ( data.states[slot] == 0 ) continue;
+					Path p = (Path)data.keys[ slot ];
+					buckets[ slot ] = p.ancestor( Math.min( p.length(), SPLIT_DEPTH ) );
+				}
+			}
+		});
+		return buckets;
+	}
+
+	/**Select prefixes, splitting those that are too populated*/
+	private void choosePartitions( Path[] buckets ){
+		//population of every subtree, up to the SPLIT_DEPTH
+		HashMap<Path, int[]> subtreePopulation = new HashMap<Path, int[]>();
+		for( int slot = 0; slot < buckets.length; ++slot ){
+			if ( buckets[slot] == null ) continue;
+			int[] count = subtreePopulation.get( buckets[slot] );
+			if ( count == null ){
+				count = new int[1];
+				subtreePopulation.put( buckets[slot], count );
+			}
+			count[0] ++;
+		}
+		HashMap<Path, Integer> totals = new HashMap<Path, Integer>();
+		for( Entry<Path, int[]> e : subtreePopulation.entrySet() ){
+			for( Path p = e.getKey(); !p.isRoot(); p = p.getTail() ){
+				Integer t = totals.get( p );
+				totals.put( p, (t == null ? 0 : t) + e.getValue()[0] );
+			}
+		}
+		int threshold = Math.max( 1, data.size() / numChunks );
+		Path root = Path.getRoot();
+		for( int i = 1; i <= root.maxChildIndex(); ++i ){
+			addPartitions( root.child(i), totals, threshold );
+		}
+		prefixes.add( null ); //the rest
+	}
+
+	private void addPartitions( Path prefix, Map<Path, Integer> totals, int threshold ){
+		Integer population = totals.get( prefix );
+		if ( population == null ) return;
+		if ( population > threshold && prefix.length() < SPLIT_DEPTH ){
+			for( int i = 1; i <= prefix.maxChildIndex(); ++i ){
+				addPartitions( prefix.child(i), totals, threshold );
+			}
+		}else{
+			partitionOfPrefix.put( prefix, prefixes.size() );
+			prefixes.add( prefix );
+		}
+	}
+
+	/**Index of the partition, owning the cell. Bucket is the ancestor of the cell of length not more than SPLIT_DEPTH*/
+	private int findPartition( Path bucket ){
+		for( Path p = bucket; !p.isRoot(); p = p.getTail() ){
+			Integer partition = partitionOfPrefix.get( p );
+			if ( partition != null ) return partition;
+		}
+		return prefixes.size() - 1;
+	}
+
+	/**Counting sort of the alive cells slots by partition*/
+	private void sortByPartition( final Path[] buckets ){
+		final int[] partitionOfSlot = new int[ buckets.length ];
+		runChunks( new ChunkTask(){
+			public void run( int from, int to ){
+				for( int slot = from; slot < to; ++slot ){
+					if ( buckets[slot] != null ) partitionOfSlot[slot] = findPartition( buckets[slot] );
+				}
+			}
+		});
+		int numPartitions = prefixes.size();
+		partitionStart = new int[ numPartitions + 1 ];
+		for( int slot = 0; slot < buckets.length; ++slot ){
+			if ( buckets[slot] != null ) partitionStart[ partitionOfSlot[slot] + 1 ] ++;
+		}
+		for( int i = 0; i < numPartitions; ++i ) partitionStart[i+1] += partitionStart[i];
+		int[] position = Arrays.copyOf( partitionStart, numPartitions );
+		order = new int[ partitionStart[numPartitions] ];
+		for( int slot = 0; slot < buckets.length; ++slot ){
+			if ( buckets[slot] != null ) order[ position[ partitionOfSlot[slot] ]++ ] = slot;
+		}
+	}
+
+	/**True if the neighbore of the cell is in the subtree of the prefix of given length. Cell must be in that subtree*/
+	private static boolean inSubtree( Path neighbore, Path cell, int prefixLength ){
+		//find the common ancestor; for the neighbores it is usually near.
+		int len = Math.min( neighbore.length(), cell.length() );
+		if ( len < prefixLength ) return false;
+		Path a = neighbore.ancestor( len ), b = cell.ancestor( len );
+		while( a != b ){
+			a = a.getTail();
+			b = b.getTail();
+			len --;
+		}
+		return len >= prefixLength;
+	}
+
+	/**Every partition sums neighbores in its subtree, and collects the rest*/
+	private void calculateSums(){
+		int numPartitions = prefixes.size();
+		partitionTables = new CellTable[ numPartitions ];
+		boundary = new BoundaryCells[ numPartitions ];
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for( int i = 0; i < numPartitions; ++i ){
+			final int partition = i;
+			tasks.add( new Callable<Void>(){
+				public Void call(){ sumPartition( partition ); return null; }
+			});
+		}
+		runAll( tasks );
+	}
+
+	private void sumPartition( int partition ){
+		Path prefix = prefixes.get( partition );
+		int prefixLength = (prefix == null) ? Integer.MAX_VALUE : prefix.length(); //rest owns no subtree
+		int from = partitionStart[partition], to = partitionStart[partition+1];
+		CellTable table = new CellTable();
+		BoundaryCells outside = new BoundaryCells();
+		table.ensureCapacity( (to - from) * 4 );
+		for( int i = from; i < to; ++i ){
+			int slot = order[i];
+			table.put( (Path)data.keys[slot], data.states[slot] );
+		}
+		Path[] neighbores = new Path[10];
+		for( int i = from; i < to; ++i ){
+			int slot = order[i];
+			Path cell = (Path)data.keys[slot];
+			int state = data.states[slot];
+			PathNavigation.neigh10( cell, neighbores );
+			for (int j = 0; j < neighbores.length; j++) {
+				if ( inSubtree( neighbores[j], cell, prefixLength ) ){
+					int neighSlot = table.insert( neighbores[j] );
+					table.sums[ neighSlot ] += state;
+				}else{
+					outside.add( neighbores[j], state );
+				}
+			}
+		}
+		partitionTables[ partition ] = table;
+		boundary[ partition ] = outside;
+	}
+
+	/**Add sums from the boundary cells to the tables of their owners*/
+	private void routeBoundaryCells(){
+		for( BoundaryCells outside : boundary ){
+			for( int i = 0; i < outside.size; ++i ){
+				Path p = outside.cells[i];
+				CellTable table = partitionTables[ findPartition( p.ancestor( Math.min( p.length(), SPLIT_DEPTH ))) ];
+				int slot = table.insert( p ); //owned alive cells are already in the table, so new ones are dead
+				table.sums[ slot ] += outside.states[i];
+			}
+		}
+		boundary = null;
+	}
+
+	/**Apply rule to every partition, and collect the alive cells into the new table*/
+	private CellTable applyRule(){
+		final int numPartitions = prefixes.size();
+		final Path[][] aliveCells = new Path[numPartitions][];
+		final int[][] aliveStates = new int[numPartitions][];
+		final int[] aliveCount = new int[numPartitions];
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for( int i = 0; i < numPartitions; ++i ){
+			final int partition = i;
+			tasks.add( new Callable<Void>(){
+				public Void call(){
+					CellTable table = partitionTables[ partition ];
+					Path[] cells = new Path[ table.size() ];
+					int[] states = new int[ table.size() ];
+					int n = 0;
+					for( int slot = 0; slot < table.capacity(); ++slot ){
+						Path p = table.keyAt( slot );
+						if ( p == null ) continue;
+						int nextState = rule.nextState( fieldState, table.states[slot], table.sums[slot] );
+						if ( nextState != 0 ){
+							cells[n] = p;
+							states[n] = nextState;
+							n ++;
+						}
+					}
+					partitionTables[ partition ] = null;
+					aliveCells[ partition ] = cells;
+					aliveStates[ partition ] = states;
+					aliveCount[ partition ] = n;
+					return null;
+				}
+			});
+		}
+		runAll( tasks );
+		int total = 0;
+		for( int n : aliveCount ) total += n;
+		CellTable next = new CellTable();
+		next.ensureCapacity( total );
+		for( int i = 0; i < numPartitions; ++i ){
+			for( int j = 0; j < aliveCount[i]; ++j ){
+				int slot = next.insertNew( aliveCells[i][j] );
+				next.states[ slot ] = aliveStates[i][j];
+			}
+		}
+		return next;
+	}
+}
@@ -0,0 +1,216 @@
+package org.ratson.pentagrid.fields;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.ratson.pentagrid.Field;
+import org.ratson.pentagrid.Path;
+import org.ratson.pentagrid.TotalisticRule;
+
+/**Unbounded field on top of the {@link CellRegistry}: cells get dense ids, when they are first touched,
+ * and states, sums and neighbore ids live in the primitive arrays.
+ * After the warm-up, when the pattern stays in the already registered region, evaluation is pure int array work, without hashing.
+ * Cells, that were dead and had no alive neighbores for {@link #IDLE_GENERATIONS} generations, are compacted away,
+ * when they make the most of the registry.*/
+public final class RegistryField extends Field {
+	private static final long serialVersionUID = 1L;
+	/**Cell is removed, when it was idle (dead and isolated) for this number of generations*/
+	public static final int IDLE_GENERATIONS = 8;
+	/**Registry is not compacted, while it is smaller*/
+	private static final int MIN_COMPACT_SIZE = 1024;
+
+	private transient CellRegistry registry;
+	private transient int[] states, sums;
+	/**Number of generations, the cell was dead and isolated*/
+	private transient byte[] idle;
+	private transient int population;
+	/**Fingerprint of the alive cells, updated on every change*/
+	private transient long fingerprint;
+
+	public RegistryField(){
+		clear();
+	}
+
+	private void clear(){
+		registry = new CellRegistry();
+		states = new int[ registry.capacity() ];
+		sums = new int[ registry.capacity() ];
+		idle = new byte[ registry.capacity() ];
+		population = 0;
+		fingerprint = 0;
+	}
+
+	/**Grow the cell arrays after the registry has grown*/
+	private void ensureCapacity(){
+		int capacity = registry.capacity();
+		if ( states.length >= capacity ) return;
+		states = Arrays.copyOf( states, capacity );
+		sums = Arrays.copyOf( sums, capacity );
+		idle = Arrays.copyOf( idle, capacity );
+	}
+
+	private void setState( int id, int newState ){
+		int oldState = states[ id ];
+		if ( oldState == newState ) return;
+		Path p = registry.paths[ id ];
+		if ( oldState != 0 ){
+			fingerprint ^= cellHash( p, oldState );
+			population --;
+		}
+		if ( newState != 0 ){
+			fingerprint ^= cellHash( p, newState );
+			population ++;
+		}
+		states[ id ] = newState;
+	}
+
+	@Override
+	public synchronized void evaluate( TotalisticRule r ) {
+		//Sums. Newly registered cells are dead, so loop does not need to see them
+		int numCells = registry.size;
+		for( int id = 0; id < numCells; ++id ){
+			int state = states[ id ];
+			if ( state == 0 ) continue;
+			int base = registry.resolve( id );
+			ensureCapacity();
+			int[] neighbores = registry.neighbores;
+			for( int k = 0; k < 10; ++k ) sums[ neighbores[ base+k ] ] += state;
+		}
+		//Rule
+		int fieldState = getFieldState();
+		numCells = registry.size;
+		int numIdle = 0;
+		for( int id = 0; id < numCells; ++id ){
+			int state = states[ id ], sum = sums[ id ];
+			int newState = r.nextState( fieldState, state, sum );
+			if ( newState == 0 && state == 0 && sum == 0 ){
+				if ( idle[ id ] < IDLE_GENERATIONS ) idle[ id ] ++;
+				if ( idle[ id ] >= IDLE_GENERATIONS ) numIdle ++;
+			}else{
+				idle[ id ] = 0;
+			}
+			setState( id, newState );
+			sums[ id ] = 0;
+		}
+		if ( numCells >= MIN_COMPACT_SIZE && numIdle * 2 > numCells ) compact();
+		setFieldState( r.nextFieldState( fieldState ) );
+	}
+
+	/**Remove idle cells from the registry*/
+	private void compact(){
+		int numCells = registry.size;
+		boolean[] keep = new boolean[ numCells ];
+		for( int id = 0; id < numCells; ++id ) keep[ id ] = idle[ id ] < IDLE_GENERATIONS;
+		int[] newIds = registry.compact( keep );
+		int capacity = registry.capacity();
+		int[] newStates = new int[ capacity ];
+		byte[] newIdle = new byte[ capacity ];
+		for( int id = 0; id < numCells; ++id ){
+			int newId = newIds[ id ];
+			if ( newId < 0 ) continue;
+			newStates[ newId ] = states[ id ];
+			newIdle[ newId ] = idle[ id ];
+		}
+		states = newStates;
+		idle = newIdle;
+		sums = new int[ capacity ];
+	}
+
+	/**Number of the registered cells: alive ones, their neighbores, and the idle cells, not removed yet*/
+	public synchronized int registeredCells(){
+		return registry.size;
+	}
+
+	@Override
+	public synchronized void setCells( Iterable<Path> cells ) {
+		clear();
+		for( Path p : cells ) setCell( p, 1 );
+	}
+
+	@Override
+	public synchronized Path[] getAliveCellsArray() {
+		Path[] rval = new Path[ population ];
+		int n = 0;
+		for( int id = 0; id < registry.size; ++id ){
+			if ( states[ id ] != 0 ) rval[ n++ ] = registry.paths[ id ];
+		}
+		return rval;
+	}
+
+	@Override
+	public synchronized Iterable<Path> getAliveCells() {
+		return Arrays.asList( getAliveCellsArray() );
+	}
+
+	@Override
+	public synchronized int population() {
+		return population;
+	}
+
+	@Override
+	public synchronized int getCell( Path cell ) {
+		int id = registry.idOf( cell );
+		return ( id < 0 ) ? 0 : states[ id ];
+	}
+
+	@Override
+	public synchronized void setCell( Path cell, int newState ) {
+		int id = ( newState != 0 ) ? registry.register( cell ) : registry.idOf( cell );
+		if ( id < 0 ) return;
+		ensureCapacity();
+		setState( id, newState );
+		idle[ id ] = 0;
+	}
+
+	@Override
+	public synchronized long fingerprint() {
+		return fingerprint;
+	}
+
+	/**Registry keeps the neighbore rows and the idle cells*/
+	@Override
+	public int heapBytesPerCell(){
+		return 2320;
+	}
+	@Override
+	public int storedBytesPerCell(){
+		return 790;
+	}
+
+	@Override
+	public synchronized Field copy() {
+		RegistryField rval = new RegistryField();
+		for( int id = 0; id < registry.size; ++id ){
+			if ( states[ id ] != 0 ) rval.setCell( registry.paths[ id ], states[ id ] );
+		}
+		rval.setFieldState( getFieldState() );
+		return rval;
+	}
+
+	/**Only alive cells and their states are serialized*/
+	private void writeObject( ObjectOutputStream out ) throws IOException{
+		out.defaultWriteObject();
+		ArrayList<Path> cells = new ArrayList<Path>( population );
+		for( int id = 0; id < registry.size; ++id ){
+			if ( states[ id ] != 0 ) cells.add( registry.paths[ id ] );
+		}
+		out.writeInt( cells.size() );
+		for( Path p : cells ){
+			out.writeObject( p );
+			out.writeInt( getCell( p ) );
+		}
+	}
+
+	private void readObject( ObjectInputStream in ) throws IOException, ClassNotFoundException{
+		in.defaultReadObject();
+		clear();
+		int n = in.readInt();
+		for( int i = 0; i < n; ++i ){
+			Path p = (Path)in.readObject();
+			setCell( p, in.readInt() );
+		}
+	}
+}
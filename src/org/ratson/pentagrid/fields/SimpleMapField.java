@@ -1,78 +1,267 @@
 package org.ratson.pentagrid.fields;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
 
+import org.ratson.pentagrid.EvaluationBudget;
 import org.ratson.pentagrid.Field;
+import org.ratson.pentagrid.FieldDelta;
 import org.ratson.pentagrid.Path;
 import org.ratson.pentagrid.PathNavigation;
 import org.ratson.pentagrid.TotalisticRule;
 
-/**Field, storing only living cells in one single map.*/
+/**Field, storing only living cells in one single map.
+ * Map is a primitive open-addressing table; dead neighbores of the alive cells are collected in the second table,
+ * that is cleared in bulk every generation.*/
 public final class SimpleMapField extends Field{
 	private static final long serialVersionUID = 1L;
+	/**Serialized form is the same, as it was for the HashMap-based implementation: maps of path to CellRecord*/
+	private static final ObjectStreamField[] serialPersistentFields = {
+		new ObjectStreamField( "data", Map.class ),
+		new ObjectStreamField( "newCells", Map.class ) };
 	//maps cell to the cell state
-	private Map<Path, CellRecord> data = new HashMap<Path, CellRecord>();
-	private Map<Path, CellRecord> newCells = new HashMap<Path, CellRecord>();
+	private transient CellTable data = new CellTable();
+	private transient CellTable newCells = new CellTable();
+	/**Evaluate big populations on several cores*/
+	private transient boolean parallel = false;
+	/**Fingerprint of the alive cells, updated on every change*/
+	private transient long fingerprint = 0;
+	/**Changes of the current generation are recorded here, when evaluated by {@link #evaluateDelta}*/
+	private transient FieldDelta delta = null;
+	/**Smaller populations are always evaluated sequentially*/
+	private static final int MIN_PARALLEL_POPULATION = 20000;
 	/**Create completely new field*/
 	public synchronized void setCells( Iterable<Path> cells ){
-		data = new HashMap<Path, CellRecord>();
+		data = new CellTable();
+		fingerprint = 0;
 		for (Path path : cells) {
-			data.put( path, new CellRecord(1));
+			if ( data.find( path ) >= 0 ) continue;
+			data.put( path, 1 );
+			fingerprint ^= cellHash( path, 1 );
 		}
 	}
-	
-	private void calculateSums(){
-		//for each non-zero cell, increase counters for all neighbores.
+
+	/**Budget is checked after this number of cells*/
+	private static final int BUDGET_CHECK_INTERVAL = 1024;
+	/**Table slot: key reference, state and sum*/
+	private static final int SLOT_BYTES = 12;
+	/**New path object with its entry in the cache of the parent path*/
+	private static final int NEW_PATH_BYTES = 80;
+
+	/**Memory, allocated for the dead neighbores, in bytes*/
+	private long newCellsBytes(){
+		return (long)newCells.capacity() * SLOT_BYTES + (long)newCells.size() * NEW_PATH_BYTES;
+	}
+
+	/**For each alive cell, increase sums of all neighbores. Budget may be null.
+	 * Returns the abort reason, if budget was exceeded: then sums are partially calculated*/
+	private int calculateSums( EvaluationBudget budget ){
 		newCells.clear();
-		for( Entry<Path, CellRecord> path_rec : data.entrySet() ){
-			if ( path_rec.getValue().state == 0 ) continue;
-			Path[] neighbores = PathNavigation.neigh10( path_rec.getKey() );
+		Path[] neighbores = new Path[10];
+		Object[] keys = data.keys;
+		int[] states = data.states;
+		int processed = 0;
+		for( int slot = 0; slot < keys.length; ++slot ){
+			int state = states[ slot ];
+			if ( state == 0 ) continue; //empty, removed or dead
+			PathNavigation.neigh10( (Path)keys[slot], neighbores );
 			for (int i = 0; i < neighbores.length; i++) {
-				CellRecord neighRec = data.get( neighbores[i] );
-				if (neighRec == null) 
-					neighRec = newCells.get( neighbores[i] );
-				if (neighRec == null){ //The neighbore is not registered yet, neither in the old, nor in the new cells.
-					neighRec = new CellRecord(0);
-					newCells.put( neighbores[i], neighRec );
+				int neighSlot = data.find( neighbores[i] );
+				if ( neighSlot >= 0 ){
+					data.sums[ neighSlot ] += state;
+				}else{ //The neighbore is not alive: register it in the new cells.
+					int newSlot = newCells.insert( neighbores[i] );
+					newCells.sums[ newSlot ] += state;
 				}
-				neighRec.sum += path_rec.getValue().state;
+			}
+			if ( budget != null && ++processed % BUDGET_CHECK_INTERVAL == 0 ){
+				budget.setProgress( 0.8 * processed / data.size() );
+				int result = budget.check( newCellsBytes() );
+				if ( result != EvaluationBudget.COMPLETED ) return result;
 			}
 		}
+		return EvaluationBudget.COMPLETED;
 	}
+
+	/**Count cells of the next generation, when sums are known, and abort as soon as the population limit is exceeded*/
+	private int checkNextPopulation( TotalisticRule r, int fieldState, EvaluationBudget budget ){
+		int population = 0, counted = 0;
+		for( int pass = 0; pass < 2; ++pass ){
+			CellTable t = ( pass == 0 ) ? data : newCells;
+			for( int slot = 0; slot < t.keys.length; ++slot ){
+				if ( t.keyAt( slot ) == null ) continue;
+				if ( r.nextState( fieldState, t.states[slot], t.sums[slot] ) != 0 ) population ++;
+				if ( ++counted % BUDGET_CHECK_INTERVAL == 0 ){
+					budget.setProgress( 0.8 + 0.1 * counted / ( data.size() + newCells.size() ) );
+					int result = budget.check( population, newCellsBytes() );
+					if ( result != EvaluationBudget.COMPLETED ) return result;
+				}
+			}
+		}
+		return budget.check( population, newCellsBytes() );
+	}
+
 	public synchronized void evaluate( TotalisticRule r ){
-		calculateSums();
-		//First process all cells in the old array
-		for( Iterator<CellRecord> iRec = data.values().iterator(); iRec.hasNext(); ){
-			CellRecord state = iRec.next();
-			int nextState = r.nextState( getFieldState(), state.state, state.sum); 
+		evaluateWithin( r, null );
+	}
+
+	/**Evaluation is checked against the budget while the sums are calculated, and the next population is counted before any cell is changed.
+	 * Parallel evaluation is checked only after it is done: the old table is not modified by it*/
+	@Override
+	public synchronized int evaluate( TotalisticRule r, EvaluationBudget budget ){
+		budget.begin();
+		return budget.end( evaluateWithin( r, budget ) );
+	}
+
+	/**Evaluate the field. Budget may be null*/
+	private int evaluateWithin( TotalisticRule r, EvaluationBudget budget ){
+		int fieldState = getFieldState();
+		if ( parallel && data.size() >= MIN_PARALLEL_POPULATION && ParallelEvaluator.getPool().getParallelism() > 1 ){
+			if ( budget != null ){
+				int result = budget.check( 0 );
+				if ( result != EvaluationBudget.COMPLETED ) return result;
+			}
+			CellTable next = new ParallelEvaluator( ParallelEvaluator.getPool(), data, r, fieldState ).evaluate();
+			if ( budget != null ){
+				int result = budget.check( next.size(), (long)next.capacity() * SLOT_BYTES );
+				if ( result != EvaluationBudget.COMPLETED ) return result;
+			}
+			CellTable old = data;
+			data = next;
+			if ( delta != null ) recordChanges( old, data );
+			fingerprint = calculateFingerprint();
+			setFieldState( r.nextFieldState( fieldState ));
+			return EvaluationBudget.COMPLETED;
+		}
+		int result = calculateSums( budget );
+		if ( result == EvaluationBudget.COMPLETED && budget != null ){
+			if ( data.size() + newCells.size() > budget.getMaxPopulation() ){
+				result = checkNextPopulation( r, fieldState, budget );
+			}else{
+				result = budget.check( newCellsBytes() ); //population limit can not be exceeded
+			}
+		}
+		if ( result != EvaluationBudget.COMPLETED ){ //nothing is changed yet, only the sums are dropped
+			newCells.clear();
+			Arrays.fill( data.sums, 0 );
+			return result;
+		}
+		//First process all cells in the old table
+		for( int slot = 0; slot < data.keys.length; ++slot ){
+			int state = data.states[ slot ];
+			if ( state == 0 ) continue;
+			int nextState = r.nextState( fieldState, state, data.sums[slot]);
+			if ( nextState != state ){
+				Path p = data.keyAt( slot );
+				fingerprint ^= cellHash( p, state );
+				if ( nextState != 0 ) fingerprint ^= cellHash( p, nextState );
+				if ( delta != null ) delta.record( p, state, nextState );
+			}
 			if ( nextState != 0){
-				state.state = nextState;
-				state.sum = 0;
+				data.states[ slot ] = nextState;
+				data.sums[ slot ] = 0;
 			}else{
-				iRec.remove();
+				data.remove( slot );
 			}
 		}
 		//now all added cells
-		for( Iterator<Entry<Path, CellRecord> > iRec = newCells.entrySet().iterator(); iRec.hasNext(); ){
-			Entry<Path, CellRecord> path_state = iRec.next();  
-			CellRecord state = path_state.getValue();
-			int nextState = r.nextState( getFieldState(), state.state, state.sum); 
+		for( int slot = 0; slot < newCells.keys.length; ++slot ){
+			Path p = newCells.keyAt( slot );
+			if ( p == null ) continue;
+			int nextState = r.nextState( fieldState, 0, newCells.sums[slot]);
 			if ( nextState != 0){
-				state.state = nextState;
-				state.sum = 0;
-				data.put(path_state.getKey(), state);
+				int newSlot = data.insertNew( p );
+				data.states[ newSlot ] = nextState;
+				fingerprint ^= cellHash( p, nextState );
+				if ( delta != null ) delta.record( p, 0, nextState );
 			}
 		}
 		newCells.clear();
-		setFieldState( r.nextFieldState( getFieldState() )); //update the world global state
+		data.compact();
+		setFieldState( r.nextFieldState( fieldState )); //update the world global state
+		return EvaluationBudget.COMPLETED;
+	}
+
+	/**Records changes while evaluating, so the delta costs O(changes)*/
+	@Override
+	public synchronized FieldDelta evaluateDelta( TotalisticRule r ){
+		FieldDelta rval = new FieldDelta( getFieldState() );
+		evaluateRecording( r, null, rval );
+		return rval;
+	}
+
+	@Override
+	public synchronized FieldDelta evaluateDelta( TotalisticRule r, EvaluationBudget budget ){
+		budget.begin();
+		FieldDelta rval = new FieldDelta( getFieldState() );
+		int result = budget.end( evaluateRecording( r, budget, rval ) );
+		return ( result == EvaluationBudget.COMPLETED ) ? rval : null;
+	}
+
+	/**Evaluate the field, recording changes to the given delta*/
+	private int evaluateRecording( TotalisticRule r, EvaluationBudget budget, FieldDelta d ){
+		int result;
+		delta = d;
+		try{
+			result = evaluateWithin( r, budget );
+		}finally{
+			delta = null;
+		}
+		d.finish( getFieldState() );
+		return result;
 	}
-	
+
+	/**Record differences of the tables of the alive cells to the delta*/
+	private void recordChanges( CellTable before, CellTable after ){
+		for( int slot = 0; slot < before.keys.length; ++slot ){
+			Path p = before.keyAt( slot );
+			if ( p == null ) continue;
+			int newSlot = after.find( p );
+			int newState = ( newSlot < 0 ) ? 0 : after.states[ newSlot ];
+			if ( newState != before.states[ slot ] ) delta.record( p, before.states[ slot ], newState );
+		}
+		for( int slot = 0; slot < after.keys.length; ++slot ){
+			Path p = after.keyAt( slot );
+			if ( p != null && before.find( p ) < 0 ) delta.record( p, 0, after.states[ slot ] );
+		}
+	}
+
+	/**Enable or disable multi-core evaluation of big populations*/
+	public void setParallel( boolean parallel ){
+		this.parallel = parallel;
+	}
+	public boolean isParallel(){
+		return parallel;
+	}
+
+	@Override
+	public synchronized long fingerprint(){
+		return fingerprint;
+	}
+
+	private long calculateFingerprint(){
+		long rval = 0;
+		for( int slot = 0; slot < data.keys.length; ++slot ){
+			Path p = data.keyAt( slot );
+			if ( p != null ) rval ^= cellHash( p, data.states[slot] );
+		}
+		return rval;
+	}
+
 	public synchronized Path[] getAliveCellsArray(){
 		Path[] rval = new Path[ data.size() ];
-		data.keySet().toArray( rval );
+		int i = 0;
+		for( int slot = 0; slot < data.keys.length; ++slot ){
+			Path p = data.keyAt( slot );
+			if ( p != null ) rval[ i++ ] = p;
+		}
 		return rval;
 	}
 
@@ -83,36 +272,78 @@ public final class SimpleMapField extends Field{
 
 	@Override
 	public synchronized int getCell(Path cell) {
-		CellRecord rec = data.get( cell );
-		if (rec == null)return 0;
-		else return rec.state;
+		int slot = data.find( cell );
+		if (slot < 0)return 0;
+		else return data.states[ slot ];
 	}
 
 	@Override
 	public synchronized void setCell(Path cell, int newState) {
+		int slot = data.find( cell );
+		if ( slot >= 0 ) fingerprint ^= cellHash( cell, data.states[slot] );
 		if (newState != 0){
-			CellRecord rec = data.get( cell );
-			if ( rec == null ){
-				rec = new CellRecord(newState);
-				data.put( cell, rec );
-			}else{
-				rec.state = newState;
-			}
+			data.put( cell, newState );
+			fingerprint ^= cellHash( cell, newState );
 		}else{
-			data.remove( cell );
+			if ( slot >= 0 ) data.remove( slot );
 		}
 	}
 
+	/**Returns snapshot of the alive cells*/
 	@Override
 	public synchronized Iterable<Path> getAliveCells() {
-		return data.keySet();
+		ArrayList<Path> rval = new ArrayList<Path>( data.size() );
+		for( int slot = 0; slot < data.keys.length; ++slot ){
+			Path p = data.keyAt( slot );
+			if ( p != null ) rval.add( p );
+		}
+		return rval;
+	}
+	/**Alive cells, tables of the dead neighbores, and their new paths*/
+	@Override
+	public int heapBytesPerCell(){
+		return 560;
+	}
+	@Override
+	public int storedBytesPerCell(){
+		return 240;
+	}
+	/**Changes are recorded while evaluating, without the copy*/
+	@Override
+	public int deltaBytesPerCell(){
+		return 50;
 	}
 	@Override
 	public synchronized Field copy(){
 		SimpleMapField rval = new SimpleMapField();
-		for( Entry<Path, CellRecord> e : data.entrySet() ){
-			rval.data.put( e.getKey(), new CellRecord(e.getValue().state));
-		}
+		rval.data = new CellTable( data );
+		rval.fingerprint = fingerprint;
 		return rval;
 	}
+
+	private synchronized void writeObject( ObjectOutputStream out ) throws IOException{
+		Map<Path, CellRecord> map = new HashMap<Path, CellRecord>();
+		for( int slot = 0; slot < data.keys.length; ++slot ){
+			Path p = data.keyAt( slot );
+			if ( p != null ) map.put( p, new CellRecord( data.states[slot] ) );
+		}
+		ObjectOutputStream.PutField fields = out.putFields();
+		fields.put( "data", map );
+		fields.put( "newCells", new HashMap<Path, CellRecord>() );
+		out.writeFields();
+	}
+
+	@SuppressWarnings("unchecked")
+	private void readObject( ObjectInputStream in ) throws IOException, ClassNotFoundException{
+		ObjectInputStream.GetField fields = in.readFields();
+		Map<Path, CellRecord> map = (Map<Path, CellRecord>) fields.get( "data", null );
+		data = new CellTable();
+		newCells = new CellTable();
+		if ( map == null ) return;
+		for( Entry<Path, CellRecord> e : map.entrySet() ){
+			if ( e.getValue().state != 0 )
+				data.put( e.getKey(), e.getValue().state );
+		}
+		fingerprint = calculateFingerprint();
+	}
 }
@@ -0,0 +1,314 @@
+package org.ratson.pentagrid.fields;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.ratson.pentagrid.Field;
+import org.ratson.pentagrid.Path;
+import org.ratson.pentagrid.TotalisticRule;
+import org.ratson.util.Util;
+
+/**Field, storing cells in the trie of path digits, from the root outward. Trie has the same shape, as the path tree itself.
+ * Every node knows the population of its subtree, so the number of alive cells under any path is found in O(depth).
+ * Neighbores are found by moving along the trie (children, parent, siblings and left/right carries), as {@link org.ratson.pentagrid.PathNavigation} does for paths,
+ * so evaluation does not hash at all. Nodes of the empty subtrees are removed after every generation.*/
+public final class TrieField extends Field {
+	private static final long serialVersionUID = 1L;
+
+	/**Node of the trie: one cell*/
+	private static final class Node{
+		final Path path;
+		final Node parent;
+		/**Children by index-1, created lazily*/
+		Node[] children = null;
+		int state = 0;
+		int sum = 0;
+		/**Number of alive cells in the subtree, including this one*/
+		int population = 0;
+		/**Last generation, when the node was evaluated*/
+		int stamp = -1;
+
+		Node( Path path, Node parent ){
+			this.path = path;
+			this.parent = parent;
+		}
+
+		int index(){ return path.getIndex(); }
+		boolean isRoot(){ return parent == null; }
+
+		Node child( int index ){
+			if ( children == null ) children = new Node[ path.maxChildIndex() ];
+			Node c = children[ index-1 ];
+			if ( c == null ){
+				c = new Node( path.child( index ), this );
+				children[ index-1 ] = c;
+			}
+			return c;
+		}
+
+		/**Child, if it exists, or null*/
+		Node existingChild( int index ){
+			return ( children == null ) ? null : children[ index-1 ];
+		}
+
+		Node rightmostChild(){ return child( path.maxChildIndex() ); }
+		Node leftmostChild(){ return child( 1 ); }
+
+		Node left(){
+			if ( isRoot() ) return this;
+			int idx = index();
+			if ( parent.isRoot() ) return parent.child( Util.cycle10( idx-1 ) );
+			if ( idx >= 2 ) return parent.child( idx-1 );
+			return parent.left().rightmostChild();
+		}
+
+		Node right(){
+			if ( isRoot() ) return this;
+			int idx = index();
+			if ( parent.isRoot() ) return parent.child( Util.cycle10( idx+1 ) );
+			if ( idx+1 <= parent.path.maxChildIndex() ) return parent.child( idx+1 );
+			return parent.right().leftmostChild();
+		}
+
+		/**Same neighbores in the same order, as {@link org.ratson.pentagrid.PathNavigation#neigh10(Path, Path[])}. Missing nodes are created*/
+		void neigh10( Node[] neigh ){
+			if ( isRoot() ){
+				for( int i = 1; i <= 10; ++i ) neigh[i-1] = child(i);
+				return;
+			}
+			Node left = left(), right = right();
+			int idx = index();
+			if ( (idx & 1) == 1 ){
+				neigh[0] = child(1);
+				neigh[1] = child(3);
+				neigh[2] = left;
+				neigh[3] = right;
+				neigh[4] = parent;
+				neigh[5] = child(2);
+				neigh[6] = left.rightmostChild();
+				neigh[7] = right.leftmostChild();
+				if ( parent.isRoot() ){
+					neigh[8] = parent.child( Util.cycle10( idx-2 ) );
+					neigh[9] = parent.child( Util.cycle10( idx+2 ) );
+				}else{
+					neigh[8] = ( idx > 2 ) ? parent.child( idx-2 ) : parent.left();
+					neigh[9] = ( idx+2 <= parent.path.maxChildIndex() ) ? parent.child( idx+2 ) : parent.right();
+				}
+			}else{
+				neigh[0] = child(1);
+				neigh[1] = child(3);
+				neigh[2] = child(5);
+				neigh[3] = left;
+				neigh[4] = right;
+				neigh[5] = child(2);
+				neigh[6] = child(4);
+				neigh[7] = parent;
+				neigh[8] = left.rightmostChild();
+				neigh[9] = right.leftmostChild();
+			}
+		}
+	}
+
+	private transient Node root = new Node( Path.getRoot(), null );
+	private transient int generation = 0;
+	/**Fingerprint of the alive cells, updated on every change*/
+	private transient long fingerprint = 0;
+
+	/**Change state of the node, updating populations and the fingerprint*/
+	private void setState( Node n, int newState ){
+		int oldState = n.state;
+		if ( oldState == newState ) return;
+		if ( oldState != 0 ) fingerprint ^= cellHash( n.path, oldState );
+		if ( newState != 0 ) fingerprint ^= cellHash( n.path, newState );
+		n.state = newState;
+		int delta = ( newState != 0 ? 1 : 0 ) - ( oldState != 0 ? 1 : 0 );
+		if ( delta != 0 ){
+			for( Node a = n; a != null; a = a.parent ) a.population += delta;
+		}
+	}
+
+	/**Remove the empty subtree, containing the node, as high as possible*/
+	private static void prune( Node n ){
+		if ( n.population != 0 ) return;
+		while( n.parent != null && n.parent.population == 0 ) n = n.parent;
+		if ( n.parent == null ){
+			n.children = null;
+		}else{
+			n.parent.children[ n.index()-1 ] = null;
+		}
+	}
+
+	/**Node of the path, created if needed*/
+	private Node node( Path p ){
+		if ( p.isRoot() ) return root;
+		return node( p.getTail() ).child( p.getIndex() );
+	}
+
+	/**Node of the path, or null if it does not exist*/
+	private Node findNode( Path p ){
+		if ( p.isRoot() ) return root;
+		Node t = findNode( p.getTail() );
+		return ( t == null ) ? null : t.existingChild( p.getIndex() );
+	}
+
+	/**All alive nodes of the subtree*/
+	private static void collectAlive( Node n, ArrayList<Node> alive ){
+		if ( n.state != 0 ) alive.add( n );
+		if ( n.children == null || n.population == ( n.state != 0 ? 1 : 0 ) ) return;
+		for( Node c : n.children ){
+			if ( c != null && c.population > 0 ) collectAlive( c, alive );
+		}
+	}
+
+	@Override
+	public synchronized void evaluate( TotalisticRule r ) {
+		int fieldState = getFieldState();
+		ArrayList<Node> alive = new ArrayList<Node>( root.population );
+		collectAlive( root, alive );
+		//Sums. Nodes, that got nonzero sums, are remembered
+		ArrayList<Node> touched = new ArrayList<Node>( alive.size() * 3 );
+		Node[] neighbores = new Node[10];
+		for( Node n : alive ){
+			n.neigh10( neighbores );
+			for( Node neigh : neighbores ){
+				if ( neigh.sum == 0 ) touched.add( neigh );
+				neigh.sum += n.state;
+			}
+		}
+		//New states. Every node is evaluated once: alive ones can be touched too
+		generation ++;
+		int[] newStates = new int[ touched.size() + alive.size() ];
+		int i = 0;
+		for( Node n : touched ){
+			newStates[ i++ ] = r.nextState( fieldState, n.state, n.sum );
+			n.stamp = generation;
+		}
+		for( Node n : alive ){
+			newStates[ i++ ] = ( n.stamp == generation ) ? n.state : r.nextState( fieldState, n.state, 0 );
+		}
+		i = 0;
+		for( Node n : touched ){
+			setState( n, newStates[ i++ ] );
+			n.sum = 0;
+		}
+		for( Node n : alive ){
+			int s = newStates[ i++ ];
+			if ( n.stamp != generation ) setState( n, s );
+		}
+		for( Node n : touched ) prune( n );
+		for( Node n : alive ) prune( n );
+		setFieldState( r.nextFieldState( fieldState ) );
+	}
+
+	@Override
+	public synchronized void setCells( Iterable<Path> cells ) {
+		root = new Node( Path.getRoot(), null );
+		fingerprint = 0;
+		for( Path p : cells ) setState( node( p ), 1 );
+	}
+
+	@Override
+	public synchronized Path[] getAliveCellsArray() {
+		ArrayList<Node> alive = new ArrayList<Node>( root.population );
+		collectAlive( root, alive );
+		Path[] rval = new Path[ alive.size() ];
+		for( int i = 0; i < rval.length; ++i ) rval[i] = alive.get(i).path;
+		return rval;
+	}
+
+	@Override
+	public synchronized Iterable<Path> getAliveCells() {
+		return Arrays.asList( getAliveCellsArray() );
+	}
+
+	@Override
+	public synchronized int population() {
+		return root.population;
+	}
+
+	@Override
+	public synchronized int getCell( Path cell ) {
+		Node n = findNode( cell );
+		return ( n == null ) ? 0 : n.state;
+	}
+
+	@Override
+	public synchronized void setCell( Path cell, int newState ) {
+		if ( newState == 0 ){
+			Node n = findNode( cell );
+			if ( n == null ) return;
+			setState( n, 0 );
+			prune( n );
+		}else{
+			setState( node( cell ), newState );
+		}
+	}
+
+	/**Number of the alive cells, whose paths start with the given path (the cell itself and all cells "behind" it). O(depth)*/
+	public synchronized int subtreePopulation( Path p ){
+		Node n = findNode( p );
+		return ( n == null ) ? 0 : n.population;
+	}
+
+	@Override
+	public synchronized long fingerprint() {
+		return fingerprint;
+	}
+
+	/**Trie nodes of the alive cells, their neighbores and the inner nodes*/
+	@Override
+	public int heapBytesPerCell(){
+		return 840;
+	}
+	@Override
+	public int storedBytesPerCell(){
+		return 250;
+	}
+
+	@Override
+	public synchronized Field copy() {
+		TrieField rval = new TrieField();
+		rval.root = copy( root, null );
+		rval.fingerprint = fingerprint;
+		rval.setFieldState( getFieldState() );
+		return rval;
+	}
+
+	private static Node copy( Node n, Node parent ){
+		Node rval = new Node( n.path, parent );
+		rval.state = n.state;
+		rval.population = n.population;
+		if ( n.children != null && n.population > ( n.state != 0 ? 1 : 0 ) ){
+			rval.children = new Node[ n.children.length ];
+			for( int i = 0; i < n.children.length; ++i ){
+				Node c = n.children[i];
+				if ( c != null && c.population > 0 ) rval.children[i] = copy( c, rval );
+			}
+		}
+		return rval;
+	}
+
+	/**Trie is not serialized directly: it would be written recursively. Cells and states are written instead*/
+	private void writeObject( ObjectOutputStream out ) throws IOException{
+		out.defaultWriteObject();
+		Path[] cells = getAliveCellsArray();
+		out.writeInt( cells.length );
+		for( Path p : cells ){
+			out.writeObject( p );
+			out.writeInt( getCell( p ) );
+		}
+	}
+
+	private void readObject( ObjectInputStream in ) throws IOException, ClassNotFoundException{
+		in.defaultReadObject();
+		root = new Node( Path.getRoot(), null );
+		int n = in.readInt();
+		for( int i = 0; i < n; ++i ){
+			Path p = (Path)in.readObject();
+			setState( node( p ), in.readInt() );
+		}
+	}
+}
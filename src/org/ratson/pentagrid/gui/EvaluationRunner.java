@@ -1,28 +1,149 @@
 package org.ratson.pentagrid.gui;
 
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+import javax.swing.SwingUtilities;
+
+import org.ratson.pentagrid.CycleDetector;
+import org.ratson.pentagrid.EvaluationBudget;
 import org.ratson.pentagrid.Field;
+import org.ratson.pentagrid.FieldDelta;
+import org.ratson.pentagrid.MemoryGuard;
+import org.ratson.pentagrid.Path;
 import org.ratson.pentagrid.TotalisticRule;
+import org.ratson.pentagrid.fields.ExternalField;
+import org.ratson.pentagrid.fields.PackedMapField;
+import org.ratson.util.CoalescingPublisher;
+import org.ratson.util.Flow;
 
-/**Thread, that runs in background and continuously evaluates the field, when requested*/
+/**Thread, that runs in background and continuously evaluates the field, when requested.
+ * When the field becomes periodic, generations of the cycle are replayed by applying its cached changes instead of evaluating them.
+ * Generations are evaluated at the target pace (see {@link #setDelayMs}), or as fast as possible.
+ * Readers (painting on the Swing thread) never wait for the lock of the evaluated field: they follow it by the stream of {@link FieldDelta}s (see {@link #getDeltas()}),
+ * and the states of the other cells are reported in the same stream on request (see {@link #requestCells}).
+ * After the update, population and field state are published, and the runner itself is passed to the receiver.
+ * Next notification comes only after the receiver has taken the previous one (see {@link #takeUpdate()}):
+ * when the view falls behind, several generations are evaluated per notification, instead of flooding the Swing queue.
+ * While the runner works, field must be edited only by {@link #setCell}: edits are applied between the generations.
+ * Before every generation, its memory is predicted (see {@link MemoryGuard}). When heap becomes short, runner warns,
+ * and when the next generation would not fit, it acts by the memory policy: stops, or moves the cells to the more compact or the disk field.*/
 public class EvaluationRunner extends  Thread {
 
-	private final Field cells;
-	private int delayMs = 300;
+	/**Longest period of the cycles, that are detected*/
+	private static final int MAX_PERIOD = 64;
+	private static final int NO_JUMP = -1;
+	/**When evaluation is slower than the target pace, runner does not try to catch up by more than this number of generations*/
+	private static final int MAX_CATCH_UP = 4;
+	/**Throughput is measured over this interval*/
+	private static final long THROUGHPUT_INTERVAL_NS = 1000000000L;
+	/**Deltas, not yet taken by the subscriber. When more are produced, they are merged*/
+	private static final int DELTA_BUFFER = 4;
+	/**Deltas are delivered on the Swing thread*/
+	private static final Executor SWING_EXECUTOR = new Executor(){
+		@Override
+		public void execute( Runnable command ){
+			SwingUtilities.invokeLater( command );
+		}
+	};
+
+	/**Stop, when the next generation would not fit into the heap*/
+	public static final int MEMORY_STOP = 0;
+	/**Move cells to the field, that needs less heap per cell*/
+	public static final int MEMORY_COMPACT = 1;
+	/**Move cells to the field on the disk*/
+	public static final int MEMORY_SPILL = 2;
+	/**Cells are moved to the disk field, only if they are this number of rings above its deepest cell: patterns keep moving after it*/
+	private static final int SPILL_DEPTH_MARGIN = 5;
+
+	/**Evaluated field. It is replaced, when cells are moved to the other field by the memory policy*/
+	private volatile Field cells;
+	private volatile int memoryPolicy = MEMORY_STOP;
+	private final MemoryGuard memoryGuard = new MemoryGuard();
+	/**Description of the memory shortage, or null if there is enough memory*/
+	private volatile String memoryWarning = null;
+	/**Target interval between the generations. 0 means as fast as possible*/
+	private volatile int delayMs = 300;
 	private int limitPopulation = 200000; //stop evaluation, when reached this limit
 	volatile boolean stopRequested = false;
 	private NotificationReceiver receiver=null;
 	private TotalisticRule rule;
-	
+	/**Generations, evaluated since the start of the runner*/
+	private volatile long generation = 0;
+	private volatile long jumpTarget = NO_JUMP;
+
+	/**Generations are compared by the fingerprints only, so the detector keeps no cells at any population.
+	 * Period, that it finds, is confirmed on the next pass over the cycle (see {@link #confirm})*/
+	private final CycleDetector<Object> detector = new CycleDetector<Object>( MAX_PERIOD ){
+		@Override
+		protected boolean sameState( Object a, Object b ){
+			return true;
+		}
+	};
+	/**Changes of the generations since the start of the suspected cycle, or null, if no cycle is suspected*/
+	private FieldDelta[] confirming = null;
+	private int confirmed = 0;
+	/**Changes of the cycle, if field is known to be periodic, otherwise null. cycle[i] turns the generation cycleStart + i into the next one*/
+	private volatile FieldDelta[] cycle = null;
+	private long cycleStart = 0;
+	/**Fingerprint of the last generation, for the cycle detection*/
+	private long lastFingerprint;
+	/**Changes are recorded, only when they fit into the heap comfortably. Otherwise subscribers get the resets without the cells*/
+	private boolean recordChanges = true;
+	/**Population and field state after the last update*/
+	private volatile int population = 0;
+	private volatile int fieldState = 0;
+	/**Receiver has taken the last update, so it can be notified again*/
+	private volatile boolean updateTaken = true;
+	/**Cells, whose states were requested by the readers*/
+	private final ConcurrentLinkedQueue<Path[]> cellRequests = new ConcurrentLinkedQueue<Path[]>();
+	/**Cell and its new state, requested by {@link #setCell}*/
+	private static final class Edit{
+		final Path cell;
+		final int state;
+		Edit( Path cell, int state ){
+			this.cell = cell;
+			this.state = state;
+		}
+	}
+	private final ConcurrentLinkedQueue<Edit> edits = new ConcurrentLinkedQueue<Edit>();
+	/**Lock of the requests. Runner waits on it between the generations*/
+	private final Object requestLock = new Object();
+	/**Runner does not take the requests anymore. Guarded by the requestLock*/
+	private boolean finished = false;
+	/**Generations per second, measured over the last interval*/
+	private volatile double throughput = 0;
+	/**Limits of one evaluation. Stop request cancels the evaluation in progress*/
+	private final EvaluationBudget budget = new EvaluationBudget();
+	/**Start time of the evaluation in progress, or 0*/
+	private volatile long stepStart = 0;
+	private final CoalescingPublisher<FieldDelta> deltas = new CoalescingPublisher<FieldDelta>( SWING_EXECUTOR, DELTA_BUFFER ){
+		@Override
+		protected FieldDelta coalesce( FieldDelta earlier, FieldDelta later ){
+			return earlier.merge( later );
+		}
+	};
+
 	public EvaluationRunner( Field cells, TotalisticRule rul, NotificationReceiver r ) {
 		super("Evaluator");
 		this.cells = cells;
 		rule = rul;
 		receiver = r;
+		budget.setMaxPopulation( limitPopulation );
 	}
-	
+
+	private static long stateFingerprint( Field f ){
+		return f.fingerprint() ^ ( f.getFieldState() * 0x9E3779B97F4A7C15L );
+	}
+
 	@Override
 	public void run() {
 		int count = 0;
+		long startTime = System.nanoTime();
+		long nextTime = startTime;
+		long intervalStart = startTime;
+		long intervalGeneration = generation;
+		resetCycle();
 		while( ! stopRequested ){
 			if (cells.population() >= limitPopulation ){
 				System.out.println("Population reached "+cells.population()+" which exceeeds limit:"+limitPopulation+" stopping simulation");
@@ -30,33 +151,408 @@ public class EvaluationRunner extends  Thread {
 				break;
 			}
 			try{
-				cells.evaluate(rule);
-				receiver.notifyUpdate( cells );
-				count += 1;
-				Thread.sleep( delayMs );
-			}catch(OutOfMemoryError err){
-				System.out.println( "Memory exceeded on population " + cells.population() + ", evaluation stopped." );
-				stopRequested = true;
+				long target = jumpTarget;
+				if ( target != NO_JUMP ){
+					jumpTarget = NO_JUMP;
+					jump( target );
+					count += 1;
+				}else if ( step() ){
+					count += 1;
+				}
+				serveRequests();
+				if ( updateTaken ) notifyReceiver();
+
+				long now = System.nanoTime();
+				if ( now - intervalStart >= THROUGHPUT_INTERVAL_NS ){
+					throughput = ( generation - intervalGeneration ) * 1e9 / ( now - intervalStart );
+					intervalStart = now;
+					intervalGeneration = generation;
+				}
+				long period = delayMs * 1000000L;
+				if ( period > 0 ){
+					//fixed pace: time of the evaluation is subtracted from the delay
+					nextTime = Math.max( nextTime + period, now - MAX_CATCH_UP * period );
+					pause( nextTime );
+				}else{
+					nextTime = now;
+				}
+			}catch(OutOfMemoryError err){ //prediction has failed
+				abandon( "Memory exceeded on population " + cells.population() + ", evaluation stopped." );
+			}catch(RuntimeException err){ //e.g. cells went too deep for the field
+				err.printStackTrace();
+				abandon( "Evaluation failed on population " + cells.population() + ": " + err.getMessage() + ", evaluation stopped." );
 			} catch (InterruptedException e) {
 				e.printStackTrace();
 			}
 		}
-		System.out.println("Evaluation stopped after "+count+" steps on population "+cells.population());
+		synchronized( requestLock ){
+			finished = true;
+		}
+		serveRequests();
+		notifyReceiver(); //last generation is always shown
+		deltas.close();
+		double seconds = ( System.nanoTime() - startTime ) / 1e9;
+		System.out.println(String.format("Evaluation stopped after %d steps on population %d, %.1f generations/s", count, cells.population(), count / Math.max( seconds, 1e-9 ) ));
+	}
+
+	/**Stop after the failed generation. Cached cycle may not match the field anymore*/
+	private void abandon( String message ){
+		cycle = null;
+		confirming = null;
+		detector.clear();
+		System.out.println( message );
+		stopRequested = true;
+	}
+
+	/**Publish population and field state, and pass the runner to the receiver*/
+	private void notifyReceiver(){
+		synchronized( cells ){
+			population = cells.population();
+			fieldState = cells.getFieldState();
+		}
+		updateTaken = false;
+		receiver.notifyUpdate( this );
+	}
+
+	/**Apply the requested edits, and report the requested cells*/
+	private void serveRequests(){
+		applyEdits();
+		reportCells();
+	}
+
+	/**Apply the edits, requested by {@link #setCell}, and publish them as the deltas. Edited field starts the cycle detection anew*/
+	private void applyEdits(){
+		if ( edits.isEmpty() ) return;
+		synchronized( cells ){
+			boolean edited = false;
+			for( Edit e = edits.poll(); e != null; e = edits.poll() ){
+				int oldState = cells.getCell( e.cell );
+				if ( oldState == e.state ) continue;
+				try{
+					cells.setCell( e.cell, e.state );
+				}catch( RuntimeException err ){ //field can not store the cell
+					System.out.println( "Can not edit the cell: "+err.getMessage() );
+					continue;
+				}
+				edited = true;
+				if ( deltas.hasSubscribers() ) deltas.submit( FieldDelta.edit( e.cell, oldState, e.state, cells.getFieldState() ) );
+			}
+			if ( edited ) resetCycle();
+		}
+	}
+
+	/**Report the states of the requested cells to the delta subscribers*/
+	private void reportCells(){
+		Path[] requested;
+		while( ( requested = cellRequests.poll() ) != null ){
+			FieldDelta report;
+			synchronized( cells ){
+				report = FieldDelta.report( cells, requested );
+			}
+			deltas.submit( report );
+		}
+	}
+
+	/**Wait until the given time, serving the requests, that come meanwhile. Stop request ends the wait*/
+	private void pause( long until ) throws InterruptedException{
+		while( ! stopRequested ){
+			serveRequests();
+			long wait = until - System.nanoTime();
+			if ( wait <= 0 ) return;
+			synchronized( requestLock ){
+				if ( cellRequests.isEmpty() && edits.isEmpty() && ! stopRequested ) requestLock.wait( wait / 1000000L, (int)( wait % 1000000L ) );
+			}
+		}
+	}
+
+	/**Forget the detected cycle and all cached generations, and start detection from the current field*/
+	private void resetCycle(){
+		memoryGuard.reset();
+		cycle = null;
+		confirming = null;
+		detector.clear();
+		synchronized( cells ){
+			lastFingerprint = stateFingerprint( cells );
+			remember();
+		}
+	}
+
+	/**Add current field to the detector. When it repeats one of the last generations, start confirming the cycle from it*/
+	private void remember(){
+		int period = detector.add( lastFingerprint, null );
+		if ( period != CycleDetector.NO_PERIOD && recordChanges ){
+			confirming = new FieldDelta[ period ];
+			confirmed = 0;
+			cycleStart = generation;
+		}
+	}
+
+	/**Cache the changes of the suspected cycle. After the whole period, cycle is confirmed, if the field has returned to the same state*/
+	private void confirm( FieldDelta d ){
+		confirming[ confirmed++ ] = d;
+		if ( confirmed < confirming.length ) return;
+		FieldDelta total = confirming[0];
+		for( int i = 1; i < confirming.length; ++i ) total = total.merge( confirming[i] );
+		if ( total.isEmpty() ){
+			cycle = confirming;
+			System.out.println( "Field is periodic with period "+cycle.length+" since generation "+( cycleStart - cycle.length )+", replaying cached generations" );
+		}else{ //fingerprints have collided
+			detector.clear();
+		}
+		confirming = null;
+	}
+
+	/**Evaluate one generation, or take it from the cycle. Returns false, if evaluation was aborted and runner is stopping*/
+	private boolean step(){
+		if ( cycle == null && ! checkMemory() ){
+			stopRequested = true;
+			return false;
+		}
+		synchronized( cells ){
+			generation ++;
+			if ( cycle != null ){
+				if ( cycle.length > 1 ){
+					FieldDelta d = cycle[ (int)( ( generation - 1 - cycleStart ) % cycle.length ) ];
+					cells.applyDelta( d );
+					if ( deltas.hasSubscribers() ) deltas.submit( d );
+				}
+			}else{
+				int result;
+				FieldDelta d = null;
+				int fieldStateBefore = cells.getFieldState();
+				stepStart = System.nanoTime();
+				try{
+					if ( recordChanges && ( confirming != null || deltas.hasSubscribers() ) ){
+						d = cells.evaluateDelta( rule, budget );
+						result = budget.getLastResult();
+					}else{
+						result = cells.evaluate( rule, budget );
+					}
+				}catch( RuntimeException err ){ //generation was not evaluated
+					generation --;
+					throw err;
+				}finally{
+					stepStart = 0;
+				}
+				if ( result != EvaluationBudget.COMPLETED ){ //field is not changed
+					generation --;
+					System.out.println( "Generation "+( generation+1 )+" was not evaluated: "+EvaluationBudget.describe( result )+", stopping simulation" );
+					stopRequested = true;
+					return false;
+				}
+				if ( deltas.hasSubscribers() ) deltas.submit( ( d != null ) ? d : FieldDelta.unknown( fieldStateBefore, cells.getFieldState(), 1 ) );
+				lastFingerprint = stateFingerprint( cells );
+				memoryGuard.update( cells.population() );
+				if ( confirming == null ) remember();
+				else if ( d != null ) confirm( d );
+				else confirming = null; //changes do not fit into the heap
+			}
+		}
+		return true;
 	}
-	
+
+	/**Predict memory of the next generation. Changes are recorded, only if they fit comfortably too*/
+	private int predictMemory(){
+		int level = memoryGuard.check( cells, true );
+		recordChanges = ( level == MemoryGuard.LEVEL_OK );
+		return recordChanges ? level : memoryGuard.check( cells, false );
+	}
+
+	/**Predict memory of the next generation and act by the policy, if it does not fit. Returns false, if evaluation must stop*/
+	private boolean checkMemory(){
+		synchronized( cells ){
+			int level = predictMemory();
+			budget.setMaxBytes( Math.max( 1, memoryGuard.getFreeBytes() ) ); //sums of the evaluation must fit too
+			if ( level == MemoryGuard.LEVEL_OK ){
+				memoryWarning = null;
+				return true;
+			}
+			if ( memoryWarning == null ) System.out.println( "Memory is getting short: "+memoryGuard.describe() );
+			memoryWarning = memoryGuard.describe();
+			if ( level == MemoryGuard.LEVEL_WARNING ) return true;
+
+			Field target = null;
+			if ( memoryPolicy == MEMORY_COMPACT ) target = new PackedMapField();
+			if ( memoryPolicy == MEMORY_SPILL ) target = new ExternalField();
+			if ( target == null || target.heapBytesPerCell() >= cells.heapBytesPerCell()
+					|| memoryGuard.level( (long)cells.population() * target.heapBytesPerCell() ) == MemoryGuard.LEVEL_CRITICAL ){
+				System.out.println( "Not enough memory: "+memoryGuard.describe()+", stopping simulation" );
+				return false;
+			}
+			if ( target instanceof ExternalField && maxDepth( cells ) > ExternalField.MAX_KEY_LENGTH - SPILL_DEPTH_MARGIN ){
+				System.out.println( "Not enough memory: "+memoryGuard.describe()+", cells are too deep for the disk field, stopping simulation" );
+				return false;
+			}
+			try{
+				target.setCells( cells.getAliveCells() );
+				for( Path p : cells.getAliveCells() ){
+					int state = cells.getCell( p );
+					if ( state != 1 ) target.setCell( p, state );
+				}
+			}catch( RuntimeException e ){ //target can not store some cells
+				System.out.println( "Can not move cells to "+target.getClass().getSimpleName()+": "+e.getMessage()+", stopping simulation" );
+				return false;
+			}
+			target.setFieldState( cells.getFieldState() );
+			System.out.println( "Not enough memory: "+memoryGuard.describe()+", cells are moved to "+target.getClass().getSimpleName() );
+			cells = target;
+		}
+		//cells are the same, so cycle detection and the deltas stay valid
+		synchronized( cells ){
+			if ( predictMemory() == MemoryGuard.LEVEL_CRITICAL ){
+				System.out.println( "Not enough memory: "+memoryGuard.describe()+", stopping simulation" );
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**Length of the deepest alive cell*/
+	private static int maxDepth( Field f ){
+		int rval = 0;
+		for( Path p : f.getAliveCells() ) rval = Math.max( rval, p.length() );
+		return rval;
+	}
+
+	/**Go to the given generation. Generations of the cycle are taken directly, others are evaluated without delay*/
+	private void jump( long target ){
+		if ( target < generation && ( cycle == null || target < cycleStart ) ){
+			System.out.println( "Can not jump back to generation "+target );
+			return;
+		}
+		while( generation < target && cycle == null && ! stopRequested && cells.population() < limitPopulation ){
+			step();
+		}
+		if ( cycle != null ){
+			synchronized( cells ){
+				int steps = (int)( ( ( target - generation ) % cycle.length + cycle.length ) % cycle.length );
+				for( int i = 0; i < steps; ++i ){
+					FieldDelta d = cycle[ (int)( ( generation + i - cycleStart ) % cycle.length ) ];
+					cells.applyDelta( d );
+					if ( deltas.hasSubscribers() ) deltas.submit( d ); //subscriber buffers merge them
+				}
+				generation = target;
+			}
+		}
+		System.out.println( "Jumped to generation "+generation );
+	}
+
+	/**Stop the runner. Evaluation in progress is aborted, leaving the field at the previous generation*/
 	public void requestStop() {
 		stopRequested = true;
+		budget.cancel();
+		synchronized( requestLock ){
+			requestLock.notifyAll();
+		}
+	}
+
+	/**Fraction of the current generation, that is evaluated*/
+	public double getStepProgress(){
+		return budget.getProgress();
+	}
+
+	/**Time, spent on the evaluation in progress, or 0 if runner is not evaluating now*/
+	public long getStepTimeMs(){
+		long start = stepStart;
+		return ( start == 0 ) ? 0 : ( System.nanoTime() - start ) / 1000000L;
+	}
+
+	/**Ask the runner to go to the given generation, counted from the start of the runner*/
+	public void requestJump( long target ){
+		if ( target < 0 ) throw new RuntimeException( "Generation must be >= 0" );
+		jumpTarget = target;
+	}
+
+	/**Ask for the current states of the cells. They are reported in the delta stream (see {@link FieldDelta#report}),
+	 * when the generation in progress is done, or at once, if the runner is waiting*/
+	public void requestCells( Path[] requested ){
+		cellRequests.add( requested );
+		synchronized( requestLock ){
+			requestLock.notifyAll();
+		}
 	}
-	
+
+	/**Change the cell of the evaluated field. Edit is applied between the generations, so the caller does not wait for the evaluation in progress;
+	 * subscribers receive it as the delta. After the runner has finished, the field is changed directly*/
+	public void setCell( Path cell, int state ){
+		synchronized( requestLock ){
+			if ( ! finished ){
+				edits.add( new Edit( cell, state ) );
+				requestLock.notifyAll();
+				return;
+			}
+		}
+		cells.setCell( cell, state );
+	}
+
+	/**Population after the last update*/
+	public int getPopulation(){
+		return population;
+	}
+
+	/**Global field state after the last update*/
+	public int getFieldState(){
+		return fieldState;
+	}
+
+	/**Allow the runner to notify the receiver again. Receiver must call it after every notification*/
+	public void takeUpdate(){
+		updateTaken = true;
+	}
+
+	/**Generations per second, evaluated recently*/
+	public double getThroughput(){
+		return throughput;
+	}
+
+	/**Changes of the field, delivered on the Swing thread. Slow subscriber receives merged deltas of several generations.
+	 * Edits come as the deltas of one cell, requested cells come as reports. When the changes do not fit into the heap, they come as the resets without the cells
+	 * (see {@link FieldDelta#unknown}), and subscribers must request the cells, they need. Subscribe before starting the runner*/
+	public Flow.Publisher<FieldDelta> getDeltas(){
+		return deltas;
+	}
+
+	/**Evaluated field. It is not the initial one, if cells were moved by the memory policy*/
+	public Field getField(){
+		return cells;
+	}
+
+	/**Description of the memory shortage, or null if there is enough memory for the next generation*/
+	public String getMemoryWarning(){
+		return memoryWarning;
+	}
+
+	/**What to do, when the next generation would not fit into the heap: one of MEMORY_STOP, MEMORY_COMPACT, MEMORY_SPILL*/
+	public void setMemoryPolicy( int policy ){
+		if ( policy < MEMORY_STOP || policy > MEMORY_SPILL ) throw new RuntimeException( "Unknown memory policy: "+policy );
+		memoryPolicy = policy;
+	}
+	public int getMemoryPolicy(){
+		return memoryPolicy;
+	}
+
+	/**Generations, evaluated since the start of the runner*/
+	public long getGeneration(){
+		return generation;
+	}
+
+	/**Period of the field, or 0 if field is not known to be periodic*/
+	public int getPeriod(){
+		FieldDelta[] c = cycle;
+		return ( c == null ) ? 0 : c.length;
+	}
+
 	/*Setter-getter boilerplate*/
-	
+
 	public void setLimitPopulation(int limitPopulation) {
 		if ( limitPopulation < 0 ) throw new RuntimeException("Limit mus be > 1");
 		this.limitPopulation = limitPopulation;
+		budget.setMaxPopulation( limitPopulation );
 	}
 	public int getLimitPopulation() {
 		return limitPopulation;
 	}
+	/**Target interval between the generations, 0 for the fastest evaluation*/
 	public void setDelayMs(int delayMs) {
 		if (delayMs < 0) throw new RuntimeException("Delay must be >= 0");
 		this.delayMs = delayMs;
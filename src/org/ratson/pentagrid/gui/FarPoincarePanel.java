@@ -10,15 +10,17 @@ import java.awt.Shape;
 import java.awt.geom.GeneralPath;
 import java.awt.image.BufferedImage;
 import java.util.ArrayList;
+import java.util.HashMap;
 
 import javax.swing.JComponent;
 
+import org.ratson.pentagrid.Field;
+import org.ratson.pentagrid.FieldDelta;
 import org.ratson.pentagrid.OrientedPath;
 import org.ratson.pentagrid.Path;
 import org.ratson.pentagrid.PathNavigation;
 import org.ratson.pentagrid.Transform;
 import org.ratson.pentagrid.Util;
-import org.ratson.pentagrid.fields.SimpleMapField;
 import org.ratson.pentagrid.gui.poincare_panel.PoincarePanelEvent;
 import org.ratson.pentagrid.gui.poincare_panel.PoincarePanelListener;
 import org.ratson.util.Function1;
@@ -29,7 +31,12 @@ public class FarPoincarePanel extends JComponent {
 	private ArrayList<VisibleCell> visibleCells = new ArrayList<FarPoincarePanel.VisibleCell>();
 	private int visibleRadius = 5;
 	private Transform viewTransform = (new Transform()).setEye();
-	private SimpleMapField field = null;
+	private Field field = null;
+	/**Runner, that evaluates the field, or null. While it is set, field is never read: visible cells are updated by its deltas,
+	 * and the states of the newly visible cells are requested from it*/
+	private EvaluationRunner runner = null;
+	/**Visible cells by their absolute paths, to apply the deltas*/
+	private HashMap<Path, VisibleCell> visibleByPath = new HashMap<Path, VisibleCell>();
 
 	private Shape cellsShape = null;
 	public boolean antiAlias = false;
@@ -56,53 +63,85 @@ public class FarPoincarePanel extends JComponent {
 			absolutePath = origin.attach(relative).path;
 			relativeTfm = PathNavigation.getTransformation(relative);
 		}
-		public boolean updateState( SimpleMapField fld ){
+		public boolean updateState( Field fld ){
 			int oldState = state;
 			state = fld.getCell( absolutePath );
 			return oldState != state;
 		}
 	}
 	
-	/**re-enerate array of visible cells*/
+	/**re-enerate array of visible cells. Cells, that remain visible, keep their states; states of the new ones are requested from the runner*/
 	private void rebuildVisibleCells(){
+		final HashMap<Path, VisibleCell> oldVisible = visibleByPath;
+		final ArrayList<Path> newCells = new ArrayList<Path>();
 		visibleCells.clear();
+		visibleByPath = new HashMap<Path, VisibleCell>();
 		Util.forField(visibleRadius, new Function1<Path, Boolean>() {
 			public Boolean call(Path relPath) {
-				visibleCells.add(new VisibleCell( relPath, viewCenter ));
+				VisibleCell c = new VisibleCell( relPath, viewCenter );
+				VisibleCell old = oldVisible.get( c.absolutePath );
+				if ( old != null ) c.state = old.state; else newCells.add( c.absolutePath );
+				visibleCells.add( c );
+				visibleByPath.put( c.absolutePath, c );
 				return true;
 			}
 		});
 		visibleCells.trimToSize();
+		if ( runner != null && ! newCells.isEmpty() ) runner.requestCells( newCells.toArray( new Path[ newCells.size() ] ) );
 	}
 	
+	/**Read states of all visible cells. While following the runner, they are requested from it and come later as the delta*/
 	private boolean updateCellsState(){
+		if ( runner != null ){
+			runner.requestCells( visibleByPath.keySet().toArray( new Path[ visibleByPath.size() ] ) );
+			return false;
+		}
+		return updateCellsState( field );
+	}
+
+	private boolean updateCellsState( Field source ){
 		boolean changed = false;
-		synchronized(field){
-			for ( VisibleCell c : visibleCells ) {
-				changed = c.updateState(field) || changed;
-			}
+		for ( VisibleCell c : visibleCells ) {
+			changed = c.updateState(source) || changed;
 		}
 		return changed;
 	}
 	
-	public FarPoincarePanel( SimpleMapField f ){
+	public FarPoincarePanel( Field f ){
 		field = f;
 		rebuildVisibleCells();
 		updateCellsState();
 	}
 	
-	public void setField( SimpleMapField f ){
+	/**Show the field, reading it directly. Field must not be evaluated by the other thread, use {@link #follow} for it*/
+	public void setField( Field f ){
 		field = f;
+		runner = null;
 		update();
 	}
+
+	/**Follow the field, evaluated by the runner: cells are updated only by the deltas of the runner, that must be passed to {@link #update(FieldDelta)}.
+	 * Visible cells must be up to date, when following starts*/
+	public void follow( EvaluationRunner r ){
+		runner = r;
+	}
+
+	/**Update the cells, that became visible after the view was moved. Following panel has already requested them from the runner*/
+	private void updateMoved(){
+		if ( runner == null ){
+			update();
+		}else{
+			cellsShape = null;
+			repaint();
+		}
+	}
 	
 	public void setViewRadius( int r ){
 		assert r >= 1;
 		if ( r != visibleRadius ){
 			visibleRadius = r;
 			rebuildVisibleCells();
-			cellsShape = null;
-			update();
+			updateMoved();
 		}
 	}
 
@@ -212,13 +251,38 @@ public class FarPoincarePanel extends JComponent {
 		gridShape = null;
 		repaint();
 	}
-	/**Updates cell states and causes repaint*/
+	/**Updates cell states from the field and causes repaint. While following the runner, states are requested from it*/
 	public void update(){
 		if ( updateCellsState() ){ //repaint only if some cells were changed
 			cellsShape = null;
 			repaint();
 		}
 	}
+	/**Applies changes of the cells: only the changed visible cells are touched. Reset delta re-reads all visible cells from its field copy first,
+	 * reset without the cells requests them anew*/
+	public void update( FieldDelta delta ){
+		boolean changed = false;
+		if ( delta.isReset() ){
+			if ( delta.getResetField() != null ) changed = updateCellsState( delta.getResetField() );
+			else updateCellsState();
+		}
+		for( int i = 0; i < delta.size(); ++i ){
+			VisibleCell c = visibleByPath.get( delta.getCell(i) );
+			if ( c != null && c.state != delta.getNewState(i) ){
+				c.state = delta.getNewState(i);
+				changed = true;
+			}
+		}
+		if ( changed ){
+			cellsShape = null;
+			repaint();
+		}
+	}
+	/**State of the visible cell as it is shown, 0 for the cells out of view*/
+	public int getShownState( Path cell ){
+		VisibleCell c = visibleByPath.get( cell );
+		return ( c == null ) ? 0 : c.state;
+	}
 	/**Move view to the origin*/
 	public void centerView(){
 		viewTfmModifCounter = 0;
@@ -228,7 +292,7 @@ public class FarPoincarePanel extends JComponent {
 			event = new PoincarePanelEvent(viewCenter, center);
 		viewCenter = center;
 		rebuildVisibleCells();
-		updateCellsState();
+		if ( runner == null ) updateCellsState( field );
 		setView( viewTransform.setEye() );
 		if (event != null)
 			fireOriginChanged( event );
@@ -266,7 +330,7 @@ public class FarPoincarePanel extends JComponent {
 		viewCenter = newCenter;
 		rebuildVisibleCells();
 		setView( viewTransform.setEye() );
-		update();
+		updateMoved();
 		fireOriginChanged( event );
 	}
 	public OrientedPath getOrigin(){
@@ -281,7 +345,7 @@ public class FarPoincarePanel extends JComponent {
 		viewCenter = newCenter;
 		viewTransform = viewTransform.mul( offsetTfm );
 		rebuildVisibleCells();
-		update();
+		updateMoved();
 		fireOriginChanged(e);
 	}
 	/**adjust view center, setting it to the cell, nearest to the geometrical center of the Poincare circle*/
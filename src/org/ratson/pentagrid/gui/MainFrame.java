@@ -3,6 +3,8 @@ package org.ratson.pentagrid.gui;
 import java.awt.BorderLayout;
 import java.awt.Dimension;
 import java.awt.Point;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
 import java.awt.event.MouseAdapter;
@@ -26,12 +28,14 @@ import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import javax.swing.filechooser.FileFilter;
 import javax.swing.filechooser.FileNameExtensionFilter;
 
 import org.ratson.pentagrid.Clusterizer;
 import org.ratson.pentagrid.StrobingRule;
 import org.ratson.pentagrid.Field;
+import org.ratson.pentagrid.FieldDelta;
 import org.ratson.pentagrid.OrientedPath;
 import org.ratson.pentagrid.Path;
 import org.ratson.pentagrid.PathNavigation;
@@ -39,11 +43,13 @@ import org.ratson.pentagrid.Rule;
 import org.ratson.pentagrid.RuleSyntaxException;
 import org.ratson.pentagrid.TotalisticRule;
 import org.ratson.pentagrid.Util;
+import org.ratson.pentagrid.fields.ExternalField;
 import org.ratson.pentagrid.fields.SimpleMapField;
 import org.ratson.pentagrid.gui.poincare_panel.PoincarePanelEvent;
 import org.ratson.pentagrid.gui.poincare_panel.PoincarePanelListener;
 import org.ratson.pentagrid.json.FileFormatException;
 import org.ratson.pentagrid.json.GSONSerializer;
+import org.ratson.util.Flow;
 import org.ratson.util.Pair;
 
 import com.google.gson.stream.JsonReader;
@@ -52,7 +58,8 @@ import com.google.gson.stream.JsonWriter;
 @SuppressWarnings("serial")
 public class MainFrame extends JFrame implements NotificationReceiver {
 	
-	private SimpleMapField world = new SimpleMapField();
+	/**Field, shown and edited. Initially it is the SimpleMapField; evaluator can move cells to another field, when memory is short*/
+	private Field world = newWorld();
 	private TotalisticRule rule = new Rule(new int[]{3}, new int[]{2,3});
 	private FarPoincarePanel panel;
 	private EvaluationRunner evaluationThread=null;
@@ -61,6 +68,18 @@ public class MainFrame extends JFrame implements NotificationReceiver {
 	private WaypointNavigator waypointNavigator=new WaypointNavigator();
 	protected Point dragOrigin=null;
 	protected Point lastDragPoint=null;
+	/**Progress of the evaluation is shown, when one generation takes longer*/
+	private static final int SLOW_STEP_MS = 500;
+	private Timer progressTimer = new Timer( SLOW_STEP_MS, new ActionListener(){
+		@Override
+		public void actionPerformed( ActionEvent e ){
+			EvaluationRunner r = evaluationThread;
+			if ( r != null && r.getStepTimeMs() >= SLOW_STEP_MS ){
+				lblFieldInfo.setText( String.format( "Evaluating generation %d: %.0f%% done, Enter to cancel",
+						r.getGeneration(), 100 * r.getStepProgress() ) );
+			}
+		}
+	});
 
 	class WaypointNavigator{
 		ArrayList<Path> waypoints = new ArrayList<Path>();
@@ -99,7 +118,17 @@ public class MainFrame extends JFrame implements NotificationReceiver {
 		panel.setOrigin( new OrientedPath(path, 0));
 	}
 	private void updateFieldInfo(){
-		String infoStr = String.format("Population:%d Background:%d Rule:%s", world.population(), world.getFieldState(), rule);
+		updateFieldInfo( world );
+	}
+	private void updateFieldInfo( Field fld ){
+		String infoStr = String.format("Population:%d Background:%d Rule:%s", fld.population(), fld.getFieldState(), rule);
+		lblFieldInfo.setText( infoStr );
+	}
+	private void updateFieldInfo( EvaluationRunner runner ){
+		String infoStr = String.format("Population:%d Background:%d Rule:%s Generation:%d Speed:%.1f gen/s",
+				runner.getPopulation(), runner.getFieldState(), rule, runner.getGeneration(), runner.getThroughput());
+		String memoryWarning = runner.getMemoryWarning();
+		if ( memoryWarning != null ) infoStr += " Memory is short: " + memoryWarning;
 		lblFieldInfo.setText( infoStr );
 	}
 	private void updateLocationInfo(){
@@ -155,6 +184,9 @@ public class MainFrame extends JFrame implements NotificationReceiver {
 				case 'n':
 					doExportAnimation();
 					break;
+				case 'j':
+					doJump();
+					break;
 				case 'm':
 					doExportAnimationMovement();
 					break;
@@ -187,8 +219,13 @@ public class MainFrame extends JFrame implements NotificationReceiver {
 					if( arg0.getButton() == MouseEvent.BUTTON1 ){
 						Path point = panel.mouse2cellPath(arg0.getX(), arg0.getY());
 						if (point != null){
-							world.setCell( point, 1 ^ world.getCell( point ) );
-							panel.update();
+							EvaluationRunner r = evaluationThread;
+							if ( r != null ){ //the change comes back as the delta
+								r.setCell( point, 1 ^ panel.getShownState( point ) );
+							}else{
+								world.setCell( point, 1 ^ world.getCell( point ) );
+								panel.update();
+							}
 						}else{
 							System.err.println("Non-point");
 						}
@@ -230,19 +267,22 @@ public class MainFrame extends JFrame implements NotificationReceiver {
 		panel.addMouseWheelListener(listener);
 	}
 
-	/**Find clusters in the field, and set waypoints to them*/
+	/**Find clusters in the field, and set waypoints to them. Evaluation is paused meanwhile*/
 	protected void doClusterize() {
+		boolean wasRunning = false;
+		if( evaluationThread != null ) {
+			stopEvaluation();
+			wasRunning = true;
+		}
 		waypointNavigator.clear();
 		System.out.println("Clusterizing...");
-		Clusterizer c = null;
-		synchronized( world ){
-			c = new Clusterizer( world );
-		}
+		Clusterizer c = new Clusterizer( world );
 		System.out.println("Done. Found "+c.clusters.size()+" clusters");
 		for( Clusterizer.Cluster cl: c.clusters ){
 			waypointNavigator.add( cl.cells.get(0) );
 		}
 		waypointNavigator.current();
+		if (wasRunning) startEvaluation();
 	}
 	protected void doEditSettings() {
 		Settings settingsCopy = (Settings)(settings.clone());
@@ -252,6 +292,20 @@ public class MainFrame extends JFrame implements NotificationReceiver {
 		}
 	}
 
+	/**Ask for the generation and fast-forward the evaluation to it*/
+	protected void doJump() {
+		long current = ( evaluationThread == null ) ? 0 : evaluationThread.getGeneration();
+		String sGeneration = JOptionPane.showInputDialog(this, "Jump to generation (current is "+current+")", current);
+		if ( sGeneration == null ) return;
+		try{
+			long target = Long.parseLong( sGeneration.trim() );
+			if ( evaluationThread == null ) startEvaluation();
+			evaluationThread.requestJump( target );
+		}catch( RuntimeException err ){
+			JOptionPane.showMessageDialog(this, err.getMessage(), "Wrong generation", JOptionPane.ERROR_MESSAGE);
+		}
+	}
+
 	protected void toggleRunning() {
 		if( evaluationThread == null )
 			startEvaluation();
@@ -310,6 +364,7 @@ public class MainFrame extends JFrame implements NotificationReceiver {
 		super("Hyperbolic CA simulator");
 		createUI();
 		addHandlers();
+		progressTimer.start();
 	}
 	
 	public static void main(String[] args) {
@@ -327,15 +382,47 @@ public class MainFrame extends JFrame implements NotificationReceiver {
 	
 	public void startEvaluationFast(){
 		if( evaluationThread != null ) return;
-		evaluationThread = new EvaluationRunner(world, rule, this);
+		evaluationThread = createEvaluationRunner();
 		evaluationThread.setDelayMs(0);
 		evaluationThread.start();		
 	}
 	public void startEvaluation(){
 		if( evaluationThread != null ) return;
-		evaluationThread = new EvaluationRunner(world, rule, this);
+		evaluationThread = createEvaluationRunner();
 		evaluationThread.start();
 	}
+	/**Runner for the world. Panel follows it by the cell deltas, until it is stopped*/
+	private EvaluationRunner createEvaluationRunner(){
+		final EvaluationRunner r = new EvaluationRunner(world, rule, this);
+		r.setMemoryPolicy( settings.memoryPolicy );
+		r.getDeltas().subscribe( new Flow.Subscriber<FieldDelta>(){
+			private Flow.Subscription subscription;
+			@Override
+			public void onSubscribe( Flow.Subscription s ){
+				subscription = s;
+				s.request( 1 );
+			}
+			@Override
+			public void onNext( FieldDelta delta ){
+				if ( r == evaluationThread ) panel.update( delta );
+				subscription.request( 1 );
+			}
+			@Override
+			public void onError( Throwable error ){
+				error.printStackTrace();
+			}
+			@Override
+			public void onComplete(){ //runner has stopped by itself, field can be read and edited directly
+				if ( r == evaluationThread ){
+					world = r.getField();
+					evaluationThread = null;
+					panel.setField( world ); //also shows the edits, applied after the runner has finished
+				}
+			}
+		});
+		panel.follow( r );
+		return r;
+	}
 	public void stopEvaluation(){
 		if (evaluationThread != null){
 			evaluationThread.requestStop();
@@ -344,20 +431,24 @@ public class MainFrame extends JFrame implements NotificationReceiver {
 			} catch (InterruptedException e) {
 				e.printStackTrace();
 			}
+			world = evaluationThread.getField();
 			evaluationThread = null;
+			panel.setField( world );
 		}
 	}
 
 	@Override
 	public void notifyUpdate( Object w ) {
-		//Receive results from the evaluator
-		//This code is called from the evaluator thread
-		if (w == world){
+		//Receive population and field state from the evaluator. Panel itself is updated by the deltas
+		//This code is called from the evaluator thread. Next notification comes only after the update is taken
+		if (w instanceof EvaluationRunner){
+			final EvaluationRunner runner = (EvaluationRunner)w;
 			SwingUtilities.invokeLater(new Runnable(){
 				@Override
 				public void run() {
-					panel.update();
-					updateFieldInfo();
+					if ( runner == evaluationThread ) world = runner.getField(); //cells could be moved by the memory policy
+					runner.takeUpdate();
+					updateFieldInfo( runner );
 				}
 			});
 		}else{
@@ -408,17 +499,24 @@ public class MainFrame extends JFrame implements NotificationReceiver {
 		fieldFileChooser.addChoosableFileFilter(filter);
 		fieldFileChooser.setFileFilter( filter );
 	}
+	/**Save the field. Evaluation is paused meanwhile*/
 	private void doSaveField(){
 		ensureSaveFileChooser();
 		if (fieldFileChooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
             File file = fieldFileChooser.getSelectedFile();
             if ( ! file.getName().contains("."))
             	file = new File( file.getParentFile(), file.getName()+".jsongz");
+            boolean wasRunning = false;
+            if( evaluationThread != null ) {
+            	stopEvaluation();
+            	wasRunning = true;
+            }
             try {
             	saveFieldGson(file, world);
 			} catch (Exception err) {
 				JOptionPane.showMessageDialog(this, err.getMessage(), "Error writing file", JOptionPane.ERROR_MESSAGE);
 			}
+            if (wasRunning) startEvaluation();
 		}
 	}
 	private void doLoadField(){
@@ -439,11 +537,19 @@ public class MainFrame extends JFrame implements NotificationReceiver {
 	private void setWorld(SimpleMapField newWorld) {
 		assert newWorld != null;
 		stopEvaluation();
+		if ( world instanceof ExternalField ) ((ExternalField)world).close(); //delete its file
+		newWorld.setParallel( true );
 		world = newWorld;
 		panel.setField( newWorld );
 		updateFieldInfo();
 	}
 
+	private static SimpleMapField newWorld(){
+		SimpleMapField w = new SimpleMapField();
+		w.setParallel( true );
+		return w;
+	}
+
 	private void createImageChooser(){
 		if ( imageFileChooser == null ){
 			imageFileChooser = new JFileChooser();
@@ -515,6 +621,7 @@ public class MainFrame extends JFrame implements NotificationReceiver {
 		}
 		
 		int frame = 0;
+		stopEvaluation(); //world is evaluated here
 		
 		for(int generation=0; generation< nFrames; ++generation){
 			for(int iSubFrame=0; iSubFrame<nFramesPerGen; ++iSubFrame, ++frame){
@@ -541,6 +648,7 @@ public class MainFrame extends JFrame implements NotificationReceiver {
 			baseName = name;
 			ext="";
 		}
+		stopEvaluation(); //world is evaluated here
 		for(int frame=0; frame < nFrames; ++frame){
 			File frameFile = new File(folder, baseName + String.format("%04d", frame) + ext);
 			System.err.println("Writing "+frameFile);
@@ -11,6 +11,7 @@ import java.awt.geom.AffineTransform;
 import java.awt.geom.GeneralPath;
 import java.awt.image.BufferedImage;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 
 import javax.swing.JComponent;
@@ -53,6 +54,8 @@ public class PoincarePanel extends JComponent {
 	private ArrayList< PointDbl > farAwayPoints = new ArrayList<PoincarePanel.PointDbl>(); 
 	
 	private Field field = null;
+	/**Alive cells of the field. They are read, when field is set or changed, so painting never reads nor locks the field*/
+	private Path[] aliveCells = new Path[0];
 	Shape cellsShape = null;
 	public boolean antiAlias = false;
 	public boolean showPopulation=false;
@@ -69,9 +72,11 @@ public class PoincarePanel extends JComponent {
 	
 	PoincarePanel( Field f){
 		field = f;
+		readCells();
 		viewTfm.setEye();
 	}
 	
+	/**Show the field. It is read at once, so it must not be evaluated by the other thread now*/
 	public void setField( Field f ){
 		field = f;
 		rebuildCells();
@@ -82,7 +87,7 @@ public class PoincarePanel extends JComponent {
 		super.paintComponent(g);
 
 		if (showPopulation && field != null){
-			g.drawString("Cells:"+field.population(), 0, 20);
+			g.drawString("Cells:"+aliveCells.length, 0, 20);
 		}
 		
 		Dimension sz = getSize();
@@ -222,7 +227,9 @@ public class PoincarePanel extends JComponent {
 		return PathNavigation.point2path(viewTfm.hypInverse().tfmVector(point));
 	}
 
+	/**Re-read the changed field. It must not be evaluated by the other thread now*/
 	public void rebuildCells() {
+		readCells();
 		cellsShape = null;
 		if( isDisplayable() ) repaint();
 	}
@@ -239,11 +246,13 @@ public class PoincarePanel extends JComponent {
 		return img;
 	}
 
+	private void readCells(){
+		aliveCells = ( field == null ) ? new Path[0] : field.getAliveCellsArray();
+	}
+
 	private void paintContents(Graphics2D g2, Dimension size) {
 		if ( cellsShape == null ){
-			synchronized( field ){
-				cellsShape = createFieldShape( field.getAliveCells() );				
-			}
+			cellsShape = createFieldShape( Arrays.asList( aliveCells ) );
 		}
 		AffineTransform oldTfm = g2.getTransform();
 		double scale = getScale( size );
@@ -12,6 +12,8 @@ public class Settings implements Serializable, Cloneable{
 	public boolean exportAntiAlias = true;
 	public double offsetVelocity = 0.1;
 	public double rotationVelocity = 0.05;
+	/**What evaluator does, when the next generation would not fit into the heap (see EvaluationRunner.MEMORY_*)*/
+	public int memoryPolicy = EvaluationRunner.MEMORY_COMPACT;
 	public Color clrGrid = Color.LIGHT_GRAY,
 		clrCell = Color.BLUE,
 		clrBorder = Color.BLACK;
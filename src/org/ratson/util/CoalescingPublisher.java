@@ -0,0 +1,161 @@
+package org.ratson.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+
+/**Publisher, that never blocks the producer. Every subscriber has the bounded buffer of items;
+ * when the buffer is full, new item is joined with the last buffered one by {@link #coalesce}, so the slow subscriber receives fewer, bigger items.
+ * Items are delivered by the given executor, one task per subscriber at a time.*/
+public abstract class CoalescingPublisher<T> implements Flow.Publisher<T> {
+	private final Executor executor;
+	private final int bufferSize;
+	private final ArrayList<BufferedSubscription> subscriptions = new ArrayList<BufferedSubscription>();
+	private boolean closed = false;
+
+	public CoalescingPublisher( Executor executor, int bufferSize ){
+		if ( bufferSize < 1 ) throw new RuntimeException( "Buffer size must be >= 1" );
+		this.executor = executor;
+		this.bufferSize = bufferSize;
+	}
+
+	/**Item, equivalent to the earlier item, followed by the later one*/
+	protected abstract T coalesce( T earlier, T later );
+
+	@Override
+	public void subscribe( Flow.Subscriber<? super T> subscriber ){
+		BufferedSubscription s = new BufferedSubscription( subscriber );
+		boolean wasClosed;
+		synchronized( this ){
+			wasClosed = closed;
+			if ( ! wasClosed ) subscriptions.add( s );
+		}
+		subscriber.onSubscribe( s );
+		if ( wasClosed ) s.complete();
+	}
+
+	/**Offer the item to all subscribers. Never blocks*/
+	public void submit( T item ){
+		for( BufferedSubscription s : currentSubscriptions() ) s.offer( item );
+	}
+
+	/**Complete all subscriptions after their buffered items are delivered*/
+	public void close(){
+		synchronized( this ){
+			closed = true;
+		}
+		for( BufferedSubscription s : currentSubscriptions() ) s.complete();
+	}
+
+	public synchronized boolean hasSubscribers(){
+		return ! subscriptions.isEmpty();
+	}
+
+	private synchronized ArrayList<BufferedSubscription> currentSubscriptions(){
+		return new ArrayList<BufferedSubscription>( subscriptions );
+	}
+
+	private synchronized void remove( BufferedSubscription s ){
+		subscriptions.remove( s );
+	}
+
+	/**Buffer and demand of one subscriber. It is also the delivery task*/
+	private final class BufferedSubscription implements Flow.Subscription, Runnable {
+		private final Flow.Subscriber<? super T> subscriber;
+		private final ArrayDeque<T> buffer = new ArrayDeque<T>();
+		private long demand = 0;
+		private boolean cancelled = false;
+		private boolean completed = false;
+		/**Delivery task is submitted to the executor and not finished yet*/
+		private boolean scheduled = false;
+		private Throwable error = null;
+
+		BufferedSubscription( Flow.Subscriber<? super T> subscriber ){
+			this.subscriber = subscriber;
+		}
+
+		synchronized void offer( T item ){
+			if ( cancelled || completed ) return;
+			if ( buffer.size() >= bufferSize ){
+				buffer.addLast( coalesce( buffer.pollLast(), item ) );
+			}else{
+				buffer.addLast( item );
+			}
+			schedule();
+		}
+
+		synchronized void complete(){
+			completed = true;
+			schedule();
+		}
+
+		/**Submit the delivery task, if there is something to deliver. Called with the lock held*/
+		private void schedule(){
+			if ( scheduled || cancelled ) return;
+			boolean ready = ( demand > 0 && ! buffer.isEmpty() ) || ( completed && buffer.isEmpty() ) || error != null;
+			if ( ! ready ) return;
+			scheduled = true;
+			executor.execute( this );
+		}
+
+		@Override
+		public synchronized void request( long n ){
+			if ( n <= 0 ){
+				error = new IllegalArgumentException( "Requested "+n+" items, must be > 0" );
+			}else{
+				demand = ( demand + n < 0 ) ? Long.MAX_VALUE : demand + n;
+			}
+			schedule();
+		}
+
+		@Override
+		public void cancel(){
+			synchronized( this ){
+				cancelled = true;
+				buffer.clear();
+			}
+			remove( this );
+		}
+
+		/**Deliver buffered items, while there is demand. Subscriber methods are called without the lock*/
+		@Override
+		public void run(){
+			while( true ){
+				T item = null;
+				boolean finish = false;
+				Throwable err = null;
+				synchronized( this ){
+					if ( cancelled ){
+						scheduled = false;
+						return;
+					}
+					if ( error != null ){
+						err = error;
+						cancelled = true;
+						buffer.clear();
+					}else if ( demand > 0 && ! buffer.isEmpty() ){
+						item = buffer.pollFirst();
+						demand --;
+					}else if ( completed && buffer.isEmpty() ){
+						finish = true;
+						cancelled = true;
+					}else{
+						scheduled = false;
+						return;
+					}
+				}
+				if ( err != null ){
+					remove( this );
+					subscriber.onError( err );
+					return;
+				}
+				if ( finish ){
+					remove( this );
+					subscriber.onComplete();
+					return;
+				}
+				subscriber.onNext( item );
+			}
+		}
+	}
+}
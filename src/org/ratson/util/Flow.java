@@ -0,0 +1,27 @@
+package org.ratson.util;
+/**Reactive streams interfaces, same as java.util.concurrent.Flow of Java 9, for the code, that must run on Java 7.
+ * Subscriber receives items only after it requested them, so the publisher knows, when the subscriber is behind.*/
+public final class Flow {
+	private Flow(){}
+
+	public static interface Publisher<T> {
+		/**Add the subscriber. Its onSubscribe is called before any other method*/
+		public void subscribe( Subscriber<? super T> subscriber );
+	}
+
+	public static interface Subscriber<T> {
+		public void onSubscribe( Subscription subscription );
+		/**Next item. Called only after it was requested*/
+		public void onNext( T item );
+		public void onError( Throwable error );
+		/**No more items will come*/
+		public void onComplete();
+	}
+
+	public static interface Subscription {
+		/**Allow the publisher to send n more items*/
+		public void request( long n );
+		/**Stop receiving items. Some items may still arrive after it*/
+		public void cancel();
+	}
+}
@@ -13,6 +13,16 @@ public class Util {
 		return rval + d;
 	}
 
+	/**Bit mixer for 64-bit hashes (finalizer of the MurmurHash3)*/
+	public static long mix64( long h ){
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
 	/**Square*/
 	public static double sqr(double d) {
 		return d*d;